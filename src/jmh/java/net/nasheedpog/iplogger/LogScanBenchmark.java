@@ -0,0 +1,58 @@
+package net.nasheedpog.iplogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+// Finding logins in a log, the per-line work of the log import and the latest.log tailer.
+// The gzip variant is what an import of rotated logs costs, the plain one is the scanner on its own.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogScanBenchmark {
+    @Param({"100000", "1000000"})
+    public int lines;
+
+    private byte[] plain;
+    private byte[] gzip;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SyntheticDataset dataset = SyntheticDataset.generate(10_000, 42);
+        plain = SyntheticLogs.plain(dataset, lines, 7);
+        gzip = SyntheticLogs.gzip(dataset, lines, 7);
+    }
+
+    @Benchmark
+    public long scanPlain() throws IOException {
+        return scan(new LoginLineScanner(0, null, (username, ipAddress, epochSeconds) -> { }), plain, false);
+    }
+
+    @Benchmark
+    public long scanGzip() throws IOException {
+        return scan(new LoginLineScanner(0, null, (username, ipAddress, epochSeconds) -> { }), gzip, true);
+    }
+
+    private static long scan(LoginLineScanner scanner, byte[] log, boolean compressed) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(log);
+        scanner.scan(compressed ? new GZIPInputStream(in, 64 * 1024) : in);
+        return scanner.getLogins();
+    }
+}
@@ -0,0 +1,93 @@
+package net.nasheedpog.iplogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Saving and loading the whole database in both formats, in a temp directory
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PersistenceBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int users;
+
+    private PlayerDatabase database;
+    private Map<String, List<PlayerDatabase.IpEntry>> snapshot;
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        directory = Files.createTempDirectory("iplogger-bench");
+        database = new PlayerDatabase(directory);
+        SyntheticDataset.generate(users, 42).populate(database);
+        snapshot = database.snapshot();
+        // Both files exist before the first load
+        database.saveToJson();
+        database.writeSnapshot(snapshot, IpLoggerConfig.DataFormat.BINARY);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public boolean saveToJson() {
+        return database.saveToJson();
+    }
+
+    @Benchmark
+    public PlayerDatabase loadFromJson() {
+        PlayerDatabase loaded = new PlayerDatabase(directory);
+        loaded.loadFromJson();
+        return loaded;
+    }
+
+    @Benchmark
+    public boolean saveToBinary() {
+        return database.writeSnapshot(snapshot, IpLoggerConfig.DataFormat.BINARY);
+    }
+
+    @Benchmark
+    public PlayerDatabase loadFromBinary() {
+        PlayerDatabase loaded = new PlayerDatabase(directory);
+        loaded.loadFromBinary();
+        return loaded;
+    }
+
+    @Benchmark
+    public PlayerDatabase loadFromBinaryMmap() {
+        PlayerDatabase loaded = new PlayerDatabase(directory);
+        loaded.setDataFormat(IpLoggerConfig.DataFormat.BINARY, true);
+        loaded.loadFromBinary();
+        return loaded;
+    }
+}
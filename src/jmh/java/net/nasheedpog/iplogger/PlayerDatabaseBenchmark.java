@@ -0,0 +1,100 @@
+package net.nasheedpog.iplogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// The database operations behind a join and the admin commands, on a filled database
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlayerDatabaseBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int users;
+
+    private SyntheticDataset dataset;
+    private PlayerDatabase database;
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // trackPlayer prints a line per join, which would measure the console instead of the database
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        dataset = SyntheticDataset.generate(users, 42);
+        directory = Files.createTempDirectory("iplogger-bench");
+        database = new PlayerDatabase(directory);
+        dataset.populate(database);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(directory);
+    }
+
+    // Per thread, so the random picks don't contend
+    @State(Scope.Thread)
+    public static class Picks {
+        private final SplittableRandom random = new SplittableRandom(7);
+        private int next;
+
+        String username(PlayerDatabaseBenchmark benchmark) {
+            String[] usernames = benchmark.dataset.getUsernames();
+            return usernames[random.nextInt(usernames.length)];
+        }
+
+        String ipAddress(PlayerDatabaseBenchmark benchmark) {
+            String[] ipAddresses = benchmark.dataset.getIpAddresses();
+            return ipAddresses[random.nextInt(ipAddresses.length)];
+        }
+    }
+
+    // A returning player on a known IP, the most common join
+    @Benchmark
+    public void trackPlayerKnownIp(Picks picks) {
+        String username = picks.username(this);
+        String ipAddress = dataset.getFirstSeen().get(username).keySet().iterator().next();
+        database.trackPlayer(username, ipAddress, "Unknown", "2024-01-01 12:00:00");
+    }
+
+    // A player on a new IP. The entry is removed again so the database keeps its size during the run.
+    @Benchmark
+    public boolean trackPlayerNewIp(Picks picks) {
+        String username = picks.username(this);
+        String ipAddress = "198.18." + (picks.next >>> 8 & 0xff) + "." + (picks.next++ & 0xff);
+        database.trackPlayer(username, ipAddress, "Unknown", "2024-01-01 12:00:00");
+        return database.removeIpFromUser(username, ipAddress);
+    }
+
+    @Benchmark
+    public Map<String, List<String>> getDuplicateIPs() {
+        return database.getDuplicateIPs();
+    }
+
+    @Benchmark
+    public List<String> getUsersForIp(Picks picks) {
+        return database.getUsersForIp(picks.ipAddress(this));
+    }
+}
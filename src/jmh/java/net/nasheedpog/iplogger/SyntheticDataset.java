@@ -0,0 +1,99 @@
+package net.nasheedpog.iplogger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+// Made up players and IPs for the benchmarks, shaped roughly like a real server's data:
+// - most players have one or two IPs, a few have many (home, mobile, VPN, moving house)
+// - about one in six players shares a home IP with others (siblings, housemates, alts)
+// - a small pool of carrier-grade NAT and VPN exit IPs is shared by many players, which are the big rows of getDuplicateIPs
+// - about one in ten IPs is IPv6
+// The same size and seed always give the same data, so runs can be compared.
+public class SyntheticDataset {
+    private static final String[] LOCATIONS = {
+            "Berlin, Germany", "London, United Kingdom", "New York, United States", "Toronto, Canada",
+            "Sao Paulo, Brazil", "Sydney, Australia", "Warsaw, Poland", "Stockholm, Sweden", "Unknown"
+    };
+    private static final long START = 1_640_995_200L; // 2022-01-01
+    private static final long SPAN = 3L * 365 * 24 * 60 * 60;
+
+    private final Map<String, Map<String, Long>> firstSeen; // username -> ip -> epoch seconds
+    private final Map<String, String> locations = new HashMap<>();
+    private final String[] usernames;
+    private final String[] ipAddresses;
+
+    private SyntheticDataset(Map<String, Map<String, Long>> firstSeen, List<String> ipAddresses) {
+        this.firstSeen = firstSeen;
+        this.usernames = firstSeen.keySet().toArray(new String[0]);
+        this.ipAddresses = ipAddresses.toArray(new String[0]);
+    }
+
+    public static SyntheticDataset generate(int users, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        Map<String, Map<String, Long>> firstSeen = new LinkedHashMap<>(users * 2);
+        List<String> ipAddresses = new ArrayList<>(users * 2);
+        Set<String> seen = new HashSet<>(users * 2);
+        List<String> homes = new ArrayList<>(users);
+        List<String> sharedPool = new ArrayList<>();
+        for (int i = 0; i < Math.max(16, users / 2000); i++) {
+            sharedPool.add(randomIp(random));
+        }
+
+        for (int i = 0; i < users; i++) {
+            Map<String, Long> ips = new HashMap<>();
+            long time = START + random.nextLong(SPAN);
+
+            // Home IP, shared with a recent player now and then
+            String home = homes.isEmpty() || random.nextInt(6) != 0 ? randomIp(random) : homes.get(homes.size() - 1 - random.nextInt(Math.min(homes.size(), 50)));
+            homes.add(home);
+            ips.put(home, time);
+
+            // More IPs: each one with a chance of 40%, so one or two is common and seven or eight is rare
+            while (ips.size() < 8 && random.nextInt(100) < 40) {
+                time += random.nextLong(30L * 24 * 60 * 60);
+                String ipAddress = random.nextInt(10) == 0 ? sharedPool.get(random.nextInt(sharedPool.size())) : randomIp(random);
+                ips.putIfAbsent(ipAddress, time);
+            }
+
+            for (String ipAddress : ips.keySet()) {
+                if (seen.add(ipAddress)) {
+                    ipAddresses.add(ipAddress);
+                }
+            }
+            firstSeen.put(username(i), ips);
+        }
+
+        SyntheticDataset dataset = new SyntheticDataset(firstSeen, ipAddresses);
+        for (String ipAddress : dataset.ipAddresses) {
+            dataset.locations.put(ipAddress, LOCATIONS[Math.floorMod(ipAddress.hashCode(), LOCATIONS.length)]);
+        }
+        return dataset;
+    }
+
+    // Fill the database the way a log import does, without geolocation lookups or a line of output per entry
+    public void populate(PlayerDatabase database) {
+        database.mergeFirstSeen(firstSeen, locations);
+    }
+
+    public static String username(int index) {
+        return "Player_" + Integer.toString(index, 36);
+    }
+
+    private static String randomIp(SplittableRandom random) {
+        if (random.nextInt(10) == 0) {
+            return String.format("2001:db8:%x:%x::%x", random.nextInt(0x10000), random.nextInt(0x10000), random.nextInt(0x10000));
+        }
+        return (1 + random.nextInt(223)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + (1 + random.nextInt(254));
+    }
+
+    public String[] getUsernames() { return usernames; }
+    public String[] getIpAddresses() { return ipAddresses; }
+    public Map<String, Map<String, Long>> getFirstSeen() { return firstSeen; }
+    public String getLocation(String ipAddress) { return locations.get(ipAddress); }
+}
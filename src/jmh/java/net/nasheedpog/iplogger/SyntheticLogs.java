@@ -0,0 +1,71 @@
+package net.nasheedpog.iplogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.zip.GZIPOutputStream;
+
+// A server log made up from a SyntheticDataset, like the rotated logs/*.log.gz files a log import reads.
+// Only a few lines are logins; the rest is the usual chat, joins, leaves and warnings, so the prefilter has work to do.
+// Logins use both the vanilla and the Paper style prefix and IPv6 addresses are written in brackets.
+public class SyntheticLogs {
+    public static byte[] plain(SyntheticDataset dataset, int lines, long seed) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(lines * 80);
+        write(dataset, lines, seed, bytes);
+        return bytes.toByteArray();
+    }
+
+    public static byte[] gzip(SyntheticDataset dataset, int lines, long seed) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(lines * 12);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes, 64 * 1024)) {
+            write(dataset, lines, seed, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void write(SyntheticDataset dataset, int lines, long seed, OutputStream out) {
+        SplittableRandom random = new SplittableRandom(seed);
+        String[] usernames = dataset.getUsernames();
+        StringBuilder text = new StringBuilder(64 * 1024);
+        int secondOfDay = 0;
+        try {
+            for (int i = 0; i < lines; i++) {
+                secondOfDay = (secondOfDay + random.nextInt(3)) % 86_400;
+                String time = String.format("%02d:%02d:%02d", secondOfDay / 3600, secondOfDay / 60 % 60, secondOfDay % 60);
+                String username = usernames[random.nextInt(usernames.length)];
+                String prefix = random.nextInt(4) == 0 ? "[" + time + " INFO]: " : "[" + time + "] [Server thread/INFO]: ";
+                int kind = random.nextInt(100);
+                if (kind < 4) {
+                    String ipAddress = dataset.getFirstSeen().get(username).keySet().iterator().next();
+                    String address = ipAddress.indexOf(':') >= 0 ? "[" + ipAddress + "]" : ipAddress;
+                    text.append(prefix).append(username).append("[/").append(address).append(':').append(1024 + random.nextInt(60_000))
+                            .append("] logged in with entity id ").append(random.nextInt(100_000))
+                            .append(" at (").append(random.nextInt(2000) - 1000).append(".5, 64.0, ").append(random.nextInt(2000) - 1000).append(".5)");
+                } else if (kind < 8) {
+                    text.append(prefix).append(username).append(" joined the game");
+                } else if (kind < 12) {
+                    text.append(prefix).append(username).append(" lost connection: Disconnected");
+                } else if (kind < 15) {
+                    text.append("[").append(time).append("] [Server thread/WARN]: Can't keep up! Is the server overloaded? Running ")
+                            .append(2000 + random.nextInt(3000)).append("ms or ").append(40 + random.nextInt(60)).append(" ticks behind");
+                } else {
+                    text.append(prefix).append('<').append(username).append("> message number ").append(random.nextInt(1_000_000))
+                            .append(", anyone want to trade some diamonds for an elytra?");
+                }
+                text.append('\n');
+                if (text.length() > 60 * 1024) {
+                    out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+                    text.setLength(0);
+                }
+            }
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package net.nasheedpog.iplogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Binary radix (Patricia) trie over 128-bit addresses, IPv4 as IPv4-mapped IPv6 (::ffff:a.b.c.d).
+// Inner nodes only exist where two addresses branch off, so a lookup follows at most one node per differing bit
+// and a subnet query costs the prefix length plus the number of results.
+// Each address keeps the IP strings that were added for it (normally one). Not thread safe, callers lock.
+public class AddressTrie {
+    private Node root;
+    private int size;
+
+    // Returns false if the IP string was already there
+    public boolean add(long hi, long lo, String ipAddress) {
+        if (root == null) {
+            root = new Node(hi, lo, 128);
+            root.ipAddresses.add(ipAddress);
+            size++;
+            return true;
+        }
+
+        Node parent = null;
+        Node node = root;
+        while (true) {
+            int common = commonPrefix(node.hi, node.lo, hi, lo, node.prefixLength);
+            if (common < node.prefixLength) {
+                // The address branches off inside this node's prefix: put a new inner node in between
+                Node leaf = new Node(hi, lo, 128);
+                leaf.ipAddresses.add(ipAddress);
+                Node branch = new Node(hi, lo, common);
+                branch.children[bitAt(hi, lo, common)] = leaf;
+                branch.children[bitAt(node.hi, node.lo, common)] = node;
+                replaceChild(parent, node, branch);
+                size++;
+                return true;
+            }
+            if (node.prefixLength == 128) {
+                if (node.ipAddresses.contains(ipAddress)) {
+                    return false;
+                }
+                node.ipAddresses.add(ipAddress);
+                size++;
+                return true;
+            }
+            int bit = bitAt(hi, lo, node.prefixLength);
+            if (node.children[bit] == null) {
+                Node leaf = new Node(hi, lo, 128);
+                leaf.ipAddresses.add(ipAddress);
+                node.children[bit] = leaf;
+                size++;
+                return true;
+            }
+            parent = node;
+            node = node.children[bit];
+        }
+    }
+
+    // Returns false if the IP string wasn't there
+    public boolean remove(long hi, long lo, String ipAddress) {
+        Node grandparent = null;
+        Node parent = null;
+        Node node = root;
+        while (node != null && node.prefixLength < 128) {
+            if (commonPrefix(node.hi, node.lo, hi, lo, node.prefixLength) < node.prefixLength) {
+                return false;
+            }
+            grandparent = parent;
+            parent = node;
+            node = node.children[bitAt(hi, lo, node.prefixLength)];
+        }
+        if (node == null || node.hi != hi || node.lo != lo || !node.ipAddresses.remove(ipAddress)) {
+            return false;
+        }
+        size--;
+        if (!node.ipAddresses.isEmpty()) {
+            return true;
+        }
+
+        // Drop the leaf, and its parent too since an inner node with one child isn't needed
+        if (parent == null) {
+            root = null;
+            return true;
+        }
+        Node sibling = parent.children[parent.children[0] == node ? 1 : 0];
+        replaceChild(grandparent, parent, sibling);
+        return true;
+    }
+
+    // Every IP string in the subnet (first prefixLength bits equal to hi/lo), in address order
+    public List<String> inSubnet(long hi, long lo, int prefixLength) {
+        List<String> found = new ArrayList<>();
+        Node node = root;
+        while (node != null) {
+            int length = Math.min(node.prefixLength, prefixLength);
+            if (commonPrefix(node.hi, node.lo, hi, lo, length) < length) {
+                break;
+            }
+            if (node.prefixLength >= prefixLength) {
+                forEachLeaf(node, leaf -> found.addAll(leaf.ipAddresses));
+                break;
+            }
+            node = node.children[bitAt(hi, lo, node.prefixLength)];
+        }
+        return found;
+    }
+
+    // Every address in address order. action gets the address and its IP strings (a live list, don't keep it).
+    public void forEach(AddressConsumer action) {
+        if (root != null) {
+            forEachLeaf(root, leaf -> action.accept(leaf.hi, leaf.lo, leaf.ipAddresses));
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public interface AddressConsumer {
+        void accept(long hi, long lo, List<String> ipAddresses);
+    }
+
+    // Iterative, the trie can be up to 128 levels deep
+    private static void forEachLeaf(Node start, Consumer<Node> action) {
+        List<Node> stack = new ArrayList<>();
+        stack.add(start);
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            if (node.prefixLength == 128) {
+                action.accept(node);
+                continue;
+            }
+            // Pushed in reverse so the 0 side comes out first
+            if (node.children[1] != null) {
+                stack.add(node.children[1]);
+            }
+            if (node.children[0] != null) {
+                stack.add(node.children[0]);
+            }
+        }
+    }
+
+    private void replaceChild(Node parent, Node oldChild, Node newChild) {
+        if (parent == null) {
+            root = newChild;
+        } else {
+            parent.children[parent.children[0] == oldChild ? 0 : 1] = newChild;
+        }
+    }
+
+    // Number of equal leading bits, at most limit
+    static int commonPrefix(long hi1, long lo1, long hi2, long lo2, int limit) {
+        long diff = hi1 ^ hi2;
+        int common = diff != 0 ? Long.numberOfLeadingZeros(diff) : 64 + Long.numberOfLeadingZeros(lo1 ^ lo2);
+        return Math.min(common, limit);
+    }
+
+    static int bitAt(long hi, long lo, int index) {
+        return (int) (index < 64 ? (hi >>> (63 - index)) & 1 : (lo >>> (127 - index)) & 1);
+    }
+
+    private static class Node {
+        private final long hi;
+        private final long lo;
+        private final int prefixLength; // 128 for a leaf
+        private final Node[] children;
+        private final List<String> ipAddresses;
+
+        private Node(long hi, long lo, int prefixLength) {
+            this.hi = hi;
+            this.lo = lo;
+            this.prefixLength = prefixLength;
+            this.children = prefixLength == 128 ? null : new Node[2];
+            this.ipAddresses = prefixLength == 128 ? new ArrayList<>(1) : null;
+        }
+    }
+}
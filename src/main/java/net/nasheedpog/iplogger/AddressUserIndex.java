@@ -0,0 +1,375 @@
+package net.nasheedpog.iplogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// IP -> users index small enough to keep every player's IPs in memory (used by ShardedPlayerStore).
+// Addresses are keyed by their 128-bit number like in IpEntry and AddressTrie (IPv4 as IPv4-mapped IPv6), in an open
+// addressing table of primitive arrays, and users by a number, so neither an IP nor a username is kept as a String
+// per entry. The few IPs IpEntry keeps as text (not an address, or not in canonical form) are in a map of their own.
+// A user's number is given out when the user gets its first IP and reused once the user has none left.
+// Not thread safe, callers lock.
+//
+// File layout (big endian): int magic "IPLX", short version, int shard count, int user count, usernames (UTF),
+// int address count, per address: long hi, long lo, users; int text IP count, per IP: UTF, users.
+// users: int count, int user numbers.
+public class AddressUserIndex {
+    private static final int MAGIC = 0x49504C58; // "IPLX"
+    private static final short VERSION = 1;
+
+    // Linear probing, users[slot] == null is a free slot. The user arrays are replaced on change.
+    private long[] his = new long[64];
+    private long[] los = new long[64];
+    private int[][] users = new int[64][];
+    private int addressCount;
+    private final Map<String, int[]> textUsers = new HashMap<>();
+
+    private final Map<String, Integer> userIds = new HashMap<>();
+    private String[] userNames = new String[64]; // by number, null if free
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId;
+
+    public boolean containsUser(String username) {
+        return userIds.containsKey(username);
+    }
+
+    public int userCount() {
+        return userIds.size();
+    }
+
+    public int ipCount() {
+        return addressCount + textUsers.size();
+    }
+
+    public Set<String> getUsernames() {
+        return new HashSet<>(userIds.keySet());
+    }
+
+    // Add the user to the entry's IP. Returns false if the user already had it.
+    public boolean add(String username, PlayerDatabase.IpEntry ipEntry) {
+        int id = userIdOf(username);
+        String text = ipEntry.getRawIp();
+        if (text != null) {
+            int[] current = textUsers.get(text);
+            if (indexOf(current, id) >= 0) {
+                return false;
+            }
+            textUsers.put(text, appended(current, id));
+            return true;
+        }
+        long hi = ipEntry.getIpHigh();
+        long lo = ipEntry.getIpLow();
+        int slot = find(hi, lo);
+        if (users[slot] == null) {
+            his[slot] = hi;
+            los[slot] = lo;
+            users[slot] = new int[] {id};
+            if (++addressCount * 4 > users.length * 3) {
+                resize(users.length * 2);
+            }
+            return true;
+        }
+        if (indexOf(users[slot], id) >= 0) {
+            return false;
+        }
+        users[slot] = appended(users[slot], id);
+        return true;
+    }
+
+    // Remove the user from the entry's IP. Returns false if the user didn't have it.
+    public boolean remove(String username, PlayerDatabase.IpEntry ipEntry) {
+        Integer id = userIds.get(username);
+        if (id == null) {
+            return false;
+        }
+        String text = ipEntry.getRawIp();
+        if (text != null) {
+            int[] current = textUsers.get(text);
+            int at = indexOf(current, id);
+            if (at < 0) {
+                return false;
+            }
+            if (current.length == 1) {
+                textUsers.remove(text);
+            } else {
+                textUsers.put(text, without(current, at));
+            }
+            return true;
+        }
+        int slot = find(ipEntry.getIpHigh(), ipEntry.getIpLow());
+        int at = indexOf(users[slot], id);
+        if (at < 0) {
+            return false;
+        }
+        if (users[slot].length == 1) {
+            deleteSlot(slot);
+        } else {
+            users[slot] = without(users[slot], at);
+        }
+        return true;
+    }
+
+    // Forget a user that has no IPs left, so its number can be reused
+    public void removeUser(String username) {
+        Integer id = userIds.remove(username);
+        if (id == null) {
+            return;
+        }
+        userNames[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    // Users of an IP in the order they were added, empty if nobody has it
+    public List<String> getUsers(String ipAddress) {
+        PlayerDatabase.IpEntry key = new PlayerDatabase.IpEntry(ipAddress, null, null); // the IP as IpEntry stores it
+        int[] ids;
+        if (key.getRawIp() != null) {
+            ids = textUsers.get(key.getRawIp());
+        } else {
+            ids = users[find(key.getIpHigh(), key.getIpLow())];
+        }
+        return namesOf(ids);
+    }
+
+    public Set<String> getAllIPs() {
+        Set<String> ips = new HashSet<>(ipCount() * 2);
+        for (int slot = 0; slot < users.length; slot++) {
+            if (users[slot] != null) {
+                ips.add(PlayerDatabase.IpEntry.formatIp(his[slot], los[slot]));
+            }
+        }
+        ips.addAll(textUsers.keySet());
+        return ips;
+    }
+
+    // IP -> users, for the IPs with more than one user
+    public Map<String, List<String>> getDuplicates() {
+        Map<String, List<String>> duplicates = new HashMap<>();
+        for (int slot = 0; slot < users.length; slot++) {
+            if (users[slot] != null && users[slot].length > 1) {
+                duplicates.put(PlayerDatabase.IpEntry.formatIp(his[slot], los[slot]), namesOf(users[slot]));
+            }
+        }
+        textUsers.forEach((ipAddress, ids) -> {
+            if (ids.length > 1) {
+                duplicates.put(ipAddress, namesOf(ids));
+            }
+        });
+        return duplicates;
+    }
+
+    private int userIdOf(String username) {
+        Integer existing = userIds.get(username);
+        if (existing != null) {
+            return existing;
+        }
+        int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        if (id >= userNames.length) {
+            userNames = Arrays.copyOf(userNames, userNames.length * 2);
+        }
+        userNames[id] = username;
+        userIds.put(username, id);
+        return id;
+    }
+
+    private List<String> namesOf(int[] ids) {
+        List<String> names = new ArrayList<>(ids == null ? 0 : ids.length);
+        if (ids != null) {
+            for (int id : ids) {
+                names.add(userNames[id]);
+            }
+        }
+        return names;
+    }
+
+    // The address's slot, or the free slot where it would go
+    private int find(long hi, long lo) {
+        int mask = users.length - 1;
+        int slot = home(hi, lo, mask);
+        while (users[slot] != null && (his[slot] != hi || los[slot] != lo)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int home(long hi, long lo, int mask) {
+        long hash = (hi * 0x9E3779B97F4A7C15L) ^ lo;
+        hash = (hash ^ (hash >>> 31)) * 0xBF58476D1CE4E5B9L;
+        return (int) (hash ^ (hash >>> 29)) & mask;
+    }
+
+    // Free a slot and move later entries of the same probe run back into it, so lookups never need tombstones
+    private void deleteSlot(int slot) {
+        int mask = users.length - 1;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (users[next] == null) {
+                break;
+            }
+            int home = home(his[next], los[next], mask);
+            // The entry may move into the hole if its home isn't between the hole and where it is now
+            boolean between = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (!between) {
+                his[hole] = his[next];
+                los[hole] = los[next];
+                users[hole] = users[next];
+                hole = next;
+            }
+        }
+        users[hole] = null;
+        his[hole] = 0;
+        los[hole] = 0;
+        addressCount--;
+    }
+
+    private void resize(int capacity) {
+        long[] oldHis = his;
+        long[] oldLos = los;
+        int[][] oldUsers = users;
+        his = new long[capacity];
+        los = new long[capacity];
+        users = new int[capacity][];
+        for (int i = 0; i < oldUsers.length; i++) {
+            if (oldUsers[i] != null) {
+                int slot = find(oldHis[i], oldLos[i]);
+                his[slot] = oldHis[i];
+                los[slot] = oldLos[i];
+                users[slot] = oldUsers[i];
+            }
+        }
+    }
+
+    private static int indexOf(int[] ids, int id) {
+        if (ids != null) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == id) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int[] appended(int[] ids, int id) {
+        if (ids == null) {
+            return new int[] {id};
+        }
+        int[] updated = Arrays.copyOf(ids, ids.length + 1);
+        updated[ids.length] = id;
+        return updated;
+    }
+
+    private static int[] without(int[] ids, int at) {
+        int[] updated = new int[ids.length - 1];
+        System.arraycopy(ids, 0, updated, 0, at);
+        System.arraycopy(ids, at + 1, updated, at, ids.length - at - 1);
+        return updated;
+    }
+
+    // Persistence, so a restart doesn't have to read every shard to build the index
+
+    public void write(Path file, int shardCount) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(shardCount);
+            // Users renumbered without the free numbers
+            int[] newIds = new int[nextId];
+            out.writeInt(userIds.size());
+            int written = 0;
+            for (int id = 0; id < nextId; id++) {
+                if (userNames[id] != null) {
+                    newIds[id] = written++;
+                    out.writeUTF(userNames[id]);
+                }
+            }
+            out.writeInt(addressCount);
+            for (int slot = 0; slot < users.length; slot++) {
+                if (users[slot] != null) {
+                    out.writeLong(his[slot]);
+                    out.writeLong(los[slot]);
+                    writeUsers(out, users[slot], newIds);
+                }
+            }
+            out.writeInt(textUsers.size());
+            for (Map.Entry<String, int[]> entry : textUsers.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeUsers(out, entry.getValue(), newIds);
+            }
+        }
+    }
+
+    private static void writeUsers(DataOutputStream out, int[] ids, int[] newIds) throws IOException {
+        out.writeInt(ids.length);
+        for (int id : ids) {
+            out.writeInt(newIds[id]);
+        }
+    }
+
+    // Returns null if the file was written for another shard count
+    public static AddressUserIndex read(Path file, int shardCount) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                throw new IOException("Not an IpLogger index file: " + file);
+            }
+            if (in.readInt() != shardCount) {
+                return null;
+            }
+            AddressUserIndex index = new AddressUserIndex();
+            int userCount = in.readInt();
+            index.userNames = new String[Math.max(64, Integer.highestOneBit(Math.max(1, userCount)) * 2)];
+            for (int id = 0; id < userCount; id++) {
+                String username = in.readUTF();
+                index.userNames[id] = username;
+                index.userIds.put(username, id);
+            }
+            index.nextId = userCount;
+
+            int addressCount = in.readInt();
+            index.resize(Math.max(64, Integer.highestOneBit(Math.max(1, addressCount)) * 4));
+            for (int i = 0; i < addressCount; i++) {
+                long hi = in.readLong();
+                long lo = in.readLong();
+                int slot = index.find(hi, lo);
+                index.his[slot] = hi;
+                index.los[slot] = lo;
+                index.users[slot] = readUsers(in, userCount);
+            }
+            index.addressCount = addressCount;
+            int textCount = in.readInt();
+            for (int i = 0; i < textCount; i++) {
+                index.textUsers.put(in.readUTF(), readUsers(in, userCount));
+            }
+            return index;
+        }
+    }
+
+    private static int[] readUsers(DataInputStream in, int userCount) throws IOException {
+        int[] ids = new int[in.readInt()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = in.readInt();
+            if (ids[i] < 0 || ids[i] >= userCount) {
+                throw new IOException("Corrupt IpLogger index file, user " + ids[i] + " of " + userCount);
+            }
+        }
+        return ids;
+    }
+}
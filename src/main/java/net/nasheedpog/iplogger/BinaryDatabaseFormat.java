@@ -0,0 +1,267 @@
+package net.nasheedpog.iplogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary file format for the player database (IpLoggerData.bin).
+//
+// Layout (big endian):
+//   int magic "IPLG", short version
+//   int username count, usernames (dictionary)
+//   int country count, countries (dictionary)
+//   per username, in dictionary order: int entry count, entries
+//   entry: byte flags, address, timestamp, int country id (-1 = none)
+//     address:   IPv4 -> int, IPv6 -> two longs, otherwise a string
+//     timestamp: epoch seconds as a long (the "yyyy-MM-dd HH:mm:ss" wall clock time read as UTC), otherwise a string
+//   strings: int byte length (-1 = null) + UTF-8 bytes
+//
+// Addresses and timestamps are stored as numbers whenever IpEntry holds them as numbers. IpEntry only does that if they
+// turn back into exactly the same string, so a JSON -> binary -> JSON round trip never changes the data.
+public final class BinaryDatabaseFormat {
+    private static final int MAGIC = 0x49504C47; // "IPLG"
+    private static final short VERSION = 1;
+
+    private static final int ADDRESS_IPV4 = 1;
+    private static final int ADDRESS_IPV6 = 2;
+    private static final int ADDRESS_STRING = 3;
+    private static final int ADDRESS_MASK = 0x03;
+    private static final int TIMESTAMP_STRING = 0x04; // set when the timestamp is stored as a string
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private BinaryDatabaseFormat() {
+    }
+
+    // Returns the number of bytes written
+    public static long write(Path file, Map<String, List<PlayerDatabase.IpEntry>> players) throws IOException {
+        // Build the country dictionary
+        Map<String, Integer> countryIds = new HashMap<>();
+        List<String> countries = new ArrayList<>();
+        for (List<PlayerDatabase.IpEntry> ipEntries : players.values()) {
+            for (PlayerDatabase.IpEntry ipEntry : ipEntries) {
+                String location = ipEntry.getLocation();
+                if (location != null && !countryIds.containsKey(location)) {
+                    countryIds.put(location, countries.size());
+                    countries.add(location);
+                }
+            }
+        }
+        List<String> usernames = new ArrayList<>(players.keySet());
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ChannelWriter out = new ChannelWriter(channel);
+            out.putInt(MAGIC);
+            out.putShort(VERSION);
+
+            out.putInt(usernames.size());
+            for (String username : usernames) {
+                out.putString(username);
+            }
+            out.putInt(countries.size());
+            for (String country : countries) {
+                out.putString(country);
+            }
+
+            for (String username : usernames) {
+                List<PlayerDatabase.IpEntry> ipEntries = players.get(username);
+                out.putInt(ipEntries.size());
+                for (PlayerDatabase.IpEntry ipEntry : ipEntries) {
+                    writeEntry(out, ipEntry, countryIds);
+                }
+            }
+
+            out.flush();
+            channel.force(true);
+            return channel.size();
+        }
+    }
+
+    private static void writeEntry(ChannelWriter out, PlayerDatabase.IpEntry ipEntry, Map<String, Integer> countryIds) throws IOException {
+        // IpEntry already holds the numbers, and only keeps a String when the number wouldn't give back the same text
+        int flags;
+        if (ipEntry.getRawIp() != null) {
+            flags = ADDRESS_STRING;
+        } else if (IpAddresses.isIpv4Mapped(ipEntry.getIpHigh(), ipEntry.getIpLow())) {
+            flags = ADDRESS_IPV4;
+        } else {
+            flags = ADDRESS_IPV6;
+        }
+        if (ipEntry.getEpochSeconds() == PlayerDatabase.IpEntry.NO_EPOCH) {
+            flags |= TIMESTAMP_STRING;
+        }
+
+        out.putByte(flags);
+        switch (flags & ADDRESS_MASK) {
+            case ADDRESS_IPV4 -> out.putInt((int) ipEntry.getIpLow());
+            case ADDRESS_IPV6 -> {
+                out.putLong(ipEntry.getIpHigh());
+                out.putLong(ipEntry.getIpLow());
+            }
+            default -> out.putString(ipEntry.getRawIp());
+        }
+        if ((flags & TIMESTAMP_STRING) != 0) {
+            out.putString(ipEntry.getRawTimestamp());
+        } else {
+            out.putLong(ipEntry.getEpochSeconds());
+        }
+        String location = ipEntry.getLocation();
+        out.putInt(location == null ? -1 : countryIds.get(location));
+    }
+
+    // Read a file written by write(). With useMmap the file is memory-mapped instead of read into the heap.
+    public static Map<String, List<PlayerDatabase.IpEntry>> read(Path file, boolean useMmap) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Database file too large: " + size + " bytes");
+            }
+            if (useMmap) {
+                in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                in = ByteBuffer.allocate((int) size);
+                while (in.hasRemaining() && channel.read(in) >= 0) {
+                    // read the whole file
+                }
+                in.flip();
+            }
+        }
+
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not an IpLogger database file: " + file);
+            }
+            short version = in.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported IpLogger database version " + version + " in " + file);
+            }
+
+            String[] usernames = new String[in.getInt()];
+            for (int i = 0; i < usernames.length; i++) {
+                usernames[i] = getString(in);
+            }
+            String[] countries = new String[in.getInt()];
+            for (int i = 0; i < countries.length; i++) {
+                countries[i] = getString(in).intern(); // one shared String per country
+            }
+
+            Map<String, List<PlayerDatabase.IpEntry>> players = new LinkedHashMap<>(usernames.length * 2);
+            for (String username : usernames) {
+                int entryCount = in.getInt();
+                List<PlayerDatabase.IpEntry> ipEntries = new ArrayList<>(entryCount);
+                for (int i = 0; i < entryCount; i++) {
+                    ipEntries.add(readEntry(in, countries));
+                }
+                players.put(username, ipEntries);
+            }
+            return players;
+        } catch (RuntimeException e) {
+            // BufferUnderflowException, bad dictionary ids, ...
+            throw new IOException("Corrupt IpLogger database file: " + file, e);
+        }
+    }
+
+    private static PlayerDatabase.IpEntry readEntry(ByteBuffer in, String[] countries) {
+        int flags = in.get();
+        long ipHigh = 0;
+        long ipLow = 0;
+        String rawIp = null;
+        switch (flags & ADDRESS_MASK) {
+            case ADDRESS_IPV4 -> ipLow = 0xFFFF00000000L | (in.getInt() & 0xFFFFFFFFL);
+            case ADDRESS_IPV6 -> {
+                ipHigh = in.getLong();
+                ipLow = in.getLong();
+            }
+            default -> rawIp = getString(in);
+        }
+
+        long epochSeconds = PlayerDatabase.IpEntry.NO_EPOCH;
+        String rawTimestamp = null;
+        if ((flags & TIMESTAMP_STRING) != 0) {
+            rawTimestamp = getString(in);
+        } else {
+            epochSeconds = in.getLong();
+        }
+        int countryId = in.getInt();
+        return new PlayerDatabase.IpEntry(ipHigh, ipLow, rawIp, epochSeconds, rawTimestamp, countryId < 0 ? null : countries[countryId]);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Buffered writes to a FileChannel through one reusable direct buffer
+    private static class ChannelWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private ChannelWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void putByte(int value) throws IOException {
+            ensure(1);
+            buffer.put((byte) value);
+        }
+
+        private void putShort(short value) throws IOException {
+            ensure(2);
+            buffer.putShort(value);
+        }
+
+        private void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        private void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        private void putString(String value) throws IOException {
+            if (value == null) {
+                putInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensure(1);
+                int chunk = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, chunk);
+                offset += chunk;
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
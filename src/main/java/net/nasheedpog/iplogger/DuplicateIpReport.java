@@ -0,0 +1,123 @@
+package net.nasheedpog.iplogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The list behind getDuplicateIPs, kept ready so the command doesn't have to go through the whole database.
+// Which IPs are shared is kept up to date from the database's change notifications, one IP per change.
+// The sorted rows are only rebuilt when a shared IP changed since they were last asked for, and each sort order
+// is cached separately.
+public class DuplicateIpReport implements PlayerDatabase.ChangeListener {
+    public enum Sort {
+        USERS,      // most users first
+        FIRST_SEEN  // most recently first seen first
+    }
+
+    private final PlayerDatabase database;
+    private final Set<String> duplicateIps = ConcurrentHashMap.newKeySet();
+    private final AtomicLong version = new AtomicLong();
+    private final Map<Sort, List<Row>> sortedRows = new EnumMap<>(Sort.class); // guarded by this
+    private final Map<Sort, Long> sortedVersions = new EnumMap<>(Sort.class); // guarded by this
+
+    public DuplicateIpReport(PlayerDatabase database) {
+        this.database = database;
+        duplicateIps.addAll(database.getDuplicateIPs().keySet());
+    }
+
+    @Override
+    public void entryChanged(String username, PlayerDatabase.IpEntry ipEntry) {
+        update(ipEntry.getIp());
+    }
+
+    @Override
+    public void entryRemoved(String username, String ipAddress) {
+        update(ipAddress);
+    }
+
+    // Changes to IPs that weren't and still aren't shared don't touch the report
+    private void update(String ipAddress) {
+        boolean changed;
+        if (database.getUsersForIp(ipAddress).size() > 1) {
+            duplicateIps.add(ipAddress);
+            changed = true; // a new shared IP, or a user of one changed
+        } else {
+            changed = duplicateIps.remove(ipAddress);
+        }
+        if (changed) {
+            version.incrementAndGet();
+        }
+    }
+
+    public int size() {
+        return duplicateIps.size();
+    }
+
+    // All shared IPs in the given order. The list is immutable and reused until the next relevant change.
+    public synchronized List<Row> getRows(Sort sort) {
+        long current = version.get();
+        Long cachedVersion = sortedVersions.get(sort);
+        if (cachedVersion != null && cachedVersion == current) {
+            return sortedRows.get(sort);
+        }
+
+        List<Row> rows = new ArrayList<>(duplicateIps.size());
+        for (String ipAddress : duplicateIps) {
+            Map<String, PlayerDatabase.IpEntry> users = database.getUserEntriesForIp(ipAddress);
+            if (users.size() > 1) {
+                rows.add(new Row(ipAddress, users));
+            }
+        }
+        rows.sort(sort == Sort.USERS ? Row.BY_USERS : Row.BY_FIRST_SEEN);
+        List<Row> result = Collections.unmodifiableList(rows);
+        sortedRows.put(sort, result);
+        sortedVersions.put(sort, current);
+        return result;
+    }
+
+    // One shared IP with its users in the order they were first seen on it
+    public static class Row {
+        private static final Comparator<Row> BY_USERS = Comparator.comparingInt((Row row) -> row.users.size()).reversed()
+                .thenComparing(row -> row.ipAddress);
+        // Rows without a parseable time go last
+        private static final Comparator<Row> BY_FIRST_SEEN = Comparator.comparingLong((Row row) -> row.firstSeen == PlayerDatabase.IpEntry.NO_EPOCH ? Long.MIN_VALUE : row.firstSeen).reversed()
+                .thenComparing(row -> row.ipAddress);
+
+        private final String ipAddress;
+        private final List<Map.Entry<String, PlayerDatabase.IpEntry>> users;
+        private final String location;
+        private final long firstSeen;
+
+        private Row(String ipAddress, Map<String, PlayerDatabase.IpEntry> usersForIp) {
+            List<Map.Entry<String, PlayerDatabase.IpEntry>> sortedUsers = new ArrayList<>(usersForIp.entrySet());
+            sortedUsers.sort((a, b) -> a.getValue().compareTimeTo(b.getValue()));
+            String rowLocation = "";
+            long earliest = PlayerDatabase.IpEntry.NO_EPOCH;
+            for (Map.Entry<String, PlayerDatabase.IpEntry> user : sortedUsers) {
+                PlayerDatabase.IpEntry ipEntry = user.getValue();
+                if (rowLocation.isEmpty() && ipEntry.getLocation() != null) {
+                    rowLocation = ipEntry.getLocation();
+                }
+                if (ipEntry.getEpochSeconds() != PlayerDatabase.IpEntry.NO_EPOCH
+                        && (earliest == PlayerDatabase.IpEntry.NO_EPOCH || ipEntry.getEpochSeconds() < earliest)) {
+                    earliest = ipEntry.getEpochSeconds();
+                }
+            }
+            this.ipAddress = ipAddress;
+            this.users = Collections.unmodifiableList(sortedUsers);
+            this.location = rowLocation;
+            this.firstSeen = earliest;
+        }
+
+        public String getIpAddress() { return ipAddress; }
+        public List<Map.Entry<String, PlayerDatabase.IpEntry>> getUsers() { return users; }
+        public String getLocation() { return location; }
+        public long getFirstSeen() { return firstSeen; }
+    }
+}
@@ -0,0 +1,165 @@
+package net.nasheedpog.iplogger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nasheedpog.iplogger.IpLogger.debugMode;
+
+// LRU cache in front of the geolocation lookup.
+// Successful lookups are kept for geoCacheTtlHours, failed lookups ("") only for geoCacheNegativeTtlSeconds,
+// so a dead API isn't asked again for every join but is retried soon after it comes back.
+public class GeolocationCache {
+    private static final String CACHE_FILE = "config/iplogger/GeolocationCache.json";
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final LinkedHashMap<String, CacheEntry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public GeolocationCache(IpLoggerConfig config) {
+        this.maxEntries = Math.max(1, config.geoCacheMaxEntries);
+        this.ttlMillis = TimeUnit.HOURS.toMillis(config.geoCacheTtlHours);
+        this.negativeTtlMillis = TimeUnit.SECONDS.toMillis(config.geoCacheNegativeTtlSeconds);
+        // Access-ordered map, so the eldest entry is always the least recently used one
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Returns the cached location ("" for a cached failure), or null if the IP has to be looked up
+    public synchronized String get(String ipAddress) {
+        CacheEntry entry = entries.get(ipAddress);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(ipAddress);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (entry.location.isEmpty()) {
+            negativeHits.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry.location;
+    }
+
+    public synchronized void put(String ipAddress, String location) {
+        if (location == null) {
+            location = "";
+        }
+        long ttl = location.isEmpty() ? negativeTtlMillis : ttlMillis;
+        entries.put(ipAddress, new CacheEntry(ipAddress, location, System.currentTimeMillis() + ttl));
+    }
+
+    // Fill the cache with locations that are already stored in the player database. Existing entries are kept.
+    public synchronized int seed(Map<String, String> knownLocations) {
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        int added = 0;
+        for (Map.Entry<String, String> known : knownLocations.entrySet()) {
+            String location = known.getValue();
+            if (location == null || location.isEmpty() || entries.containsKey(known.getKey())) {
+                continue;
+            }
+            entries.put(known.getKey(), new CacheEntry(known.getKey(), location, expiresAt));
+            added++;
+        }
+        if (debugMode) {
+            System.out.println("[IpLogger_debug] Seeded geolocation cache with " + added + " locations from the database.");
+        }
+        return added;
+    }
+
+    public void loadFromJson() {
+        if (!Files.exists(Paths.get(CACHE_FILE))) {
+            return;
+        }
+
+        try (FileReader reader = new FileReader(CACHE_FILE)) {
+            Type type = new TypeToken<List<CacheEntry>>() {}.getType();
+            List<CacheEntry> loaded = new Gson().fromJson(reader, type);
+            if (loaded == null) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                for (CacheEntry entry : loaded) {
+                    if (entry.ip != null && entry.location != null && entry.expiresAt > now) {
+                        entries.put(entry.ip, entry);
+                    }
+                }
+            }
+            System.out.println("[IpLogger] Loaded " + size() + " cached geolocations.");
+        } catch (IOException | JsonParseException e) {
+            System.out.println("[IpLogger] Error loading geolocation cache.");
+            e.printStackTrace();
+        }
+    }
+
+    public void saveToJson() {
+        List<CacheEntry> snapshot;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            snapshot = new ArrayList<>(entries.size());
+            for (CacheEntry entry : entries.values()) {
+                if (entry.expiresAt > now) {
+                    snapshot.add(entry);
+                }
+            }
+        }
+
+        try (FileWriter writer = new FileWriter(CACHE_FILE)) {
+            new Gson().toJson(snapshot, writer);
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error saving geolocation cache.");
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized int size() { return entries.size(); }
+    public long getHits() { return hits.get(); }
+    public long getNegativeHits() { return negativeHits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getEvictions() { return evictions.get(); }
+
+    private static class CacheEntry {
+        private final String ip;
+        private final String location;
+        private final long expiresAt;
+
+        private CacheEntry(String ip, String location, long expiresAt) {
+            this.ip = ip;
+            this.location = location;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
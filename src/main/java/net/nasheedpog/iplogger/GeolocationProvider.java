@@ -0,0 +1,7 @@
+package net.nasheedpog.iplogger;
+
+// Something that can turn an IP address into a location (country name)
+public interface GeolocationProvider {
+    // Returns the location, or "" if it couldn't be found
+    String locate(String ipAddress);
+}
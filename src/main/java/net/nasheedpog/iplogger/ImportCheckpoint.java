@@ -0,0 +1,97 @@
+package net.nasheedpog.iplogger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+// Remembers which log archives buildFromPastLogs has already imported, so the next run only reads new ones.
+// A file counts as imported if its name, size and last modified time all match what was recorded.
+public class ImportCheckpoint {
+    private static final String CHECKPOINT_FILE = "config/iplogger/ImportCheckpoint.json";
+
+    private final Map<String, FileState> files = new HashMap<>();
+
+    public static ImportCheckpoint load() {
+        ImportCheckpoint checkpoint = new ImportCheckpoint();
+        if (!Files.exists(Paths.get(CHECKPOINT_FILE))) {
+            return checkpoint;
+        }
+
+        try (FileReader reader = new FileReader(CHECKPOINT_FILE)) {
+            Type type = new TypeToken<Map<String, FileState>>() {}.getType();
+            Map<String, FileState> loaded = new Gson().fromJson(reader, type);
+            if (loaded != null) {
+                checkpoint.files.putAll(loaded);
+            }
+        } catch (IOException | JsonParseException e) {
+            System.out.println("[IpLogger] Error loading import checkpoint, all log files will be imported again.");
+            e.printStackTrace();
+        }
+        return checkpoint;
+    }
+
+    public synchronized boolean isImported(Path logFile) {
+        FileState recorded = files.get(logFile.getFileName().toString());
+        FileState current = FileState.of(logFile);
+        return recorded != null && current != null && recorded.size == current.size && recorded.lastModified == current.lastModified;
+    }
+
+    public synchronized void markImported(Path logFile) {
+        FileState current = FileState.of(logFile);
+        if (current != null) {
+            files.put(logFile.getFileName().toString(), current);
+        }
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    // Written to a temp file first, so a crash can't leave a half written checkpoint behind
+    public synchronized void save() {
+        Path file = Paths.get(CHECKPOINT_FILE);
+        Path temp = Paths.get(CHECKPOINT_FILE + ".tmp");
+        try (FileWriter writer = new FileWriter(temp.toFile())) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(files, writer);
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error saving import checkpoint.");
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error saving import checkpoint.");
+            e.printStackTrace();
+        }
+    }
+
+    private static class FileState {
+        private final long size;
+        private final long lastModified;
+
+        private FileState(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        private static FileState of(Path logFile) {
+            try {
+                return new FileState(Files.size(logFile), Files.getLastModifiedTime(logFile).toMillis());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package net.nasheedpog.iplogger;
+
+// Conversion between IP address strings and numbers. Parsing doesn't allocate.
+// IPv4 addresses become an unsigned 32-bit value, IPv6 addresses two longs (high and low 64 bits).
+public final class IpAddresses {
+    private IpAddresses() {
+    }
+
+    // Returns the address as an unsigned value in the low 32 bits, or -1 if it isn't a valid dotted IPv4 address
+    public static long parseIpv4(CharSequence text) {
+        return parseIpv4(text, 0, text.length());
+    }
+
+    public static long parseIpv4(CharSequence text, int start, int end) {
+        long result = 0;
+        int octets = 0;
+        int i = start;
+
+        while (i < end) {
+            int value = 0;
+            int digits = 0;
+            while (i < end) {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+                digits++;
+                i++;
+            }
+            if (digits == 0 || digits > 3 || value > 255) {
+                return -1;
+            }
+            result = (result << 8) | value;
+            octets++;
+
+            if (i == end) {
+                break;
+            }
+            if (text.charAt(i) != '.' || octets == 4) {
+                return -1;
+            }
+            i++;
+            if (i == end) {
+                return -1; // trailing dot
+            }
+        }
+        return octets == 4 ? result : -1;
+    }
+
+    // Parses an IPv6 address (with optional brackets, zone id, "::" and an embedded IPv4 tail) into out[0] (high) and out[1] (low)
+    public static boolean parseIpv6(CharSequence text, long[] out) {
+        int start = 0;
+        int end = text.length();
+        if (end > start && text.charAt(start) == '[') {
+            if (text.charAt(end - 1) != ']') {
+                return false;
+            }
+            start++;
+            end--;
+        }
+        for (int k = start; k < end; k++) {
+            if (text.charAt(k) == '%') {
+                end = k; // drop the zone id
+                break;
+            }
+        }
+        if (start == end) {
+            return false;
+        }
+
+        long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+        int headCount = 0, tailCount = 0;
+        boolean inTail = false;
+        int i = start;
+
+        if (text.charAt(i) == ':') {
+            if (i + 1 >= end || text.charAt(i + 1) != ':') {
+                return false;
+            }
+            inTail = true;
+            i += 2;
+        }
+
+        while (i < end) {
+            int value = 0;
+            int digits = 0;
+            int j = i;
+            while (j < end) {
+                int digit = Character.digit(text.charAt(j), 16);
+                if (digit < 0) {
+                    break;
+                }
+                value = (value << 4) | digit;
+                digits++;
+                j++;
+            }
+
+            if (j < end && text.charAt(j) == '.') {
+                // Embedded IPv4 address, takes the last two groups
+                long ipv4 = parseIpv4(text, i, end);
+                if (ipv4 < 0) {
+                    return false;
+                }
+                for (int half = 1; half >= 0; half--) {
+                    long group = (ipv4 >>> (16 * half)) & 0xFFFF;
+                    if (inTail) {
+                        tailHi = (tailHi << 16) | (tailLo >>> 48);
+                        tailLo = (tailLo << 16) | group;
+                        tailCount++;
+                    } else {
+                        headHi = (headHi << 16) | (headLo >>> 48);
+                        headLo = (headLo << 16) | group;
+                        headCount++;
+                    }
+                }
+                break;
+            }
+
+            if (digits == 0 || digits > 4) {
+                return false;
+            }
+            if (inTail) {
+                tailHi = (tailHi << 16) | (tailLo >>> 48);
+                tailLo = (tailLo << 16) | value;
+                tailCount++;
+            } else {
+                headHi = (headHi << 16) | (headLo >>> 48);
+                headLo = (headLo << 16) | value;
+                headCount++;
+            }
+            if (headCount + tailCount > 8) {
+                return false;
+            }
+
+            if (j == end) {
+                break;
+            }
+            if (text.charAt(j) != ':') {
+                return false;
+            }
+            j++;
+            if (j < end && text.charAt(j) == ':') {
+                if (inTail) {
+                    return false; // only one "::" allowed
+                }
+                inTail = true;
+                j++;
+            } else if (j == end) {
+                return false; // trailing single colon
+            }
+            i = j;
+        }
+
+        if (inTail ? headCount + tailCount > 7 : headCount != 8) {
+            return false;
+        }
+
+        // Move the groups before "::" to the top, the groups after it are already aligned at the bottom
+        for (int shift = headCount; shift < 8; shift++) {
+            headHi = (headHi << 16) | (headLo >>> 48);
+            headLo = headLo << 16;
+        }
+        out[0] = headHi | tailHi;
+        out[1] = headLo | tailLo;
+        return true;
+    }
+
+    // Parses an IPv4 or IPv6 address into out[0] (high) and out[1] (low), IPv4 as an IPv4-mapped address
+    public static boolean parseAddress(CharSequence text, long[] out) {
+        long ipv4 = parseIpv4(text);
+        if (ipv4 >= 0) {
+            out[0] = 0;
+            out[1] = 0xFFFF00000000L | ipv4;
+            return true;
+        }
+        return parseIpv6(text, out);
+    }
+
+    // Parses "address/length" into out like parseAddress. A single address is a /32 or /128.
+    // Returns the prefix length counted over all 128 bits (an IPv4 /24 is 120), or -1 if the text isn't a subnet.
+    public static int parseCidr(String text, long[] out) {
+        int slash = text.indexOf('/');
+        String address = slash < 0 ? text : text.substring(0, slash);
+        boolean ipv4 = parseIpv4(address) >= 0;
+        if (!parseAddress(address, out)) {
+            return -1;
+        }
+        int maxLength = ipv4 ? 32 : 128;
+        int length = maxLength;
+        if (slash >= 0) {
+            int digits = text.length() - slash - 1;
+            if (digits < 1 || digits > 3) {
+                return -1;
+            }
+            length = 0;
+            for (int i = slash + 1; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                length = length * 10 + (c - '0');
+            }
+            if (length > maxLength) {
+                return -1;
+            }
+        }
+        return ipv4 ? 96 + length : length;
+    }
+
+    // The subnet of the address as text, e.g. "203.0.113.0/24" or "2001:db8:1::/48". prefixLength is counted over all 128 bits.
+    public static String formatCidr(long hi, long lo, int prefixLength) {
+        long maskHi = prefixLength >= 64 ? -1L : prefixLength == 0 ? 0 : -1L << (64 - prefixLength);
+        long maskLo = prefixLength <= 64 ? 0 : prefixLength == 128 ? -1L : -1L << (128 - prefixLength);
+        long networkHi = hi & maskHi;
+        long networkLo = lo & maskLo;
+        if (prefixLength >= 96 && isIpv4Mapped(networkHi, networkLo)) {
+            return formatIpv4(networkLo & 0xFFFFFFFFL) + "/" + (prefixLength - 96);
+        }
+        return formatIpv6(networkHi, networkLo) + "/" + prefixLength;
+    }
+
+    // True for addresses in ::ffff:0:0/96, which are IPv4 addresses written as IPv6
+    public static boolean isIpv4Mapped(long hi, long lo) {
+        return hi == 0 && (lo >>> 32) == 0xFFFFL;
+    }
+
+    // Dotted form of an unsigned 32-bit address
+    public static String formatIpv4(long ipv4) {
+        return ((ipv4 >>> 24) & 0xFF) + "." + ((ipv4 >>> 16) & 0xFF) + "." + ((ipv4 >>> 8) & 0xFF) + "." + (ipv4 & 0xFF);
+    }
+
+    // Canonical (RFC 5952) form: lowercase hex, no leading zeros, the longest run of zero groups shortened to "::"
+    public static String formatIpv6(long hi, long lo) {
+        int[] groups = new int[8];
+        for (int i = 0; i < 4; i++) {
+            groups[i] = (int) ((hi >>> (48 - 16 * i)) & 0xFFFF);
+            groups[i + 4] = (int) ((lo >>> (48 - 16 * i)) & 0xFFFF);
+        }
+
+        int bestStart = -1, bestLength = 1; // a single zero group is not shortened
+        for (int i = 0; i < 8; ) {
+            if (groups[i] != 0) {
+                i++;
+                continue;
+            }
+            int runStart = i;
+            while (i < 8 && groups[i] == 0) {
+                i++;
+            }
+            if (i - runStart > bestLength) {
+                bestStart = runStart;
+                bestLength = i - runStart;
+            }
+        }
+
+        StringBuilder builder = new StringBuilder(39);
+        for (int i = 0; i < 8; i++) {
+            if (i == bestStart) {
+                builder.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if (builder.length() > 0 && builder.charAt(builder.length() - 1) != ':') {
+                builder.append(':');
+            }
+            builder.append(Integer.toHexString(groups[i]));
+        }
+        return builder.toString();
+    }
+}
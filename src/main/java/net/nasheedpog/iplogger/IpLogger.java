@@ -4,34 +4,179 @@ import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.minecraft.server.network.ServerPlayNetworkHandler;
-import net.nasheedpog.iplogger.IpLoggerCommands;
 
-import static net.nasheedpog.iplogger.IpLoggerCommands.geolocate;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 
 public class IpLogger implements ModInitializer {
 	private static final PlayerDatabase playerDatabase = new PlayerDatabase();
 	public static boolean debugMode = false;
+	private static IpLoggerConfig config;
+	private static IpTrackingPipeline trackingPipeline;
+	private static GeolocationCache geolocationCache;
+	private static WriteBehindPersister persister;
+	private static JournalStore journalStore;
+	private static LatestLogTailer logTailer;
+	private static LoginHistoryStore loginHistory;
+	private static LocationBackfillJob locationBackfill;
+	private static RetentionPruner retentionPruner;
 
 	@Override
 	public void onInitialize() {
 		System.out.println("[IpLogger] Mod is initializing!");
 
-		// Load player data from JSON
-		playerDatabase.loadFromJson();
+		config = IpLoggerConfig.load();
+
+		// Set up the geolocation cache before loading, since a migration of old data does lookups
+		IpLoggerCommands.setRemoteProvider(new RemoteGeolocationProvider(config));
+		geolocationCache = new GeolocationCache(config);
+		geolocationCache.loadFromJson();
+		IpLoggerCommands.setGeolocationCache(geolocationCache);
+
+		// The offline range database is loaded before the player data so a migration can use it
+		if (!config.offlineGeoDatabasePath.isEmpty()) {
+			OfflineGeolocationProvider offlineProvider = new OfflineGeolocationProvider(Paths.get(config.offlineGeoDatabasePath));
+			try {
+				offlineProvider.reload();
+				IpLoggerCommands.setOfflineProvider(offlineProvider, config.offlineGeoFallbackToRemote);
+			} catch (IOException e) {
+				System.out.println("[IpLogger] Error loading offline geolocation database, using the web API only.");
+				e.printStackTrace();
+			}
+		}
+
+		// Load player data
+		playerDatabase.setDataFormat(config.dataFormat, config.binaryUseMmap);
+		if (config.storageMode == IpLoggerConfig.StorageMode.SHARDED) {
+			playerDatabase.setStore(new ShardedPlayerStore(playerDatabase.getDataDirectory().resolve("shards"), config));
+		} else if (config.storageMode == IpLoggerConfig.StorageMode.SQLITE) {
+			playerDatabase.setStore(new SqlitePlayerStore(playerDatabase.getDataDirectory()));
+		}
+		playerDatabase.load();
+		geolocationCache.seed(playerDatabase.getKnownLocations());
+
+		// Changes are saved in the background instead of on every mutation
+		if (config.storageMode == IpLoggerConfig.StorageMode.JOURNAL) {
+			journalStore = new JournalStore(playerDatabase, playerDatabase.getDataDirectory(), config);
+			try {
+				journalStore.open(); // replays the journal on top of the loaded data
+				playerDatabase.addChangeListener(journalStore);
+				journalStore.start();
+			} catch (IOException e) {
+				System.out.println("[IpLogger] Error opening journal, falling back to JSON saving.");
+				e.printStackTrace();
+				journalStore = null;
+			}
+		}
+		if (journalStore == null) {
+			persister = new WriteBehindPersister(playerDatabase, config);
+			playerDatabase.addChangeListener(persister);
+			persister.start();
+		}
+
+		// Kept up to date from the change notifications, so getDuplicateIPs, subnet and linked account queries and tab completion don't have to scan the database
+		DuplicateIpReport duplicateIpReport = new DuplicateIpReport(playerDatabase);
+		playerDatabase.addChangeListener(duplicateIpReport);
+		IpLoggerCommands.setDuplicateIpReport(duplicateIpReport);
+		SuggestionIndex suggestionIndex = new SuggestionIndex(playerDatabase);
+		playerDatabase.addChangeListener(suggestionIndex);
+		IpLoggerCommands.setSuggestionIndex(suggestionIndex);
+		SubnetIndex subnetIndex = new SubnetIndex(playerDatabase);
+		playerDatabase.addChangeListener(subnetIndex);
+		IpLoggerCommands.setSubnetIndex(subnetIndex);
+		LinkedAccounts linkedAccounts = new LinkedAccounts(playerDatabase);
+		playerDatabase.addChangeListener(linkedAccounts);
+		IpLoggerCommands.setLinkedAccounts(linkedAccounts);
+
+		// Locations still missing are looked up in the background, continuing where the last run stopped: those left
+		// pending by a migration of old data, and those the web API gave no answer for
+		MigrationCheckpoint pendingLocations = MigrationCheckpoint.load(playerDatabase.getDataDirectory());
+		WriteBehindPersister savedBy = persister;
+		JournalStore journaledBy = journalStore;
+		locationBackfill = new LocationBackfillJob(playerDatabase, pendingLocations, config,
+				() -> journaledBy != null ? journaledBy.sync() : savedBy.flushNow());
+		IpLoggerCommands.setLocationBackfill(locationBackfill);
+		locationBackfill.start();
+
+		// Every login and logout, next to the first-seen times
+		if (config.loginHistory) {
+			loginHistory = new LoginHistoryStore(playerDatabase.getDataDirectory(), config);
+			try {
+				loginHistory.open();
+			} catch (IOException e) {
+				System.out.println("[IpLogger] Error opening login history, it is disabled until the next start.");
+				e.printStackTrace();
+				loginHistory = null;
+			}
+		}
+
+		// Old entries are removed in the background if retention rules are set
+		if (RetentionPruner.isEnabled(config)) {
+			retentionPruner = new RetentionPruner(playerDatabase, loginHistory, config);
+			retentionPruner.start();
+		}
+
+		// Joins are handled off the server thread by the tracking pipeline
+		trackingPipeline = new IpTrackingPipeline(playerDatabase, config, loginHistory);
+
+		// Optionally pick up logins from latest.log as it is written
+		if (config.tailLatestLog) {
+			logTailer = new LatestLogTailer(playerDatabase, Paths.get("logs"), config);
+			logTailer.start();
+		}
+
+		// Optionally write the /iplogger stats metrics to a file for Prometheus or other tools
+		IpLoggerMetrics.startExport(config);
 
 		// Register commands
+		IpLoggerCommands.setPersistence(persister, journalStore);
+		IpLoggerCommands.setLoginHistory(loginHistory);
+		IpLoggerCommands.setRetentionPruner(retentionPruner);
 		IpLoggerCommands.registerCommands(this, playerDatabase);
 
-		// Register event listener for player joins
+		// Register event listener for player joins. Only queues the join, geolocation and saving happen on a worker.
 		ServerPlayConnectionEvents.JOIN.register((handler, sender, server) -> {
+			long start = System.nanoTime();
 			String username = handler.getPlayer().getName().getString();
 			String ipAddress = getIpAddress(handler);
-			String location = geolocate(ipAddress);
-			playerDatabase.trackPlayer(username, ipAddress, location);
+			trackingPipeline.submit(username, ipAddress);
+			IpLoggerMetrics.JOIN_HANDLER.recordSince(start);
 		});
+		ServerPlayConnectionEvents.DISCONNECT.register((handler, server) ->
+				trackingPipeline.submitLogout(handler.getPlayer().getName().getString()));
+
+		// Register server stop event to finish queued joins and save data
+		ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
+			if (logTailer != null) {
+				logTailer.shutdown();
+			}
+			trackingPipeline.shutdown(config.joinShutdownTimeoutSeconds);
+			if (locationBackfill != null) {
+				locationBackfill.shutdown(); // before the final save, which then includes its last locations
+			}
+			if (retentionPruner != null) {
+				retentionPruner.shutdown();
+			}
+			if (loginHistory != null) {
+				// Players still online are logged out now, the disconnects during shutdown come after this
+				loginHistory.shutdown(LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)); // wall clock like the timestamps
+			}
+			// final save
+			if (journalStore != null) {
+				journalStore.shutdown();
+			} else {
+				persister.shutdown();
+			}
+			playerDatabase.close();
+			geolocationCache.saveToJson();
+			IpLoggerMetrics.stopExport();
+		});
+	}
 
-		// Register server stop event to save data
-		ServerLifecycleEvents.SERVER_STOPPING.register(server -> playerDatabase.saveToJson());
+	public static IpLoggerConfig getConfig() {
+		return config;
 	}
 
 	// Method to safely extract the IP address
@@ -1,35 +1,96 @@
 package net.nasheedpog.iplogger;
 
+import com.mojang.brigadier.Command;
 import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.StringReader;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.suggestion.Suggestions;
+import com.mojang.brigadier.suggestion.SuggestionsBuilder;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
-import net.minecraft.command.CommandSource;
 import net.minecraft.server.command.CommandManager;
 import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.MutableText;
 import net.minecraft.text.Text;
 import net.minecraft.text.ClickEvent;
 import net.minecraft.text.HoverEvent;
 import net.minecraft.text.Style;
 import net.minecraft.util.Formatting;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.io.*;
 import java.nio.file.*;
-import java.util.zip.GZIPInputStream;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.LocalDate;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
 
 import static net.nasheedpog.iplogger.IpLogger.debugMode;
 
 public class IpLoggerCommands {
+    private static RemoteGeolocationProvider remoteProvider = new RemoteGeolocationProvider(new IpLoggerConfig()); // defaults until the config is loaded
+    private static GeolocationCache geolocationCache;
+    private static OfflineGeolocationProvider offlineProvider;
+    private static boolean offlineFallbackToRemote = true;
+    private static WriteBehindPersister persister;
+    private static JournalStore journalStore;
+    private static DuplicateIpReport duplicateIpReport;
+    private static SuggestionIndex suggestionIndex;
+    private static SubnetIndex subnetIndex;
+    private static LinkedAccounts linkedAccounts;
+    private static LoginHistoryStore loginHistory;
+    private static RetentionPruner retentionPruner;
+    private static LocationBackfillJob locationBackfill;
+    private static final AtomicBoolean converting = new AtomicBoolean(); // convertDatabase is running
+
+    public static void setRemoteProvider(RemoteGeolocationProvider provider) {
+        remoteProvider = provider;
+    }
+
+    public static void setGeolocationCache(GeolocationCache cache) {
+        geolocationCache = cache;
+    }
+
+    // Only one of the two is set, depending on the storage mode
+    public static void setPersistence(WriteBehindPersister writeBehindPersister, JournalStore journal) {
+        persister = writeBehindPersister;
+        journalStore = journal;
+    }
+
+    public static void setDuplicateIpReport(DuplicateIpReport report) {
+        duplicateIpReport = report;
+    }
+
+    public static void setSuggestionIndex(SuggestionIndex index) {
+        suggestionIndex = index;
+    }
+
+    public static void setSubnetIndex(SubnetIndex index) {
+        subnetIndex = index;
+    }
+
+    public static void setLinkedAccounts(LinkedAccounts accounts) {
+        linkedAccounts = accounts;
+    }
+
+    public static void setLoginHistory(LoginHistoryStore history) {
+        loginHistory = history;
+    }
+
+    // null if no retention rule is set
+    public static void setRetentionPruner(RetentionPruner pruner) {
+        retentionPruner = pruner;
+    }
+
+    public static void setLocationBackfill(LocationBackfillJob backfill) {
+        locationBackfill = backfill;
+    }
+
+    // Set the local range database used before (or instead of) the remote API. Pass null to disable it.
+    public static void setOfflineProvider(OfflineGeolocationProvider provider, boolean fallbackToRemote) {
+        offlineProvider = provider;
+        offlineFallbackToRemote = fallbackToRemote;
+    }
 
     public static void registerCommands(IpLogger modInstance, PlayerDatabase database) {
         System.out.println("[IpLogger] Registering commands...");
@@ -41,42 +102,184 @@ public class IpLoggerCommands {
                 .requires(source -> source.hasPermissionLevel(4)) // Only admins can use these commands
                 .then(CommandManager.literal("getIPs")
                         .then(CommandManager.argument("username", StringArgumentType.word())
-                                .suggests((context, builder) -> CommandSource.suggestMatching(database.getUsernames(), builder))
-                                .executes(context -> getIPsCommand(context, database))
+                                .suggests((context, builder) -> suggestUsernames(builder))
+                                .executes(timed("getIPs", context -> getIPsCommand(context, database)))
                         )
                 )
                 .then(CommandManager.literal("getDuplicateIPs")
-                        .executes(context -> getDuplicateIPsCommand(context, database))
+                        .executes(timed("getDuplicateIPs", context -> getDuplicateIPsCommand(context, database, 1, DuplicateIpReport.Sort.USERS)))
+                        .then(CommandManager.argument("page", IntegerArgumentType.integer(1))
+                                .executes(timed("getDuplicateIPs", context -> getDuplicateIPsCommand(context, database, IntegerArgumentType.getInteger(context, "page"), DuplicateIpReport.Sort.USERS)))
+                                .then(CommandManager.literal("users")
+                                        .executes(timed("getDuplicateIPs", context -> getDuplicateIPsCommand(context, database, IntegerArgumentType.getInteger(context, "page"), DuplicateIpReport.Sort.USERS)))
+                                )
+                                .then(CommandManager.literal("firstSeen")
+                                        .executes(timed("getDuplicateIPs", context -> getDuplicateIPsCommand(context, database, IntegerArgumentType.getInteger(context, "page"), DuplicateIpReport.Sort.FIRST_SEEN)))
+                                )
+                        )
                 )
                 .then(CommandManager.literal("getUsers")
-                        .then(CommandManager.argument("ipAddress", StringArgumentType.word())
-                                .suggests((context, builder) -> CommandSource.suggestMatching(database.getAllIPs(), builder))
-                                .executes(context -> getUsersCommand(context, database))
+                        // string() so IPv6 addresses and subnets can be given in quotes, e.g. "203.0.113.0/24"
+                        .then(CommandManager.argument("ipAddress", StringArgumentType.string())
+                                .suggests((context, builder) -> suggestIpAddresses(builder))
+                                .executes(timed("getUsers", context -> getUsersCommand(context, database, 1)))
+                                .then(CommandManager.argument("page", IntegerArgumentType.integer(1))
+                                        .executes(timed("getUsers", context -> getUsersCommand(context, database, IntegerArgumentType.getInteger(context, "page"))))
+                                )
+                        )
+                )
+                .then(CommandManager.literal("getNearDuplicates")
+                        .executes(timed("getNearDuplicates", context -> getNearDuplicatesCommand(context, 1)))
+                        .then(CommandManager.argument("page", IntegerArgumentType.integer(1))
+                                .executes(timed("getNearDuplicates", context -> getNearDuplicatesCommand(context, IntegerArgumentType.getInteger(context, "page"))))
+                        )
+                )
+                .then(CommandManager.literal("getLinked")
+                        .then(CommandManager.argument("username", StringArgumentType.word())
+                                .suggests((context, builder) -> suggestUsernames(builder))
+                                .executes(timed("getLinked", context -> getLinkedCommand(context, 1)))
+                                .then(CommandManager.argument("page", IntegerArgumentType.integer(1))
+                                        .executes(timed("getLinked", context -> getLinkedCommand(context, IntegerArgumentType.getInteger(context, "page"))))
+                                )
+                        )
+                )
+                .then(CommandManager.literal("history")
+                        .then(CommandManager.argument("username", StringArgumentType.word())
+                                .suggests((context, builder) -> suggestUsernames(builder))
+                                .executes(timed("history", context -> historyCommand(context, database, 1)))
+                                .then(CommandManager.argument("page", IntegerArgumentType.integer(1))
+                                        .executes(timed("history", context -> historyCommand(context, database, IntegerArgumentType.getInteger(context, "page"))))
+                                )
+                                .then(CommandManager.literal("sessions")
+                                        .executes(timed("historySessions", context -> historySessionsCommand(context, 1)))
+                                        .then(CommandManager.argument("page", IntegerArgumentType.integer(1))
+                                                .executes(timed("historySessions", context -> historySessionsCommand(context, IntegerArgumentType.getInteger(context, "page"))))
+                                        )
+                                )
+                                .then(CommandManager.literal("days")
+                                        .executes(timed("historyDays", context -> historyDaysCommand(context, 1)))
+                                        .then(CommandManager.argument("page", IntegerArgumentType.integer(1))
+                                                .executes(timed("historyDays", context -> historyDaysCommand(context, IntegerArgumentType.getInteger(context, "page"))))
+                                        )
+                                )
                         )
                 )
                 .then(CommandManager.literal("removeIpFromUser")
                         .then(CommandManager.argument("username", StringArgumentType.word())
-                                .suggests((context, builder) -> CommandSource.suggestMatching(database.getUsernames(), builder))
-                                .then(CommandManager.argument("ipAddress", StringArgumentType.word())
-                                        .suggests((context, builder) -> CommandSource.suggestMatching(database.getIpAddressesForUser(StringArgumentType.getString(context, "username")), builder))
-                                        .executes(context -> removeIpFromUserCommand(context, database))
+                                .suggests((context, builder) -> suggestUsernames(builder))
+                                // string() like getUsers, so IPv6 addresses can be given in quotes
+                                .then(CommandManager.argument("ipAddress", StringArgumentType.string())
+                                        .suggests((context, builder) -> suggestIpAddressesOfUser(database, StringArgumentType.getString(context, "username"), builder))
+                                        .executes(timed("removeIpFromUser", context -> removeIpFromUserCommand(context, database)))
                                 )
                         )
                 )
                 .then(CommandManager.literal("buildFromPastLogs")
-                        .executes(context -> buildFromPastLogsCommand(context, database))
+                        .executes(timed("buildFromPastLogs", context -> buildFromPastLogsCommand(context, database, false)))
+                        .then(CommandManager.literal("full")
+                                .executes(timed("buildFromPastLogs", context -> buildFromPastLogsCommand(context, database, true)))
+                        )
                 )
                 .then(CommandManager.literal("geolocate")
-                        .then(CommandManager.argument("ipAddress", StringArgumentType.word())
-                                .executes(context -> geolocateCommand(context))
+                        // string() like getUsers, so IPv6 addresses can be given in quotes
+                        .then(CommandManager.argument("ipAddress", StringArgumentType.string())
+                                .suggests((context, builder) -> suggestIpAddresses(builder))
+                                .executes(timed("geolocate", context -> geolocateCommand(context)))
+                        )
+                )
+                .then(CommandManager.literal("reloadGeoDatabase")
+                        .executes(timed("reloadGeoDatabase", context -> reloadGeoDatabaseCommand(context)))
+                )
+                .then(CommandManager.literal("convertDatabase")
+                        .then(CommandManager.literal("json")
+                                .executes(timed("convertDatabase", context -> convertDatabaseCommand(context, database, IpLoggerConfig.DataFormat.JSON)))
+                        )
+                        .then(CommandManager.literal("binary")
+                                .executes(timed("convertDatabase", context -> convertDatabaseCommand(context, database, IpLoggerConfig.DataFormat.BINARY)))
+                        )
+                )
+                .then(CommandManager.literal("saveStats")
+                        .executes(timed("saveStats", context -> saveStatsCommand(context, database)))
+                )
+                .then(CommandManager.literal("geolocateCacheStats")
+                        .executes(timed("geolocateCacheStats", context -> geolocateCacheStatsCommand(context)))
+                )
+                .then(CommandManager.literal("stats")
+                        .executes(timed("stats", context -> statsCommand(context)))
+                )
+                .then(CommandManager.literal("retention")
+                        .executes(timed("retention", context -> retentionCommand(context, false)))
+                        .then(CommandManager.literal("run")
+                                .executes(timed("retention", context -> retentionCommand(context, true)))
                         )
                 )
                 .then(CommandManager.literal("toggleDebugMode")
-                        .executes(context -> toggleDebugMode(context))
+                        .executes(timed("toggleDebugMode", context -> toggleDebugMode(context)))
                 )
         );
     }
 
+    // Every command is timed for /iplogger stats
+    private static Command<ServerCommandSource> timed(String name, Command<ServerCommandSource> command) {
+        IpLoggerMetrics.Timer timer = IpLoggerMetrics.command(name);
+        return context -> {
+            long start = System.nanoTime();
+            try {
+                return command.run(context);
+            } finally {
+                timer.recordSince(start);
+            }
+        };
+    }
+
+    // Tab completion only looks at the names starting with what was typed, and shows at most suggestionLimit of them
+    private static CompletableFuture<Suggestions> suggestUsernames(SuggestionsBuilder builder) {
+        suggestionIndex.usernamesStartingWith(builder.getRemaining(), getSuggestionLimit()).forEach(builder::suggest);
+        return builder.buildFuture();
+    }
+
+    private static CompletableFuture<Suggestions> suggestIpAddresses(SuggestionsBuilder builder) {
+        suggestionIndex.ipAddressesStartingWith(unquotedPrefix(builder.getRemaining()), getSuggestionLimit())
+                .forEach(ipAddress -> builder.suggest(quoteIfNeeded(ipAddress)));
+        return builder.buildFuture();
+    }
+
+    // A user has only a few IPs, so their list is filtered directly
+    private static CompletableFuture<Suggestions> suggestIpAddressesOfUser(PlayerDatabase database, String username, SuggestionsBuilder builder) {
+        List<PlayerDatabase.IpEntry> ipEntries = database.getEntries(username);
+        if (ipEntries != null) {
+            String prefix = unquotedPrefix(builder.getRemainingLowerCase());
+            int limit = getSuggestionLimit();
+            int suggested = 0;
+            for (PlayerDatabase.IpEntry ipEntry : ipEntries) {
+                if (suggested < limit && ipEntry.getIp().toLowerCase(Locale.ROOT).startsWith(prefix)) {
+                    builder.suggest(quoteIfNeeded(ipEntry.getIp()));
+                    suggested++;
+                }
+            }
+        }
+        return builder.buildFuture();
+    }
+
+    // string() arguments need quotes around IPv6 addresses and subnets, so those are suggested in quotes
+    private static String quoteIfNeeded(String ipAddress) {
+        for (int i = 0; i < ipAddress.length(); i++) {
+            if (!StringReader.isAllowedInUnquotedString(ipAddress.charAt(i))) {
+                return '"' + ipAddress + '"';
+            }
+        }
+        return ipAddress;
+    }
+
+    private static String unquotedPrefix(String remaining) {
+        return remaining.startsWith("\"") ? remaining.substring(1) : remaining;
+    }
+
+    private static int getSuggestionLimit() {
+        IpLoggerConfig config = IpLogger.getConfig();
+        return config == null ? 50 : Math.max(1, config.suggestionLimit);
+    }
+
     private static int getIPsCommand(CommandContext<ServerCommandSource> context, PlayerDatabase database) {
         String username = StringArgumentType.getString(context, "username");
         List<PlayerDatabase.IpEntry> ipEntries = database.getEntries(username);
@@ -95,57 +298,61 @@ public class IpLoggerCommands {
                     .append(Text.literal(entry.getIp()).setStyle(Style.EMPTY.withColor(Formatting.BLUE)
                             .withClickEvent(new ClickEvent(ClickEvent.Action.COPY_TO_CLIPBOARD, entry.getIp()))
                             .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Text.literal("Click to copy IP")))))
-                    .append(Text.literal(" Location: "+ entry.getLocation() +" (First seen: " + entry.getTimestamp() + ")")), false);
+                    .append(Text.literal(" Location: "+ locationText(entry.getLocation()) +" (First seen: " + entry.getTimestamp() + ")")), false);
         });
         return 1;
     }
 
-    private static int getDuplicateIPsCommand(CommandContext<ServerCommandSource> context, PlayerDatabase database) {
-        Map<String, List<String>> duplicateIps = database.getDuplicateIPs();
+    private static int getDuplicateIPsCommand(CommandContext<ServerCommandSource> context, PlayerDatabase database, int page, DuplicateIpReport.Sort sort) {
+        List<DuplicateIpReport.Row> rows = duplicateIpReport.getRows(sort);
 
-        if (duplicateIps.isEmpty()) {
+        if (rows.isEmpty()) {
             context.getSource().sendFeedback(() -> Text.literal("[IpLogger] No duplicate IPs found.")
                     .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
             return 1;
         }
 
-        context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Duplicate IPs:")
+        int pageSize = getPageSize();
+        int pages = pageCount(rows.size(), pageSize);
+        int shownPage = Math.min(page, pages);
+        String sortName = sort == DuplicateIpReport.Sort.USERS ? "users" : "firstSeen";
+        context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Duplicate IPs (" + rows.size() + " IPs, page " + shownPage + "/" + pages
+                        + ", sorted by " + (sort == DuplicateIpReport.Sort.USERS ? "number of users" : "first seen, newest first") + "):")
                 .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
 
-        duplicateIps.forEach((ip, users) -> {
-            Text ipText = Text.literal("- ").append(Text.literal(ip+" ")
+        for (DuplicateIpReport.Row row : pageOf(rows, shownPage, pageSize)) {
+            String ip = row.getIpAddress();
+            // One MutableText per line that everything is appended to, instead of copying the line for every user
+            MutableText line = Text.literal("- ");
+            line.append(Text.literal(ip+" ")
                     .setStyle(Style.EMPTY.withColor(Formatting.BLUE)
                             .withClickEvent(new ClickEvent(ClickEvent.Action.COPY_TO_CLIPBOARD, ip+ " "))
-                            .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Text.literal("Click to copy IP\n"+database.getLocation(ip))))));
+                            .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Text.literal("Click to copy IP\n"+row.getLocation())))));
 
-            List<Text> userTextComponents = new ArrayList<>();
-            for (String user : users) {
-                Text userText = Text.literal(user)
+            boolean first = true;
+            for (Map.Entry<String, PlayerDatabase.IpEntry> userEntry : row.getUsers()) {
+                String user = userEntry.getKey();
+                if (!first) {
+                    line.append(Text.literal(", "));
+                }
+                first = false;
+                line.append(Text.literal(user)
                         .setStyle(Style.EMPTY.withColor(Formatting.YELLOW)
                                 .withClickEvent(new ClickEvent(ClickEvent.Action.COPY_TO_CLIPBOARD, user))
-                                .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Text.literal("Click to copy.\nFirst seen: " + database.getTimestampForUserIp(user, ip)))));
-                userTextComponents.add(userText);
-                userTextComponents.add(Text.literal(", "));
+                                .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Text.literal("Click to copy.\nFirst seen: " + userEntry.getValue().getTimestamp())))));
             }
-
-            if (!userTextComponents.isEmpty()) {
-                userTextComponents.remove(userTextComponents.size() - 1);
-            }
-
-            Text combinedUsersText = Text.empty();
-            for (Text userComponent : userTextComponents) {
-                combinedUsersText = combinedUsersText.copy().append(userComponent);
-            }
-
-            Text combinedText = ipText.copy().append(combinedUsersText);
-            context.getSource().sendFeedback(() -> combinedText, false);
-        });
+            context.getSource().sendFeedback(() -> line, false);
+        }
+        sendPageLinks(context, shownPage, pages, pageNumber -> "/iplogger getDuplicateIPs " + pageNumber + " " + sortName);
         return 1;
     }
 
-    private static int getUsersCommand(CommandContext<ServerCommandSource> context, PlayerDatabase database) {
+    private static int getUsersCommand(CommandContext<ServerCommandSource> context, PlayerDatabase database, int page) {
         String ipAddress = StringArgumentType.getString(context, "ipAddress");
-        List<String> users = database.getUsersForIp(ipAddress);
+        if (ipAddress.indexOf('/') >= 0) {
+            return getUsersInSubnetCommand(context, ipAddress, page);
+        }
+        Map<String, PlayerDatabase.IpEntry> users = database.getUserEntriesForIp(ipAddress);
 
         if (users.isEmpty()) {
             context.getSource().sendFeedback(() -> Text.literal("[IpLogger] No users found for IP: ")
@@ -154,15 +361,24 @@ public class IpLoggerCommands {
             return 1;
         }
 
+        // In the order the users were first seen on the IP
+        List<Map.Entry<String, PlayerDatabase.IpEntry>> sortedUsers = new ArrayList<>(users.entrySet());
+        sortedUsers.sort((a, b) -> a.getValue().compareTimeTo(b.getValue()));
+        int pageSize = getPageSize();
+        int pages = pageCount(sortedUsers.size(), pageSize);
+        int shownPage = Math.min(page, pages);
+
         context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Users for IP ")
                 .setStyle(Style.EMPTY.withColor(Formatting.AQUA))
                 .append(Text.literal(ipAddress).setStyle(Style.EMPTY.withColor(Formatting.BLUE)
                         .withClickEvent(new ClickEvent(ClickEvent.Action.COPY_TO_CLIPBOARD, ipAddress))
                         .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Text.literal("Click to copy IP")))))
-                .append(Text.literal(" ("+database.getLocation(ipAddress)+")").setStyle(Style.EMPTY.withColor(Formatting.WHITE))), false);
+                .append(Text.literal(" ("+database.getLocation(ipAddress)+")").setStyle(Style.EMPTY.withColor(Formatting.WHITE)))
+                .append(Text.literal(pages > 1 ? " page " + shownPage + "/" + pages : "").setStyle(Style.EMPTY.withColor(Formatting.AQUA))), false);
 
-        users.forEach(user -> {
-            String timestamp = database.getTimestampForUserIp(user, ipAddress);
+        for (Map.Entry<String, PlayerDatabase.IpEntry> userEntry : pageOf(sortedUsers, shownPage, pageSize)) {
+            String user = userEntry.getKey();
+            String timestamp = userEntry.getValue().getTimestamp();
             Text userText = Text.literal(user)
                     .setStyle(Style.EMPTY.withColor(Formatting.YELLOW)
                             .withClickEvent(new ClickEvent(ClickEvent.Action.COPY_TO_CLIPBOARD, user))
@@ -171,10 +387,288 @@ public class IpLoggerCommands {
             context.getSource().sendFeedback(() -> Text.literal("- ")
                     .append(userText)
                     .append(Text.literal(" (First seen: " + timestamp + ")")), false);
-        });
+        }
+        sendPageLinks(context, shownPage, pages, pageNumber -> "/iplogger getUsers " + quoteIfNeeded(ipAddress) + " " + pageNumber);
+        return 1;
+    }
+
+    // getUsers with a subnet: every user of every logged IP in it
+    private static int getUsersInSubnetCommand(CommandContext<ServerCommandSource> context, String subnet, int page) {
+        long[] network = new long[2];
+        int prefixLength = IpAddresses.parseCidr(subnet, network);
+        if (prefixLength < 0) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Not a valid subnet: " + subnet + " (use e.g. \"203.0.113.0/24\" or \"2001:db8::/48\")")
+                    .setStyle(Style.EMPTY.withColor(Formatting.RED)), false);
+            return 1;
+        }
+
+        List<String> ipAddresses = subnetIndex.ipAddressesIn(network[0], network[1], prefixLength);
+        List<Map.Entry<String, PlayerDatabase.IpEntry>> users = subnetIndex.usersOf(ipAddresses);
+        if (users.isEmpty()) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] No users found in subnet: ")
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA))
+                    .append(Text.literal(subnet).setStyle(Style.EMPTY.withColor(Formatting.BLUE))), false);
+            return 1;
+        }
+
+        int pageSize = getPageSize();
+        int pages = pageCount(users.size(), pageSize);
+        int shownPage = Math.min(page, pages);
+        context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Users in subnet ")
+                .setStyle(Style.EMPTY.withColor(Formatting.AQUA))
+                .append(Text.literal(subnet).setStyle(Style.EMPTY.withColor(Formatting.BLUE)))
+                .append(Text.literal(" (" + ipAddresses.size() + " IPs" + (pages > 1 ? ", page " + shownPage + "/" + pages : "") + ")")), false);
+
+        for (Map.Entry<String, PlayerDatabase.IpEntry> userEntry : pageOf(users, shownPage, pageSize)) {
+            context.getSource().sendFeedback(() -> Text.literal("- ").append(userWithIpText(userEntry)), false);
+        }
+        sendPageLinks(context, shownPage, pages, pageNumber -> "/iplogger getUsers \"" + subnet + "\" " + pageNumber);
+        return 1;
+    }
+
+    private static int getNearDuplicatesCommand(CommandContext<ServerCommandSource> context, int page) {
+        List<SubnetIndex.SubnetGroup> groups = subnetIndex.getNearDuplicates();
+
+        if (groups.isEmpty()) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] No players found on different IPs of the same /24 or /48.")
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+            return 1;
+        }
+
+        int pageSize = getPageSize();
+        int pages = pageCount(groups.size(), pageSize);
+        int shownPage = Math.min(page, pages);
+        context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Players sharing a /24 or /48 subnet (" + groups.size() + " subnets, page " + shownPage + "/" + pages + "):")
+                .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+
+        for (SubnetIndex.SubnetGroup group : pageOf(groups, shownPage, pageSize)) {
+            String subnet = group.getSubnet();
+            MutableText line = Text.literal("- ");
+            line.append(Text.literal(subnet + " ")
+                    .setStyle(Style.EMPTY.withColor(Formatting.BLUE)
+                            .withClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/iplogger getUsers \"" + subnet + "\""))
+                            .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Text.literal("Click to list the users")))));
+            boolean first = true;
+            for (Map.Entry<String, PlayerDatabase.IpEntry> userEntry : group.getUsers()) {
+                if (!first) {
+                    line.append(Text.literal(", "));
+                }
+                first = false;
+                line.append(userWithIpText(userEntry));
+            }
+            context.getSource().sendFeedback(() -> line, false);
+        }
+        sendPageLinks(context, shownPage, pages, pageNumber -> "/iplogger getNearDuplicates " + pageNumber);
+        return 1;
+    }
+
+    // Every account linked to the user through shared IPs, directly or through other accounts
+    private static int getLinkedCommand(CommandContext<ServerCommandSource> context, int page) {
+        String username = StringArgumentType.getString(context, "username");
+        LinkedAccounts.Group group = linkedAccounts.getLinked(username);
+
+        if (group == null) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] User not found.")
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+            return 1;
+        }
+        if (group.getUsernames().size() == 1) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] No accounts are linked to ")
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA))
+                    .append(Text.literal(username).setStyle(Style.EMPTY.withColor(Formatting.YELLOW))), false);
+            return 1;
+        }
+
+        List<String> usernames = group.getUsernames();
+        int pageSize = getPageSize();
+        int pages = pageCount(usernames.size(), pageSize);
+        int shownPage = Math.min(page, pages);
+        context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Accounts linked to ")
+                .setStyle(Style.EMPTY.withColor(Formatting.AQUA))
+                .append(Text.literal(username).setStyle(Style.EMPTY.withColor(Formatting.YELLOW)))
+                .append(Text.literal(" (" + usernames.size() + " accounts over " + group.getIpCount() + " IPs"
+                        + (pages > 1 ? ", page " + shownPage + "/" + pages : "") + "):")), false);
+
+        for (String linked : pageOf(usernames, shownPage, pageSize)) {
+            context.getSource().sendFeedback(() -> Text.literal("- ")
+                    .append(Text.literal(linked).setStyle(Style.EMPTY.withColor(Formatting.YELLOW)
+                            .withClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/iplogger getIPs " + linked))
+                            .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Text.literal("Click to show the IPs of " + linked))))), false);
+        }
+        sendPageLinks(context, shownPage, pages, pageNumber -> "/iplogger getLinked " + username + " " + pageNumber);
+        return 1;
+    }
+
+    // Login count, last seen and play time, and the same per IP
+    private static int historyCommand(CommandContext<ServerCommandSource> context, PlayerDatabase database, int page) {
+        String username = StringArgumentType.getString(context, "username");
+        LoginHistoryStore.History history = getHistoryOrReport(context, username);
+        if (history == null) {
+            return 1;
+        }
+
+        List<LoginHistoryStore.IpTotal> ips = history.getIps();
+        int pageSize = getPageSize();
+        int pages = pageCount(ips.size(), pageSize);
+        int shownPage = Math.min(page, pages);
+        context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Login history of ")
+                .setStyle(Style.EMPTY.withColor(Formatting.AQUA))
+                .append(Text.literal(username).setStyle(Style.EMPTY.withColor(Formatting.YELLOW)))
+                .append(Text.literal(": " + history.getLogins() + " logins, played " + formatDuration(history.getSeconds())
+                        + (history.isOnline() ? ", online now" : ", last seen " + PlayerDatabase.IpEntry.formatEpochSeconds(history.getLastSeen())))), false);
+
+        for (LoginHistoryStore.IpTotal ip : pageOf(ips, shownPage, pageSize)) {
+            String firstSeen = database.getTimestampForUserIp(username, ip.getIpAddress());
+            context.getSource().sendFeedback(() -> Text.literal("- ")
+                    .append(Text.literal(ip.getIpAddress()).setStyle(Style.EMPTY.withColor(Formatting.BLUE)
+                            .withClickEvent(new ClickEvent(ClickEvent.Action.COPY_TO_CLIPBOARD, ip.getIpAddress()))
+                            .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Text.literal("Click to copy IP")))))
+                    .append(Text.literal(" " + ip.getLogins() + " logins, " + formatDuration(ip.getSeconds())
+                            + " (First seen: " + firstSeen + ", last seen: " + PlayerDatabase.IpEntry.formatEpochSeconds(ip.getLastSeen()) + ")")), false);
+        }
+        sendPageLinks(context, shownPage, pages, pageNumber -> "/iplogger history " + username + " " + pageNumber);
+        return 1;
+    }
+
+    // The player's last sessions, newest first
+    private static int historySessionsCommand(CommandContext<ServerCommandSource> context, int page) {
+        String username = StringArgumentType.getString(context, "username");
+        LoginHistoryStore.History history = getHistoryOrReport(context, username);
+        if (history == null) {
+            return 1;
+        }
+
+        List<LoginHistoryStore.Session> sessions = history.getSessions();
+        int pageSize = getPageSize();
+        int pages = pageCount(sessions.size(), pageSize);
+        int shownPage = Math.min(page, pages);
+        context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Last " + sessions.size() + " sessions of ")
+                .setStyle(Style.EMPTY.withColor(Formatting.AQUA))
+                .append(Text.literal(username).setStyle(Style.EMPTY.withColor(Formatting.YELLOW)))
+                .append(Text.literal(pages > 1 ? " (page " + shownPage + "/" + pages + "):" : ":")), false);
+
+        for (LoginHistoryStore.Session session : pageOf(sessions, shownPage, pageSize)) {
+            String length;
+            if (session.getEnd() != LoginHistoryStore.Session.UNKNOWN) {
+                length = formatDuration(session.getEnd() - session.getStart());
+            } else if (history.isOnline() && session == sessions.get(0)) {
+                length = "online now";
+            } else {
+                length = "unknown length";
+            }
+            context.getSource().sendFeedback(() -> Text.literal("- " + PlayerDatabase.IpEntry.formatEpochSeconds(session.getStart()) + " ")
+                    .append(Text.literal(session.getIpAddress()).setStyle(Style.EMPTY.withColor(Formatting.BLUE)
+                            .withClickEvent(new ClickEvent(ClickEvent.Action.COPY_TO_CLIPBOARD, session.getIpAddress()))
+                            .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Text.literal("Click to copy IP")))))
+                    .append(Text.literal(" " + length)), false);
+        }
+        sendPageLinks(context, shownPage, pages, pageNumber -> "/iplogger history " + username + " sessions " + pageNumber);
         return 1;
     }
 
+    // Logins and play time per day, newest first
+    private static int historyDaysCommand(CommandContext<ServerCommandSource> context, int page) {
+        String username = StringArgumentType.getString(context, "username");
+        LoginHistoryStore.History history = getHistoryOrReport(context, username);
+        if (history == null) {
+            return 1;
+        }
+
+        List<LoginHistoryStore.Day> days = history.getDays();
+        int pageSize = getPageSize();
+        int pages = pageCount(days.size(), pageSize);
+        int shownPage = Math.min(page, pages);
+        context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Days played by ")
+                .setStyle(Style.EMPTY.withColor(Formatting.AQUA))
+                .append(Text.literal(username).setStyle(Style.EMPTY.withColor(Formatting.YELLOW)))
+                .append(Text.literal(" (" + days.size() + " days" + (pages > 1 ? ", page " + shownPage + "/" + pages : "") + "):")), false);
+
+        for (LoginHistoryStore.Day day : pageOf(days, shownPage, pageSize)) {
+            context.getSource().sendFeedback(() -> Text.literal("- " + LocalDate.ofEpochDay(day.getEpochDay()) + ": "
+                    + day.getLogins() + " logins, " + formatDuration(day.getSeconds())), false);
+        }
+        sendPageLinks(context, shownPage, pages, pageNumber -> "/iplogger history " + username + " days " + pageNumber);
+        return 1;
+    }
+
+    private static LoginHistoryStore.History getHistoryOrReport(CommandContext<ServerCommandSource> context, String username) {
+        if (loginHistory == null) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] The login history is not enabled (loginHistory in IpLoggerConfig.json).")
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+            return null;
+        }
+        LoginHistoryStore.History history = loginHistory.getHistory(username);
+        if (history == null) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] No logins recorded for ")
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA))
+                    .append(Text.literal(username).setStyle(Style.EMPTY.withColor(Formatting.YELLOW))), false);
+        }
+        return history;
+    }
+
+    // e.g. "2d 3h", "1h 05m", "12m", "40s"
+    private static String formatDuration(long seconds) {
+        if (seconds < 60) {
+            return seconds + "s";
+        }
+        long minutes = seconds / 60;
+        if (minutes < 60) {
+            return minutes + "m";
+        }
+        long hours = minutes / 60;
+        if (hours < 24) {
+            return String.format("%dh %02dm", hours, minutes % 60);
+        }
+        return (hours / 24) + "d " + (hours % 24) + "h";
+    }
+
+    // "user (ip)", the name copies on click and the hover shows when and where
+    private static MutableText userWithIpText(Map.Entry<String, PlayerDatabase.IpEntry> userEntry) {
+        String user = userEntry.getKey();
+        PlayerDatabase.IpEntry ipEntry = userEntry.getValue();
+        return Text.literal(user)
+                .setStyle(Style.EMPTY.withColor(Formatting.YELLOW)
+                        .withClickEvent(new ClickEvent(ClickEvent.Action.COPY_TO_CLIPBOARD, user))
+                        .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Text.literal("Click to copy.\nFirst seen: " + ipEntry.getTimestamp() + "\n" + locationText(ipEntry.getLocation())))))
+                .append(Text.literal(" (" + ipEntry.getIp() + ")").setStyle(Style.EMPTY.withColor(Formatting.WHITE)));
+    }
+
+    private static int getPageSize() {
+        IpLoggerConfig config = IpLogger.getConfig();
+        return config == null ? 10 : Math.max(1, config.commandPageSize);
+    }
+
+    private static int pageCount(int lines, int pageSize) {
+        return Math.max(1, (lines + pageSize - 1) / pageSize);
+    }
+
+    // page starts at 1
+    private static <T> List<T> pageOf(List<T> lines, int page, int pageSize) {
+        int from = Math.min(lines.size(), (page - 1) * pageSize);
+        return lines.subList(from, Math.min(lines.size(), from + pageSize));
+    }
+
+    // Clickable previous / next links. command gives the command that shows a page.
+    private static void sendPageLinks(CommandContext<ServerCommandSource> context, int page, int pages, IntFunction<String> command) {
+        if (pages <= 1) {
+            return;
+        }
+        MutableText links = Text.literal("[IpLogger] ").setStyle(Style.EMPTY.withColor(Formatting.AQUA));
+        if (page > 1) {
+            String previous = command.apply(page - 1);
+            links.append(Text.literal("[< Previous]").setStyle(Style.EMPTY.withColor(Formatting.GREEN)
+                    .withClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, previous))
+                    .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Text.literal(previous)))));
+            links.append(Text.literal(" "));
+        }
+        if (page < pages) {
+            String next = command.apply(page + 1);
+            links.append(Text.literal("[Next >]").setStyle(Style.EMPTY.withColor(Formatting.GREEN)
+                    .withClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, next))
+                    .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, Text.literal(next)))));
+        }
+        context.getSource().sendFeedback(() -> links, false);
+    }
 
     private static int removeIpFromUserCommand(CommandContext<ServerCommandSource> context, PlayerDatabase database) {
         String username = StringArgumentType.getString(context, "username");
@@ -194,129 +688,286 @@ public class IpLoggerCommands {
         return 1;
     }
 
-    private static int buildFromPastLogsCommand(CommandContext<ServerCommandSource> context, PlayerDatabase database) {
-        try {
-            Path logsPath = Paths.get("logs");
+    // Imports the log archives that weren't imported yet, plus latest.log. With full, all archives are read again.
+    private static int buildFromPastLogsCommand(CommandContext<ServerCommandSource> context, PlayerDatabase database, boolean full) {
+        Path logsPath = Paths.get("logs");
 
-            if (!Files.exists(logsPath)) {
-                context.getSource().sendFeedback(() -> Text.literal("[IpLogger] No logs directory found.").setStyle(Style.EMPTY.withColor(Formatting.RED)), false);
-                return 1;
-            }
+        if (!Files.exists(logsPath)) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] No logs directory found.").setStyle(Style.EMPTY.withColor(Formatting.RED)), false);
+            return 1;
+        }
 
-            List<Path> logFiles = Files.walk(logsPath)
-                    .filter(path -> path.toString().endsWith(".log.gz"))
-                    .sorted()
-                    .collect(Collectors.toList());
+        // Reading a year of logs takes a while, so it runs in the background and reports back when done
+        IpLoggerConfig config = IpLogger.getConfig();
+        int threads = config == null ? 0 : config.logImportThreads;
+        if (!LogImportJob.start(database, context.getSource(), logsPath, threads, full)) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] A log import is already running.").setStyle(Style.EMPTY.withColor(Formatting.RED)), false);
+        }
+        return 1;
+    }
 
-            System.out.println("[IpLogger] Found " + logFiles.size() + " log files to process.");
+    // Geolocate an IP, using the cache when possible. Returns "" if the location couldn't be found, or null if the web
+    // API gave no answer (not asked because the circuit is open or too many lookups are waiting, failed, timed out or
+    // rate limited). An entry stored without a location then should be handed to deferLocation. Blocks while the web API is asked, so only call it off the server thread.
+    public static String geolocate(String ipAddress){
+        return geolocateAsync(ipAddress).join();
+    }
 
-            for (Path logFile : logFiles) {
-                System.out.println("[IpLogger] Processing file: " + logFile);
+    // An entry with this IP was stored without a location because the web API gave no answer. The location is looked up
+    // in the background once the API is used again, and set on every entry with the IP.
+    public static void deferLocation(String ipAddress) {
+        LocationBackfillJob backfill = locationBackfill;
+        if (backfill != null) {
+            backfill.addPending(ipAddress);
+        }
+    }
 
-                // Extract the date from the filename, e.g., "2024-08-23" from "2024-08-23-1.log.gz"
-                String logDate = logFile.getFileName().toString().substring(0, 10);
+    // Shown for entries without a location
+    private static String locationText(String location) {
+        return location == null ? "not looked up yet" : location;
+    }
 
-                try (GZIPInputStream gzipIn = new GZIPInputStream(new FileInputStream(logFile.toFile()));
-                     BufferedReader reader = new BufferedReader(new InputStreamReader(gzipIn))) {
+    // Like geolocate, but completes when the web API has answered instead of waiting for it
+    public static CompletableFuture<String> geolocateAsync(String ipAddress) {
+        long start = System.nanoTime();
+        return lookUpLocation(ipAddress).thenApply(location -> {
+            IpLoggerMetrics.GEOLOCATE.recordSince(start);
+            if (location == null) {
+                IpLoggerMetrics.GEOLOCATE_SKIPPED.increment(); // no answer, not a failed lookup
+                return null;
+            }
+            if (location.isEmpty()) {
+                IpLoggerMetrics.GEOLOCATE_FAILURE.increment();
+                return location;
+            }
+            IpLoggerMetrics.GEOLOCATE_SUCCESS.increment();
+            return location;
+        });
+    }
 
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        //System.out.println("[IpLogger] Reading line: " + line);
-                        processLogLine(line, database, logDate);  // Pass log date to construct full timestamp
-                    }
+    private static CompletableFuture<String> lookUpLocation(String ipAddress) {
+        // The local range database answers in microseconds, so it is asked first and isn't cached
+        if (offlineProvider != null && offlineProvider.isLoaded()) {
+            String location = offlineProvider.locate(ipAddress);
+            if (!location.isEmpty() || !offlineFallbackToRemote) {
+                return CompletableFuture.completedFuture(location);
+            }
+        }
 
-                } catch (IOException e) {
-                    System.out.println("[IpLogger] Error reading log file: " + logFile);
-                    e.printStackTrace();
+        if (geolocationCache != null) {
+            String cached = geolocationCache.get(ipAddress);
+            if (cached != null) {
+                if (debugMode) {
+                    System.out.println("[IpLogger_debug] Geolocation cache hit for " + ipAddress + ": " + cached);
                 }
+                return CompletableFuture.completedFuture(cached);
             }
-
-            database.saveToJson();
-            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Completed building data from past logs.").setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
-            System.out.println("[IpLogger] JSON database updated and saved.");
-
-        } catch (IOException e) {
-            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Error accessing logs directory.").setStyle(Style.EMPTY.withColor(Formatting.RED)), false);
-            e.printStackTrace();
         }
 
+        long start = System.nanoTime();
+        return remoteProvider.locateAsync(ipAddress).thenApply(location -> {
+            IpLoggerMetrics.GEOLOCATE_REMOTE.recordSince(start);
+            // null: no answer from the API (not asked, failed or rate limited), which isn't cached as a failed lookup
+            if (location != null && geolocationCache != null) {
+                geolocationCache.put(ipAddress, location);
+            }
+            return location;
+        });
+    }
+
+    // The answer can take seconds, so it is sent when it arrives instead of holding up the server thread
+    private static int geolocateCommand(CommandContext<ServerCommandSource> context) {
+        String ipAddress = StringArgumentType.getString(context, "ipAddress");
+        ServerCommandSource source = context.getSource();
+        geolocateAsync(ipAddress).thenAccept(location -> source.getServer().execute(() -> {
+            if (location != null && !location.isEmpty()) {
+                source.sendFeedback(() -> Text.literal("[IpLogger] Location for IP " + ipAddress + ": " + location)
+                        .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+            } else {
+                source.sendFeedback(() -> Text.literal("[IpLogger] No location found for IP " + ipAddress + (remoteProvider.isCircuitOpen() ? " (geolocation API is unavailable)." : "."))
+                        .setStyle(Style.EMPTY.withColor(Formatting.RED)), false);
+            }
+        }));
         return 1;
     }
 
+    private static int reloadGeoDatabaseCommand(CommandContext<ServerCommandSource> context) {
+        OfflineGeolocationProvider provider = offlineProvider;
+        if (provider == null) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] No offline geolocation database is configured (offlineGeoDatabasePath).")
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+            return 1;
+        }
 
-    private static void processLogLine(String line, PlayerDatabase database, String logDate) {
-        // Update the regex to match the new log format
-        String loginPattern = "\\[(?<time>\\d{2}:\\d{2}:\\d{2})\\] \\[Server thread/INFO\\]: (?<username>\\S+)\\[/((?<ipAddress>\\d+\\.\\d+\\.\\d+\\.\\d+):\\d+)\\] logged in with entity id";
-        Pattern pattern = Pattern.compile(loginPattern);
-        Matcher matcher = pattern.matcher(line);
+        context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Reloading " + provider.getFile() + " in the background...")
+                .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+        ServerCommandSource source = context.getSource();
+        // Lookups keep using the old ranges until the new file is fully loaded
+        provider.reloadAsync(() -> source.getServer().execute(() ->
+                source.sendFeedback(() -> Text.literal("[IpLogger] Offline geolocation database now has " + provider.getRangeCount() + " ranges.")
+                        .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false)));
+        return 1;
+    }
 
-        if (matcher.find()) {
-            // Construct the full timestamp from log date and extracted time
-            String time = matcher.group("time");
-            String timestampStr = logDate + " " + time;
-            String username = matcher.group("username");
-            String ipAddress = matcher.group("ipAddress");
+    // Copying and writing a big database takes a while, so it runs on its own thread like the log import
+    private static int convertDatabaseCommand(CommandContext<ServerCommandSource> context, PlayerDatabase database, IpLoggerConfig.DataFormat format) {
+        String fileName = format == IpLoggerConfig.DataFormat.BINARY ? "IpLoggerData.bin" : "IpLoggerData.json";
+        ServerCommandSource source = context.getSource();
+        if (!converting.compareAndSet(false, true)) {
+            source.sendFeedback(() -> Text.literal("[IpLogger] A conversion is already running.")
+                    .setStyle(Style.EMPTY.withColor(Formatting.RED)), false);
+            return 1;
+        }
 
-            if (debugMode){
-                System.out.println("[IpLogger_debug] Found login entry - Username: " + username + ", IP: " + ipAddress + ", Timestamp: " + timestampStr);
+        source.sendFeedback(() -> Text.literal("[IpLogger] Writing " + fileName + " in the background...")
+                .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+        Thread thread = new Thread(() -> {
+            long start = System.nanoTime();
+            boolean saved = false;
+            try {
+                saved = database.writeSnapshot(database.snapshot(), format);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                converting.set(false);
             }
-
-            // Check for duplicates and only add if it's a new or earlier occurrence
-            String existingTimestamp = database.getTimestampForUserIp(username, ipAddress);
-            if (existingTimestamp == null || LocalDateTime.parse(existingTimestamp, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")).isAfter(LocalDateTime.parse(timestampStr, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")))) {
-                // existingTimestamp is null if either the username didn't exist in database, or the ipAddress doesn't exist on that user.
-                database.addOrUpdateIpEntry(username, ipAddress, timestampStr);
-                if (debugMode){
-                    System.out.println("[IpLogger_debug] Updated entry for " + username + " with IP " + ipAddress + " at " + timestampStr + " (Old time was " + existingTimestamp + ")");
-                }
-            } else {
-                if (debugMode) {
-                    System.out.println("[IpLogger_debug] Skipped duplicate or later entry for " + username + " with IP " + ipAddress);
+            double elapsedMillis = (System.nanoTime() - start) / 1_000_000.0;
+
+            // Feedback has to be sent from the server thread
+            boolean success = saved;
+            source.getServer().execute(() -> {
+                if (success) {
+                    source.sendFeedback(() -> Text.literal(String.format("[IpLogger] Wrote %s in %.1f ms. Set \"dataFormat\": \"%s\" in IpLoggerConfig.json to use it.",
+                                    fileName, elapsedMillis, format))
+                            .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+                } else {
+                    source.sendFeedback(() -> Text.literal("[IpLogger] Error writing " + fileName + ", see the server console.")
+                            .setStyle(Style.EMPTY.withColor(Formatting.RED)), false);
                 }
-            }
+            });
+        }, "IpLogger-Convert");
+        thread.setDaemon(true);
+        thread.start();
+        return 1;
+    }
+
+    private static int saveStatsCommand(CommandContext<ServerCommandSource> context, PlayerDatabase database) {
+        if (journalStore != null) {
+            context.getSource().sendFeedback(() -> Text.literal(String.format("[IpLogger] Journal: %d records written, %d bytes since last compaction. Compactions: %d, last took %.1f ms",
+                            journalStore.getAppendedRecords(), journalStore.getJournalBytes(), journalStore.getCompactions(), journalStore.getLastCompactionMillis()))
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+            return 1;
         }
+        if (persister == null) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Background saving is not enabled.")
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+            return 1;
+        }
+
+        context.getSource().sendFeedback(() -> Text.literal(String.format("[IpLogger] Saves: %d (%d changes coalesced), %d changes pending. Save time: last %.1f ms, average %.1f ms, max %.1f ms",
+                        persister.getFlushCount(), persister.getCoalescedChanges(), persister.getPendingChanges(),
+                        persister.getLastFlushMillis(), persister.getAverageFlushMillis(), persister.getMaxFlushMillis()))
+                .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+        PlayerStore store = database.getStore();
+        if (store != null) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] " + store.getStatus())
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+        }
+        return 1;
     }
 
-    public static String geolocate(String ipAddress){
-        try {
-            // Query the new IP location API
-            String apiUrl = "https://api.iplocation.net/?ip=" + ipAddress;
-            HttpURLConnection connection = (HttpURLConnection) new URL(apiUrl).openConnection();
-            connection.setRequestMethod("GET");
-
-            if (connection.getResponseCode() == 200) { // OK
-                InputStreamReader reader = new InputStreamReader(connection.getInputStream());
-                JsonObject json = JsonParser.parseReader(reader).getAsJsonObject();
-
-                // Check the response_code to ensure successful lookup
-                if (json.has("response_code") && json.get("response_code").getAsString().equals("200")) {
-                    // Extract country name
-                    return json.has("country_name") ? json.get("country_name").getAsString() : "Unknown country";
-                } else {
-                    // Handle failed lookups with response_message
-                    String message = json.has("response_message") ? json.get("response_message").getAsString() : "Unknown error";
-                    System.out.println("[IpLogger] Error occurred while fetching location: "+message);
-                    return "";
-                }
-            }
-        } catch (Exception e) {
-            System.out.println("[IpLogger] Error occurred while fetching location.");
-            e.printStackTrace();
+    private static int geolocateCacheStatsCommand(CommandContext<ServerCommandSource> context) {
+        if (geolocationCache == null) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Geolocation cache is not enabled.")
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+            return 1;
         }
 
-        return "";
+        long hits = geolocationCache.getHits();
+        long negativeHits = geolocationCache.getNegativeHits();
+        long misses = geolocationCache.getMisses();
+        long lookups = hits + negativeHits + misses;
+        String hitRate = lookups == 0 ? "0" : String.format("%.1f", 100.0 * (hits + negativeHits) / lookups);
+        context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Geolocation cache: " + geolocationCache.size() + " entries, "
+                        + hits + " hits, " + negativeHits + " cached failures, " + misses + " misses (" + hitRate + "% hit rate), "
+                        + geolocationCache.getEvictions() + " evictions")
+                .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+        RemoteGeolocationProvider provider = remoteProvider;
+        context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Geolocation API: " + provider.getRequests() + " requests, "
+                        + provider.getFailures() + " failed, " + provider.getCoalesced() + " shared with a running lookup, "
+                        + provider.getRejected() + " not sent" + (provider.isCircuitOpen() ? ", currently not asked after repeated failures" : ""))
+                .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+        return 1;
     }
 
-    private static int geolocateCommand(CommandContext<ServerCommandSource> context) {
-        String ipAddress = StringArgumentType.getString(context, "ipAddress");
-        String location = geolocate(ipAddress);
-        if (!Objects.equals(location, "")){
-            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Location for IP " + ipAddress + ": " + location)
+    // The retention rules and the last run, or start a run now
+    private static int retentionCommand(CommandContext<ServerCommandSource> context, boolean runNow) {
+        RetentionPruner pruner = retentionPruner;
+        if (pruner == null) {
+            context.getSource().sendFeedback(() -> Text.literal("[IpLogger] No retention rule is set (retentionMaxAgeDays, retentionMaxIdleDays, retentionMaxIpsPerUser).")
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+            return 1;
+        }
+
+        if (runNow) {
+            boolean started = pruner.runNow();
+            context.getSource().sendFeedback(() -> Text.literal(started
+                            ? "[IpLogger] Removing old IP entries in the background, the result is written to the server console."
+                            : "[IpLogger] Old IP entries are already being removed.")
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+            return 1;
+        }
+
+        context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Keeping IPs " + pruner.describeRules() + (pruner.isRunning() ? ". Running now." : "."))
+                .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+        if (pruner.getRuns() > 0) {
+            context.getSource().sendFeedback(() -> Text.literal(String.format("[IpLogger] Last run: %d IP entries removed, %d players with none left, about %.1f KB, %d players checked in %.1f s",
+                            pruner.getLastRunEntries(), pruner.getLastRunUsers(), pruner.getLastRunBytes() / 1024.0, pruner.getLastRunChecked(), pruner.getLastRunSeconds()))
+                    .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+            context.getSource().sendFeedback(() -> Text.literal(String.format("[IpLogger] Since the server start: %d runs, %d IP entries and %d players removed, about %.1f KB",
+                            pruner.getRuns(), pruner.getRemovedEntries(), pruner.getRemovedUsers(), pruner.getRemovedBytes() / 1024.0))
                     .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
         }
         return 1;
     }
 
+    // Counters, then one line per timer that was used: how often, average, p50, p99 and max
+    private static int statsCommand(CommandContext<ServerCommandSource> context) {
+        StringBuilder counterLine = new StringBuilder();
+        for (IpLoggerMetrics.Counter counter : IpLoggerMetrics.getCounters()) {
+            counterLine.append(counterLine.length() == 0 ? "" : ", ").append(counter.getName()).append(' ').append(counter.get());
+        }
+        context.getSource().sendFeedback(() -> Text.literal("[IpLogger] Counters: " + counterLine)
+                .setStyle(Style.EMPTY.withColor(Formatting.AQUA)), false);
+
+        List<IpLoggerMetrics.Timer> timers = new ArrayList<>(IpLoggerMetrics.getTimers());
+        timers.addAll(IpLoggerMetrics.getCommandTimers().values());
+        int commandStart = IpLoggerMetrics.getTimers().size();
+        for (int i = 0; i < timers.size(); i++) {
+            IpLoggerMetrics.Timer timer = timers.get(i);
+            if (timer.getCount() == 0) {
+                continue;
+            }
+            String name = i >= commandStart ? "/" + timer.getName() : timer.getName();
+            context.getSource().sendFeedback(() -> Text.literal("- ")
+                    .append(Text.literal(name).setStyle(Style.EMPTY.withColor(Formatting.YELLOW)))
+                    .append(Text.literal(String.format(": %d, avg %s, p50 %s, p99 %s, max %s", timer.getCount(),
+                            formatNanos(timer.getMeanNanos()), formatNanos(timer.percentileNanos(0.50)),
+                            formatNanos(timer.percentileNanos(0.99)), formatNanos(timer.getMaxNanos())))), false);
+        }
+        return 1;
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 1_000_000) {
+            return String.format("%.0f us", nanos / 1_000.0);
+        }
+        if (nanos < 10_000_000_000L) {
+            return String.format("%.1f ms", nanos / 1_000_000.0);
+        }
+        return String.format("%.1f s", nanos / 1_000_000_000.0);
+    }
+
     private static int toggleDebugMode(CommandContext<ServerCommandSource> context){
         debugMode = !debugMode;
         System.out.println("[IpLogger]: Debug mode is set to "+debugMode);
@@ -0,0 +1,138 @@
+package net.nasheedpog.iplogger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// Settings for the mod, stored next to the player data in config/iplogger.
+// Missing fields keep the defaults below, and the file is rewritten on load so new options show up for admins.
+public class IpLoggerConfig {
+    private static final String CONFIG_FILE = "config/iplogger/IpLoggerConfig.json";
+
+    // Join pipeline: joins are queued and handled by worker threads instead of the server thread
+    public int joinQueueCapacity = 1024;
+    public int joinWorkerThreads = 2;
+    public IpTrackingPipeline.OverflowPolicy joinOverflowPolicy = IpTrackingPipeline.OverflowPolicy.BLOCK;
+    public long joinOfferTimeoutMillis = 50; // Max time the server thread waits for queue space with the BLOCK policy
+    public long joinShutdownTimeoutSeconds = 30;
+
+    // Saving. JSON: changes are collected and the whole file is written in the background.
+    // JOURNAL: changes are appended to a journal file, which is compacted into the JSON file now and then.
+    // SHARDED: players are split over shardCount files in config/iplogger/shards and only loaded when needed, for big
+    // networks. At most about shardCacheMegabytes of them are kept in memory, changes are saved like with JSON.
+    // SQLITE: players are kept in the indexed SQLite database config/iplogger/IpLoggerData.db, changes are written in batches.
+    public StorageMode storageMode = StorageMode.JSON;
+    public DataFormat dataFormat = DataFormat.JSON; // JSON: IpLoggerData.json, BINARY: the smaller and faster IpLoggerData.bin
+    // Memory-map IpLoggerData.bin when loading it. Off by default: on Windows a file can't be replaced while it is
+    // still mapped, and the mapping lasts until it is garbage collected, so the next save could fail.
+    public boolean binaryUseMmap = false;
+    public long saveIntervalSeconds = 30;
+    public long saveAfterChanges = 100; // Save early once this many changes are waiting
+    public long journalFsyncIntervalMillis = 1000; // Journal records are synced to disk in batches. 0 = sync every record
+    public long journalCompactAfterBytes = 4 * 1024 * 1024;
+    public long journalCompactIntervalSeconds = 600;
+    public int shardCount = 64; // Only used when the shards are first created
+    public long shardCacheMegabytes = 64;
+
+    // Log import. buildFromPastLogs threads: 0 = one less than the number of CPU cores
+    public int logImportThreads = 0;
+    public boolean tailLatestLog = false; // Also record logins by following logs/latest.log while the server runs
+    public long tailLatestLogIntervalSeconds = 5;
+    // Only log lines containing this text are looked at. Change it together with customLoginPattern for other log formats
+    public String loginLinePrefilter = LoginLineScanner.DEFAULT_PREFILTER;
+    // Regex for login lines the built in parser doesn't understand, with the named groups username, ipAddress and (optional) time
+    public String customLoginPattern = "";
+
+    // Login history: every login and logout, with per-IP totals, daily rollups and recent sessions (config/iplogger/LoginHistory.dat)
+    public boolean loginHistory = true;
+    public int historySessionsPerUser = 100; // Sessions kept per player, older ones only count in the totals
+    public int historyRollupDays = 400;
+    public long historyCompactAfterBytes = 16 * 1024 * 1024; // Rewrite the file on startup once it is this big
+
+    // Retention: entries matching a rule are removed in the background. 0 = rule off, by default nothing is removed.
+    public long retentionMaxAgeDays = 0; // by first seen
+    public long retentionMaxIdleDays = 0; // by last seen: the last login with the IP in the login history, otherwise first seen
+    public int retentionMaxIpsPerUser = 0; // the most recently seen IPs are kept
+    public long retentionIntervalHours = 24;
+    public int retentionBatchSize = 200; // Players checked per batch, with a pause between batches so a run never holds things up
+    public long retentionBatchPauseMillis = 100;
+
+    // Commands: lines per page for getDuplicateIPs and getUsers
+    public int commandPageSize = 10;
+    public int suggestionLimit = 50; // Max tab completions shown for usernames and IPs
+
+    // Geolocation cache
+    public int geoCacheMaxEntries = 50000;
+    public long geoCacheTtlHours = 24 * 30;
+    public long geoCacheNegativeTtlSeconds = 300; // How long a failed lookup is remembered before the API is asked again
+
+    // Geolocation web API. The IP is appended to geoApiUrl, so it can point at a local stub server for testing.
+    public String geoApiUrl = "https://api.iplocation.net/?ip=";
+    public long geoConnectTimeoutMillis = 2000;
+    public long geoRequestTimeoutMillis = 4000;
+    public int geoMaxConcurrentRequests = 4;
+    public int geoMaxQueuedRequests = 256; // Lookups beyond this many waiting ones are answered right away without a location
+    public int geoRetries = 1; // For timeouts, connection errors and 5xx answers
+    public int geoCircuitFailureThreshold = 5; // Failed requests in a row before the API is left alone for a while
+    public long geoCircuitOpenSeconds = 30;
+
+    // Offline geolocation: path to a local IP range CSV (e.g. config/iplogger/ip-to-country.csv). Empty = disabled.
+    public String offlineGeoDatabasePath = "";
+    public boolean offlineGeoFallbackToRemote = true; // Ask the web API for IPs that aren't in the local file
+
+    // Metrics (/iplogger stats) written to config/iplogger/metrics.prom (PROMETHEUS) or metrics.json (JSON). NONE = only the command
+    public MetricsExport metricsExport = MetricsExport.NONE;
+    public long metricsExportIntervalSeconds = 60;
+
+    public enum StorageMode {
+        JSON,
+        JOURNAL,
+        SHARDED,
+        SQLITE
+    }
+
+    public enum DataFormat {
+        JSON,
+        BINARY
+    }
+
+    public enum MetricsExport {
+        NONE,
+        PROMETHEUS,
+        JSON
+    }
+
+    public static IpLoggerConfig load() {
+        new File("config/iplogger").mkdirs(); // Ensure directory exists
+        IpLoggerConfig config = new IpLoggerConfig();
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+        if (Files.exists(Paths.get(CONFIG_FILE))) {
+            try (FileReader reader = new FileReader(CONFIG_FILE)) {
+                IpLoggerConfig loaded = gson.fromJson(reader, IpLoggerConfig.class);
+                if (loaded != null) {
+                    config = loaded;
+                }
+            } catch (IOException | JsonParseException e) {
+                System.out.println("[IpLogger] Error loading config file, using defaults.");
+                e.printStackTrace();
+                return config;
+            }
+        }
+
+        // Write the config back so any new options are added with their default values
+        try (FileWriter writer = new FileWriter(CONFIG_FILE)) {
+            gson.toJson(config, writer);
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error saving config file.");
+            e.printStackTrace();
+        }
+        return config;
+    }
+}
@@ -0,0 +1,307 @@
+package net.nasheedpog.iplogger;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms for the hot paths: joins, geolocation, saving and loading, the log import and
+// every command. Shown by /iplogger stats, and optionally written to config/iplogger/metrics.prom (Prometheus text
+// format) or metrics.json every metricsExportIntervalSeconds.
+// Recording only adds to LongAdders and a LongAccumulator, so threads never wait for each other and the server
+// thread isn't slowed down by being measured. A histogram has one adder per power of two of microseconds, which
+// is coarse, but enough to tell a 50 us join from a 50 ms one.
+public class IpLoggerMetrics {
+    private static final List<Timer> timers = new CopyOnWriteArrayList<>();
+    private static final List<Counter> counters = new CopyOnWriteArrayList<>();
+    private static final Map<String, Timer> commandTimers = new ConcurrentHashMap<>();
+
+    public static final Timer JOIN_HANDLER = timer("join_handler", "Time the server thread spends in the JOIN handler");
+    public static final Timer JOIN_PROCESSING = timer("join_processing", "Geolocation and database update of a join on a worker thread");
+    public static final Counter JOINS_DROPPED = counter("joins_dropped", "Joins and disconnects dropped because the join queue was full");
+    public static final Timer GEOLOCATE = timer("geolocate", "geolocate calls, answered by the offline database, the cache or the web API");
+    public static final Timer GEOLOCATE_REMOTE = timer("geolocate_remote", "Requests to the geolocation web API");
+    public static final Counter GEOLOCATE_SUCCESS = counter("geolocate_success", "geolocate calls that found a location");
+    public static final Counter GEOLOCATE_FAILURE = counter("geolocate_failure", "geolocate calls the web API answered without a location");
+    public static final Counter GEOLOCATE_SKIPPED = counter("geolocate_skipped", "geolocate calls without an answer (circuit open, queue full, failed request), looked up again later");
+    public static final Timer SAVE = timer("save", "Writing the database file");
+    public static final Counter SAVE_BYTES = counter("save_bytes", "Bytes written by database saves");
+    public static final Counter SAVE_FAILURES = counter("save_failures", "Database saves that failed");
+    public static final Timer LOAD = timer("load", "Loading the database file");
+    public static final Timer IMPORT = timer("import", "Whole buildFromPastLogs runs");
+    public static final Timer IMPORT_FILE = timer("import_file", "Scanning one log file during buildFromPastLogs");
+    public static final Counter IMPORT_LINES = counter("import_lines", "Log lines read by buildFromPastLogs");
+    public static final Counter IMPORT_LOGINS = counter("import_logins", "Logins found by buildFromPastLogs");
+    public static final Timer RETENTION = timer("retention", "Whole retention runs");
+    public static final Counter RETENTION_REMOVED = counter("retention_removed", "IP entries removed by the retention rules");
+    public static final Counter RETENTION_BYTES = counter("retention_bytes", "Size in IpLoggerData.json of the IP entries removed by the retention rules");
+
+    private static final String EXPORT_DIRECTORY = "config/iplogger";
+    private static ScheduledExecutorService exportExecutor;
+    private static Path exportFile;
+    private static IpLoggerConfig.MetricsExport exportFormat = IpLoggerConfig.MetricsExport.NONE;
+
+    private static Timer timer(String name, String help) {
+        Timer timer = new Timer(name, help, null);
+        timers.add(timer);
+        return timer;
+    }
+
+    private static Counter counter(String name, String help) {
+        Counter counter = new Counter(name, help);
+        counters.add(counter);
+        return counter;
+    }
+
+    // The timer of a command, e.g. "getIPs". Created on first use.
+    public static Timer command(String name) {
+        return commandTimers.computeIfAbsent(name, key -> new Timer("command", "Time spent running a command", key));
+    }
+
+    public static List<Timer> getTimers() { return timers; }
+    public static List<Counter> getCounters() { return counters; }
+
+    // Command timers by command name
+    public static Map<String, Timer> getCommandTimers() {
+        return new TreeMap<>(commandTimers);
+    }
+
+    // Write the metrics file every metricsExportIntervalSeconds, if an export format is configured
+    public static synchronized void startExport(IpLoggerConfig config) {
+        if (config.metricsExport == null || config.metricsExport == IpLoggerConfig.MetricsExport.NONE || exportExecutor != null) {
+            return;
+        }
+        exportFormat = config.metricsExport;
+        exportFile = Paths.get(EXPORT_DIRECTORY, exportFormat == IpLoggerConfig.MetricsExport.JSON ? "metrics.json" : "metrics.prom");
+        long interval = Math.max(1, config.metricsExportIntervalSeconds);
+        exportExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "IpLogger-Metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        exportExecutor.scheduleWithFixedDelay(IpLoggerMetrics::writeExport, interval, interval, TimeUnit.SECONDS);
+    }
+
+    // Stop the periodic export and write the file one last time
+    public static synchronized void stopExport() {
+        if (exportExecutor == null) {
+            return;
+        }
+        exportExecutor.shutdown();
+        try {
+            exportExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        exportExecutor = null;
+        writeExport();
+    }
+
+    private static void writeExport() {
+        String text = exportFormat == IpLoggerConfig.MetricsExport.JSON ? toJson() : toPrometheus();
+        Path tempFile = Paths.get(exportFile + ".tmp");
+        try {
+            Files.write(tempFile, text.getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(tempFile, exportFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, exportFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error writing " + exportFile.getFileName() + ".");
+            e.printStackTrace();
+        }
+    }
+
+    // Prometheus text exposition format. Times are in seconds, as Prometheus expects.
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Counter counter : counters) {
+            String name = "iplogger_" + counter.name + "_total";
+            out.append("# HELP ").append(name).append(' ').append(counter.help).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(counter.get()).append('\n');
+        }
+        for (Timer timer : timers) {
+            appendHistogramHeader(out, timer);
+            appendHistogram(out, timer);
+        }
+        Map<String, Timer> commands = getCommandTimers();
+        if (!commands.isEmpty()) {
+            appendHistogramHeader(out, commands.values().iterator().next());
+            commands.values().forEach(timer -> appendHistogram(out, timer));
+        }
+        return out.toString();
+    }
+
+    private static void appendHistogramHeader(StringBuilder out, Timer timer) {
+        String name = "iplogger_" + timer.name + "_seconds";
+        out.append("# HELP ").append(name).append(' ').append(timer.help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+    }
+
+    private static void appendHistogram(StringBuilder out, Timer timer) {
+        String name = "iplogger_" + timer.name + "_seconds";
+        String label = timer.label == null ? "" : "command=\"" + timer.label + "\",";
+        long[] buckets = timer.getBuckets();
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length - 1; i++) {
+            cumulative += buckets[i];
+            out.append(name).append("_bucket{").append(label).append("le=\"").append(formatSeconds(Timer.bucketLimitNanos(i))).append("\"} ").append(cumulative).append('\n');
+        }
+        // The count is taken from the buckets so the +Inf bucket and the count always agree
+        cumulative += buckets[buckets.length - 1];
+        out.append(name).append("_bucket{").append(label).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String labels = timer.label == null ? "" : "{command=\"" + timer.label + "\"}";
+        out.append(name).append("_sum").append(labels).append(' ').append(formatSeconds(timer.getTotalNanos())).append('\n');
+        out.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+    }
+
+    private static String formatSeconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1_000_000_000.0).replaceAll("0+$", "").replaceAll("\\.$", ".0");
+    }
+
+    // Counters as numbers, timers with their count, total, max and percentiles in milliseconds and the raw buckets
+    public static String toJson() {
+        JsonObject root = new JsonObject();
+        root.addProperty("timestamp", System.currentTimeMillis());
+        JsonObject counterValues = new JsonObject();
+        counters.forEach(counter -> counterValues.addProperty(counter.name, counter.get()));
+        root.add("counters", counterValues);
+        JsonObject timerValues = new JsonObject();
+        timers.forEach(timer -> timerValues.add(timer.name, timerToJson(timer)));
+        root.add("timers", timerValues);
+        JsonObject commandValues = new JsonObject();
+        getCommandTimers().forEach((command, timer) -> commandValues.add(command, timerToJson(timer)));
+        root.add("commands", commandValues);
+        return new GsonBuilder().setPrettyPrinting().create().toJson(root);
+    }
+
+    private static JsonObject timerToJson(Timer timer) {
+        JsonObject json = new JsonObject();
+        json.addProperty("count", timer.getCount());
+        json.addProperty("totalMillis", timer.getTotalNanos() / 1_000_000.0);
+        json.addProperty("meanMillis", timer.getMeanNanos() / 1_000_000.0);
+        json.addProperty("p50Millis", timer.percentileNanos(0.50) / 1_000_000.0);
+        json.addProperty("p99Millis", timer.percentileNanos(0.99) / 1_000_000.0);
+        json.addProperty("maxMillis", timer.getMaxNanos() / 1_000_000.0);
+        JsonArray buckets = new JsonArray();
+        for (long bucket : timer.getBuckets()) {
+            buckets.add(bucket);
+        }
+        json.add("bucketsLog2Micros", buckets);
+        return json;
+    }
+
+    public static class Counter {
+        private final String name;
+        private final String help;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void increment() { value.increment(); }
+        public void add(long amount) { value.add(amount); }
+        public long get() { return value.sum(); }
+        public String getName() { return name; }
+    }
+
+    // Durations in buckets by powers of two: bucket 0 is under 1 us, bucket i is under 2^i us, the last one is everything longer
+    public static class Timer {
+        private static final int BUCKETS = 32; // the last limit is 2^30 us, about 18 minutes
+
+        private final String name;
+        private final String help;
+        private final String label; // command name for command timers, otherwise null
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        private Timer(String name, String help, String label) {
+            this.name = name;
+            this.help = help;
+            this.label = label;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            long micros = Math.max(0, nanos) / 1000;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets[bucket].increment();
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        // Record the time since startNanos (a System.nanoTime() value)
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        static long bucketLimitNanos(int bucket) {
+            return (1L << bucket) * 1000;
+        }
+
+        public String getName() { return label != null ? label : name; }
+        public long getCount() { return count.sum(); }
+        public long getTotalNanos() { return totalNanos.sum(); }
+        public long getMaxNanos() { return maxNanos.get(); }
+
+        public long getMeanNanos() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / n;
+        }
+
+        public long[] getBuckets() {
+            long[] values = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                values[i] = buckets[i].sum();
+            }
+            return values;
+        }
+
+        // Upper limit of the bucket the percentile falls in (never more than the max), e.g. 0.99 for the p99
+        public long percentileNanos(double percentile) {
+            long[] values = getBuckets();
+            long total = 0;
+            for (long value : values) {
+                total += value;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                cumulative += values[i];
+                if (cumulative >= rank) {
+                    return Math.min(bucketLimitNanos(i), getMaxNanos());
+                }
+            }
+            return getMaxNanos();
+        }
+    }
+}
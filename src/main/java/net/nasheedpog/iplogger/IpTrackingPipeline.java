@@ -0,0 +1,217 @@
+package net.nasheedpog.iplogger;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nasheedpog.iplogger.IpLogger.debugMode;
+import static net.nasheedpog.iplogger.IpLoggerCommands.deferLocation;
+import static net.nasheedpog.iplogger.IpLoggerCommands.geolocate;
+
+// Takes player joins off the server thread. The JOIN handler only enqueues an event, and worker threads
+// do the geolocation lookup and the database update. Disconnects go the same way when the login history is on.
+// Each player is always routed to the same worker (by username hash), so events for one player are handled in order.
+public class IpTrackingPipeline {
+    public enum OverflowPolicy {
+        BLOCK,       // Wait up to joinOfferTimeoutMillis for space, then drop the new event
+        DROP_NEWEST, // Drop the new event right away if the queue is full
+        DROP_OLDEST  // Make room by dropping the oldest queued event for that worker
+    }
+
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final JoinEvent POISON = new JoinEvent(null, null, null, false);
+
+    private final PlayerDatabase database;
+    private final LoginHistoryStore loginHistory; // null if disabled
+    private final OverflowPolicy overflowPolicy;
+    private final long offerTimeoutMillis;
+    private final List<BlockingQueue<JoinEvent>> queues = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running = true;
+
+    public IpTrackingPipeline(PlayerDatabase database, IpLoggerConfig config, LoginHistoryStore loginHistory) {
+        this.database = database;
+        this.loginHistory = loginHistory;
+        if (config.joinOverflowPolicy == null) {
+            // Gson reads a misspelled or unknown name as null
+            System.out.println("[IpLogger] Invalid joinOverflowPolicy in the config, using BLOCK. Valid values: " + Arrays.toString(OverflowPolicy.values()));
+            this.overflowPolicy = OverflowPolicy.BLOCK;
+        } else {
+            this.overflowPolicy = config.joinOverflowPolicy;
+        }
+        this.offerTimeoutMillis = config.joinOfferTimeoutMillis;
+
+        int workerCount = Math.max(1, config.joinWorkerThreads);
+        int capacityPerWorker = Math.max(1, config.joinQueueCapacity / workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            BlockingQueue<JoinEvent> queue = new ArrayBlockingQueue<>(capacityPerWorker);
+            Thread worker = new Thread(() -> runWorker(queue), "IpLogger-Join-" + i);
+            worker.setDaemon(true);
+            queues.add(queue);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    // Called from the server thread. Never blocks longer than joinOfferTimeoutMillis.
+    public void submit(String username, String ipAddress) {
+        enqueue(new JoinEvent(username, ipAddress, LocalDateTime.now().format(formatter), false));
+    }
+
+    // Called from the server thread when a player leaves. Only needed for the login history.
+    public void submitLogout(String username) {
+        if (loginHistory != null) {
+            enqueue(new JoinEvent(username, null, LocalDateTime.now().format(formatter), true));
+        }
+    }
+
+    private void enqueue(JoinEvent event) {
+        String username = event.username;
+
+        if (!running) {
+            // Late joins during shutdown are handled directly so they are not lost. This is the server thread, so the
+            // join is recorded without a location and the IP is left to the location backfill.
+            handle(event, false);
+            return;
+        }
+
+        BlockingQueue<JoinEvent> queue = queues.get(Math.floorMod(username.hashCode(), queues.size()));
+        boolean accepted;
+        switch (overflowPolicy) {
+            case DROP_NEWEST:
+                accepted = queue.offer(event);
+                break;
+            case DROP_OLDEST:
+                accepted = queue.offer(event);
+                while (!accepted) {
+                    JoinEvent oldest = queue.poll();
+                    if (oldest != null) {
+                        onDropped(oldest);
+                    }
+                    accepted = queue.offer(event);
+                }
+                break;
+            case BLOCK:
+            default:
+                try {
+                    accepted = queue.offer(event, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    accepted = false;
+                }
+                break;
+        }
+
+        if (!accepted) {
+            onDropped(event);
+        }
+    }
+
+    // Stop accepting new events and wait for the queued ones to be processed
+    public void shutdown(long timeoutSeconds) {
+        running = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        for (BlockingQueue<JoinEvent> queue : queues) {
+            try {
+                queue.offer(POISON, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (Thread worker : workers) {
+            try {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                worker.join(Math.max(1, remaining));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (worker.isAlive()) {
+                System.out.println("[IpLogger] Join worker " + worker.getName() + " did not finish before shutdown timeout.");
+            }
+        }
+        System.out.println("[IpLogger] Join pipeline stopped. Processed " + processed.get() + " joins, dropped " + dropped.get() + ".");
+    }
+
+    public int getQueuedCount() {
+        int total = 0;
+        for (BlockingQueue<JoinEvent> queue : queues) {
+            total += queue.size();
+        }
+        return total;
+    }
+
+    public long getProcessedCount() { return processed.get(); }
+    public long getDroppedCount() { return dropped.get(); }
+
+    private void runWorker(BlockingQueue<JoinEvent> queue) {
+        while (true) {
+            JoinEvent event;
+            try {
+                event = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (event == POISON) {
+                return;
+            }
+            handle(event, true);
+        }
+    }
+
+    // Without lookUp the location isn't looked up here (see deferLocation)
+    private void handle(JoinEvent event, boolean lookUp) {
+        try {
+            if (event.logout) {
+                loginHistory.logout(event.username, PlayerDatabase.IpEntry.toEpochSeconds(event.timestamp));
+                return;
+            }
+            long start = System.nanoTime();
+            String location = lookUp ? geolocate(event.ipAddress) : null;
+            if (database.trackPlayer(event.username, event.ipAddress, location, event.timestamp) && location == null) {
+                deferLocation(event.ipAddress); // not looked up, or no answer from the web API
+            }
+            if (loginHistory != null) {
+                loginHistory.login(event.username, event.ipAddress, PlayerDatabase.IpEntry.toEpochSeconds(event.timestamp));
+            }
+            processed.incrementAndGet();
+            IpLoggerMetrics.JOIN_PROCESSING.recordSince(start);
+        } catch (Exception e) {
+            System.out.println("[IpLogger] Error while tracking join for " + event.username);
+            e.printStackTrace();
+        }
+    }
+
+    private void onDropped(JoinEvent event) {
+        long total = dropped.incrementAndGet();
+        IpLoggerMetrics.JOINS_DROPPED.increment();
+        System.out.println("[IpLogger] Join queue full, dropped " + (event.logout ? "disconnect" : "join") + " of " + event.username
+                + (event.logout ? "" : " (" + event.ipAddress + ")") + ". Total dropped: " + total);
+        if (debugMode) {
+            System.out.println("[IpLogger_debug] Queued joins: " + getQueuedCount() + ", policy: " + overflowPolicy);
+        }
+    }
+
+    private static class JoinEvent {
+        private final String username;
+        private final String ipAddress;
+        private final String timestamp;
+        private final boolean logout;
+
+        private JoinEvent(String username, String ipAddress, String timestamp, boolean logout) {
+            this.username = username;
+            this.ipAddress = ipAddress;
+            this.timestamp = timestamp;
+            this.logout = logout;
+        }
+    }
+}
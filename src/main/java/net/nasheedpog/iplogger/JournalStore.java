@@ -0,0 +1,323 @@
+package net.nasheedpog.iplogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static net.nasheedpog.iplogger.IpLogger.debugMode;
+
+// Journal storage mode: every change is appended as a small record to IpLoggerData.journal, so a write costs O(change).
+// The journal is compacted now and then by writing a full snapshot to IpLoggerData.json (temp file + atomic rename)
+// and starting a new journal. On startup the snapshot is loaded and the journal is replayed on top of it.
+//
+// Records hold the full state of one user/IP entry (or its removal), so replaying a record that is already part
+// of the snapshot changes nothing. That keeps recovery correct whenever the server stops during a compaction.
+// Record layout: int payload length, int CRC32 of the payload, payload. A torn record at the end is cut off on startup.
+public class JournalStore implements PlayerDatabase.ChangeListener {
+    private static final String JOURNAL_FILE = "IpLoggerData.journal";
+    private static final String OLD_JOURNAL_FILE = "IpLoggerData.journal.old"; // journal being compacted
+    private static final byte OP_UPSERT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+    private static final String NO_LOCATION = "\0"; // location not looked up yet, older journals only have ""
+
+    private final PlayerDatabase database;
+    private final Path journalFile;
+    private final Path oldJournalFile;
+    private final long fsyncIntervalMillis;
+    private final long compactAfterBytes;
+    private final long compactIntervalSeconds;
+    private final ScheduledExecutorService executor;
+
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordOut = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private long journalBytes;
+    private long unsyncedRecords;
+
+    // Statistics
+    private long appendedRecords;
+    private long compactions;
+    private double lastCompactionMillis;
+    private long lastCompactionTime = System.currentTimeMillis();
+
+    public JournalStore(PlayerDatabase database, Path dataDirectory, IpLoggerConfig config) {
+        this.database = database;
+        this.journalFile = dataDirectory.resolve(JOURNAL_FILE);
+        this.oldJournalFile = dataDirectory.resolve(OLD_JOURNAL_FILE);
+        this.fsyncIntervalMillis = config.journalFsyncIntervalMillis;
+        this.compactAfterBytes = Math.max(1024, config.journalCompactAfterBytes);
+        this.compactIntervalSeconds = Math.max(1, config.journalCompactIntervalSeconds);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "IpLogger-Journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Replay the journals on top of the loaded snapshot and open the journal for appending.
+    // Must be called after the snapshot is loaded and before this store is added as a listener.
+    public void open() throws IOException {
+        Path oldJournal = oldJournalFile;
+        Path journal = journalFile;
+
+        long replayed = 0;
+        if (Files.exists(oldJournal)) {
+            // The server stopped during a compaction, so these records may not be in the snapshot yet
+            replayed += replay(oldJournal);
+        }
+        if (Files.exists(journal)) {
+            replayed += replay(journal);
+        }
+        if (replayed > 0) {
+            System.out.println("[IpLogger] Replayed " + replayed + " journal records.");
+        }
+
+        synchronized (this) {
+            channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            journalBytes = channel.size();
+        }
+    }
+
+    public void start() {
+        if (fsyncIntervalMillis > 0) {
+            executor.scheduleWithFixedDelay(this::sync, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        executor.scheduleWithFixedDelay(this::compactIfNeeded, 5, 5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void entryChanged(String username, PlayerDatabase.IpEntry ipEntry) {
+        append(OP_UPSERT, username, ipEntry.getIp(), ipEntry.getTimestamp(), ipEntry.getLocation());
+    }
+
+    @Override
+    public void entryRemoved(String username, String ipAddress) {
+        append(OP_REMOVE, username, ipAddress, null, null);
+    }
+
+    private synchronized void append(byte op, String username, String ipAddress, String timestamp, String location) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            recordBytes.reset();
+            recordOut.writeByte(op);
+            recordOut.writeUTF(username);
+            recordOut.writeUTF(ipAddress);
+            if (op == OP_UPSERT) {
+                recordOut.writeUTF(timestamp == null ? "" : timestamp);
+                recordOut.writeUTF(location == null ? NO_LOCATION : location);
+            }
+            recordOut.flush();
+
+            byte[] payload = recordBytes.toByteArray();
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+            buffer.putInt(payload.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(payload);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            journalBytes += HEADER_BYTES + payload.length;
+            appendedRecords++;
+            unsyncedRecords++;
+            if (fsyncIntervalMillis <= 0) {
+                channel.force(false); // no batching, sync every record
+                unsyncedRecords = 0;
+            }
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error writing to journal.");
+            e.printStackTrace();
+        }
+    }
+
+    // fsync batching: records written since the last run are synced together. Also used to make sure every
+    // record written so far is on disk. Returns false if that failed.
+    public synchronized boolean sync() {
+        if (channel == null || unsyncedRecords == 0) {
+            return channel != null;
+        }
+        try {
+            channel.force(false);
+            unsyncedRecords = 0;
+            return true;
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error syncing journal.");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void compactIfNeeded() {
+        long bytes;
+        boolean intervalPassed;
+        synchronized (this) {
+            bytes = journalBytes;
+            intervalPassed = System.currentTimeMillis() - lastCompactionTime >= TimeUnit.SECONDS.toMillis(compactIntervalSeconds);
+        }
+        if (bytes >= compactAfterBytes || (bytes > 0 && intervalPassed)) {
+            compact();
+        }
+    }
+
+    // Write a full snapshot and start a new journal
+    public void compact() {
+        long start = System.nanoTime();
+
+        // The journal is rotated while the database lock is held, so every record in the new journal comes after the snapshot
+        Map<String, List<PlayerDatabase.IpEntry>> snapshot = database.snapshotAndThen(this::rotate);
+
+        if (database.writeSnapshot(snapshot)) {
+            try {
+                Files.deleteIfExists(oldJournalFile);
+            } catch (IOException e) {
+                System.out.println("[IpLogger] Error deleting old journal.");
+                e.printStackTrace();
+            }
+        }
+
+        synchronized (this) {
+            compactions++;
+            lastCompactionMillis = (System.nanoTime() - start) / 1_000_000.0;
+            lastCompactionTime = System.currentTimeMillis();
+        }
+        if (debugMode) {
+            System.out.println("[IpLogger_debug] Compacted journal in " + String.format("%.1f", lastCompactionMillis) + " ms.");
+        }
+    }
+
+    // Move the current journal aside and open an empty one
+    private synchronized void rotate() {
+        if (channel == null) {
+            return;
+        }
+        Path journal = journalFile;
+        Path oldJournal = oldJournalFile;
+        try {
+            channel.force(true);
+            channel.close();
+            if (Files.exists(oldJournal)) {
+                // An earlier compaction didn't finish, keep its records too until a snapshot is written
+                Files.write(oldJournal, Files.readAllBytes(journal), StandardOpenOption.APPEND);
+                Files.delete(journal);
+            } else {
+                Files.move(journal, oldJournal, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error rotating journal.");
+            e.printStackTrace();
+        }
+
+        try {
+            channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            journalBytes = channel.size();
+            unsyncedRecords = 0;
+        } catch (IOException e) {
+            channel = null;
+            System.out.println("[IpLogger] Error opening new journal, changes will only be saved on shutdown.");
+            e.printStackTrace();
+        }
+    }
+
+    // Final compaction on shutdown, so the snapshot holds everything and the journal is empty
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compact();
+        synchronized (this) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println("[IpLogger] Journal closed. " + appendedRecords + " records written, " + compactions + " compactions this session.");
+    }
+
+    // Apply all intact records of a journal file to the database. Cuts off a torn record at the end.
+    private long replay(Path file) throws IOException {
+        long records = 0;
+        long validBytes = 0;
+
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.allocate((int) in.size());
+            while (data.hasRemaining() && in.read(data) >= 0) {
+                // read the whole file
+            }
+            data.flip();
+
+            CRC32 check = new CRC32();
+            while (data.remaining() >= HEADER_BYTES) {
+                int length = data.getInt();
+                int expectedCrc = data.getInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES || length > data.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                data.get(payload);
+                check.reset();
+                check.update(payload, 0, length);
+                if ((int) check.getValue() != expectedCrc) {
+                    break;
+                }
+
+                applyRecord(payload);
+                records++;
+                validBytes += HEADER_BYTES + length;
+            }
+
+            if (validBytes < in.size()) {
+                System.out.println("[IpLogger] Journal " + file.getFileName() + " ends with " + (in.size() - validBytes) + " bytes of a torn record, cutting them off.");
+                in.truncate(validBytes);
+            }
+        }
+        return records;
+    }
+
+    private void applyRecord(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte op = in.readByte();
+        String username = in.readUTF();
+        String ipAddress = in.readUTF();
+        if (op == OP_UPSERT) {
+            String timestamp = in.readUTF();
+            String location = in.readUTF();
+            database.restoreEntry(username, ipAddress, timestamp, NO_LOCATION.equals(location) ? null : location);
+        } else if (op == OP_REMOVE) {
+            database.restoreRemoval(username, ipAddress);
+        }
+    }
+
+    public synchronized long getJournalBytes() { return journalBytes; }
+    public synchronized long getAppendedRecords() { return appendedRecords; }
+    public synchronized long getCompactions() { return compactions; }
+    public synchronized double getLastCompactionMillis() { return lastCompactionMillis; }
+}
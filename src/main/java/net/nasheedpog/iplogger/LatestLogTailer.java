@@ -0,0 +1,115 @@
+package net.nasheedpog.iplogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static net.nasheedpog.iplogger.IpLogger.debugMode;
+
+// Follows logs/latest.log and records every login line in it, like buildFromPastLogs does for the archives.
+// The file is read from the last position every few seconds, so each poll only costs the lines added since.
+// If the file was replaced (log rotation) or got shorter (truncated), reading starts over from the beginning.
+// Lines written between the last poll and a rotation end up in the new archive, which buildFromPastLogs picks up.
+public class LatestLogTailer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final PlayerDatabase database;
+    private final Path file;
+    private final long pollIntervalSeconds;
+    private final ScheduledExecutorService executor;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final LoginLineScanner scanner; // keeps an unfinished last line until the next poll
+    private long position;
+    private Object fileKey;
+    private long creationTime;
+    private boolean opened;
+
+    public LatestLogTailer(PlayerDatabase database, Path logsPath, IpLoggerConfig config) {
+        this.database = database;
+        this.file = logsPath.resolve(LogImportJob.LATEST_LOG);
+        this.pollIntervalSeconds = Math.max(1, config.tailLatestLogIntervalSeconds);
+        // Only keeps the earliest time, so logins the join handler already tracked don't change anything
+        this.scanner = new LoginLineScanner(0, config, (username, ipAddress, epochSeconds) ->
+                database.addOrUpdateIpEntry(username, ipAddress, PlayerDatabase.IpEntry.formatEpochSeconds(epochSeconds)));
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "IpLogger-LogTailer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::poll, 0, pollIntervalSeconds, TimeUnit.SECONDS);
+        System.out.println("[IpLogger] Following " + file + " for logins.");
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void poll() {
+        try {
+            if (!Files.isRegularFile(file)) {
+                return;
+            }
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            // The file key (inode) changes when the log is rotated. Where there is none, the creation time is used instead.
+            boolean replaced = !opened || (attributes.fileKey() != null
+                    ? !attributes.fileKey().equals(fileKey)
+                    : creationTime != attributes.creationTime().toMillis());
+            if (replaced || attributes.size() < position) {
+                if (debugMode && opened) {
+                    System.out.println("[IpLogger_debug] " + file + " was rotated or truncated, reading it from the start.");
+                }
+                position = 0;
+                fileKey = attributes.fileKey();
+                creationTime = attributes.creationTime().toMillis();
+                long dayStart = LogImportJob.dayStartOf(file);
+                scanner.reset(dayStart != PlayerDatabase.IpEntry.NO_EPOCH ? dayStart : LocalDate.now().toEpochDay() * 86400); // no time in the first line
+                opened = true;
+            }
+            if (attributes.size() > position) {
+                readNewLines();
+            }
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error reading " + file);
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            // Keep the scheduled task alive
+            e.printStackTrace();
+        }
+    }
+
+    private void readNewLines() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.position(position);
+            while (true) {
+                readBuffer.clear();
+                int read = channel.read(readBuffer);
+                if (read <= 0) {
+                    break;
+                }
+                position += read;
+                scanner.feed(readBuffer.array(), 0, read);
+            }
+        }
+    }
+
+    public long getLoginsSeen() {
+        return scanner.getLogins();
+    }
+}
@@ -0,0 +1,208 @@
+package net.nasheedpog.iplogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Groups of accounts that are linked through shared IPs, also indirectly: if A shared an IP with B and B one
+// with C, all three are in one group. Users and IPs are the nodes of a union-find (disjoint set) structure and
+// every logged entry joins its user with its IP, so a change costs close to constant time and the group of a
+// player is known without searching. Each group keeps the list of its users.
+// A union-find can't be split again, so a removed entry starts a rebuild from the database on a thread of its own.
+// Until it is done the previous groups are served (at worst still linking through the removed entry), and the
+// entries added meanwhile are joined into both. Lookups never wait for a rebuild.
+public class LinkedAccounts implements PlayerDatabase.ChangeListener {
+    private final PlayerDatabase database;
+
+    // All guarded by this
+    private Forest forest;
+    private boolean rebuilding;
+    private boolean rebuildAgain; // an entry was removed during the rebuild, which may have read it already
+    private final List<String[]> changedDuringRebuild = new ArrayList<>(); // {username, ip}, joined into the new forest
+
+    public LinkedAccounts(PlayerDatabase database) {
+        this.database = database;
+        this.forest = build(); // at startup, before any lookup
+    }
+
+    @Override
+    public synchronized void entryChanged(String username, PlayerDatabase.IpEntry ipEntry) {
+        forest.union(forest.userNode(username), forest.ipNode(ipEntry.getIp()));
+        if (rebuilding) {
+            changedDuringRebuild.add(new String[] {username, ipEntry.getIp()});
+        }
+    }
+
+    @Override
+    public synchronized void entryRemoved(String username, String ipAddress) {
+        if (rebuilding) {
+            rebuildAgain = true;
+            return;
+        }
+        rebuilding = true;
+        Thread thread = new Thread(this::rebuildLoop, "IpLogger-LinkedAccounts");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The group of the user, or null if the user isn't in the database
+    public synchronized Group getLinked(String username) {
+        Integer node = forest.userIds.get(username);
+        if (node == null) {
+            return null;
+        }
+        int root = forest.find(node);
+        List<String> usernames = new ArrayList<>(forest.groupUsers.get(root));
+        Collections.sort(usernames, String.CASE_INSENSITIVE_ORDER);
+        return new Group(usernames, forest.groupIps[root]);
+    }
+
+    // Builds new groups without holding the lock, then swaps them in. Again if more entries were removed meanwhile.
+    private void rebuildLoop() {
+        while (true) {
+            Forest rebuilt;
+            try {
+                rebuilt = build();
+            } catch (RuntimeException e) {
+                System.out.println("[IpLogger] Error rebuilding the linked accounts, keeping the previous ones until the next removal.");
+                e.printStackTrace();
+                synchronized (this) {
+                    changedDuringRebuild.clear();
+                    rebuildAgain = false;
+                    rebuilding = false;
+                }
+                return;
+            }
+            synchronized (this) {
+                for (String[] change : changedDuringRebuild) {
+                    rebuilt.union(rebuilt.userNode(change[0]), rebuilt.ipNode(change[1]));
+                }
+                changedDuringRebuild.clear();
+                forest = rebuilt;
+                if (!rebuildAgain) {
+                    rebuilding = false;
+                    return;
+                }
+                rebuildAgain = false;
+            }
+        }
+    }
+
+    private Forest build() {
+        long start = System.nanoTime();
+        Forest built = new Forest();
+        for (String ipAddress : database.getAllIPs()) {
+            int ipNode = built.ipNode(ipAddress);
+            for (String username : database.getUsersForIp(ipAddress)) {
+                built.union(built.userNode(username), ipNode);
+            }
+        }
+        if (IpLogger.debugMode) {
+            System.out.printf("[IpLogger_debug] Built linked accounts for %d users in %.1f ms.%n", built.userIds.size(), (System.nanoTime() - start) / 1_000_000.0);
+        }
+        return built;
+    }
+
+    // One union-find of users and IPs. Not thread safe, the forest in use is guarded by LinkedAccounts.
+    private static class Forest {
+        private final Map<String, Integer> userIds = new HashMap<>();
+        private final Map<String, Integer> ipIds = new HashMap<>();
+        private final List<List<String>> groupUsers = new ArrayList<>(); // only set for the root of a group
+        private int[] parent = new int[1024];
+        private int[] groupSize = new int[1024];
+        private int[] groupIps = new int[1024];
+        private int nodeCount;
+
+        private int userNode(String username) {
+            Integer node = userIds.get(username);
+            if (node == null) {
+                node = newNode(0);
+                List<String> users = new ArrayList<>(1);
+                users.add(username);
+                groupUsers.set(node, users);
+                userIds.put(username, node);
+            }
+            return node;
+        }
+
+        private int ipNode(String ipAddress) {
+            Integer node = ipIds.get(ipAddress);
+            if (node == null) {
+                node = newNode(1);
+                ipIds.put(ipAddress, node);
+            }
+            return node;
+        }
+
+        private int newNode(int ips) {
+            if (nodeCount == parent.length) {
+                int newLength = parent.length * 2;
+                parent = Arrays.copyOf(parent, newLength);
+                groupSize = Arrays.copyOf(groupSize, newLength);
+                groupIps = Arrays.copyOf(groupIps, newLength);
+            }
+            int node = nodeCount++;
+            parent[node] = node;
+            groupSize[node] = 1;
+            groupIps[node] = ips;
+            groupUsers.add(null);
+            return node;
+        }
+
+        // Root of the node's group, halving the path on the way so later finds are shorter
+        private int find(int node) {
+            while (parent[node] != node) {
+                parent[node] = parent[parent[node]];
+                node = parent[node];
+            }
+            return node;
+        }
+
+        // The smaller group is hung under the larger one, and its user list is moved into the larger list
+        private void union(int first, int second) {
+            int a = find(first);
+            int b = find(second);
+            if (a == b) {
+                return;
+            }
+            if (groupSize[a] < groupSize[b]) {
+                int swap = a;
+                a = b;
+                b = swap;
+            }
+            parent[b] = a;
+            groupSize[a] += groupSize[b];
+            groupIps[a] += groupIps[b];
+
+            List<String> usersA = groupUsers.get(a);
+            List<String> usersB = groupUsers.get(b);
+            if (usersB != null) {
+                if (usersA == null) {
+                    groupUsers.set(a, usersB);
+                } else if (usersA.size() >= usersB.size()) {
+                    usersA.addAll(usersB);
+                } else {
+                    usersB.addAll(usersA);
+                    groupUsers.set(a, usersB);
+                }
+                groupUsers.set(b, null);
+            }
+        }
+    }
+
+    public static class Group {
+        private final List<String> usernames;
+        private final int ipCount;
+
+        private Group(List<String> usernames, int ipCount) {
+            this.usernames = Collections.unmodifiableList(usernames);
+            this.ipCount = ipCount;
+        }
+
+        public List<String> getUsernames() { return usernames; }
+        public int getIpCount() { return ipCount; }
+    }
+}
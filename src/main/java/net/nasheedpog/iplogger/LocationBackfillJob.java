@@ -0,0 +1,226 @@
+package net.nasheedpog.iplogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static net.nasheedpog.iplogger.IpLogger.debugMode;
+
+// Looks up the locations that are still missing, in the background while the server is running: the IPs a migration
+// of the old data format left pending, and the IPs whose entries were stored without a location because the web API
+// gave no answer (not asked because the circuit is open or too busy, failed or rate limited, see addPending). All of them are kept in MigrationCheckpoint.
+// Lookups go through geolocateAsync, so they share the cache, the offline database, the request limit and the
+// circuit breaker with joins, and up to geoMaxConcurrentRequests run at once.
+// Every CHECKPOINT_INTERVAL_MILLIS the database is saved (persist) and only then are the found IPs removed from the
+// checkpoint, so after a crash or a stop only the lookups since the last checkpoint are done again.
+// IPs the API gave no answer for are tried again after a pause for as long as the server runs. IPs the API found no
+// location for are tried up to MAX_ATTEMPTS times per server start.
+public class LocationBackfillJob {
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 30_000;
+    private static final long PASS_PAUSE_MILLIS = 60_000;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final PlayerDatabase database;
+    private final MigrationCheckpoint checkpoint;
+    private final BooleanSupplier persist; // saves the database, returns false if that failed
+    private final int parallelism;
+    private final Thread thread;
+    private final Object pause = new Object();
+    private final AtomicInteger found = new AtomicInteger();
+    private final Map<String, Integer> attempts = new ConcurrentHashMap<>(); // IP -> lookups without a location since the start
+    private final AtomicBoolean added = new AtomicBoolean(); // IPs were added since the checkpoint was last written
+    private volatile boolean idle; // waiting for IPs, guarded by pause
+    private volatile boolean stopped;
+
+    public LocationBackfillJob(PlayerDatabase database, MigrationCheckpoint checkpoint, IpLoggerConfig config, BooleanSupplier persist) {
+        this.database = database;
+        this.checkpoint = checkpoint;
+        this.persist = persist;
+        this.parallelism = Math.max(1, config.geoMaxConcurrentRequests);
+        this.thread = new Thread(this::run, "IpLogger-LocationBackfill");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // An entry with this IP was stored without a location. Looked up with the next pass, right away if the job is idle.
+    public void addPending(String ipAddress) {
+        checkpoint.addPending(Collections.singletonList(ipAddress));
+        added.set(true);
+        if (stopped) {
+            checkpoint.save(); // a late join during shutdown, for the next start
+            return;
+        }
+        synchronized (pause) {
+            if (idle) {
+                pause.notifyAll();
+            }
+        }
+    }
+
+    // Finish the running lookups and write the checkpoint. Not interrupted, since an interrupt would close the files being saved.
+    public void shutdown() {
+        stopped = true;
+        synchronized (pause) {
+            pause.notifyAll();
+        }
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPendingCount() { return checkpoint.size(); }
+    public int getFoundCount() { return found.get(); }
+
+    private void run() {
+        boolean firstPass = true;
+        while (!stopped) {
+            if (added.getAndSet(false)) {
+                checkpoint.save();
+            }
+            List<String> pending = new ArrayList<>();
+            for (String ipAddress : checkpoint.getPending()) {
+                if (attempts.getOrDefault(ipAddress, 0) < MAX_ATTEMPTS) {
+                    pending.add(ipAddress);
+                }
+            }
+            if (pending.isEmpty()) {
+                waitForWork();
+                continue;
+            }
+
+            long start = System.nanoTime();
+            int foundBefore = found.get();
+            if (firstPass || debugMode) {
+                System.out.println("[IpLogger] Looking up " + pending.size() + " pending locations in the background.");
+            }
+            runPass(pending);
+            int foundNow = found.get() - foundBefore;
+            int left = checkpoint.size();
+            if (firstPass || foundNow > 0 || debugMode) {
+                System.out.println("[IpLogger] Pending location lookup: " + foundNow + " found"
+                        + (left > 0 ? ", " + left + " still pending" : "") + String.format(" in %.1f s.", (System.nanoTime() - start) / 1_000_000_000.0));
+            }
+            firstPass = false;
+            if (left > 0) {
+                pauseBeforeNextPass();
+            }
+        }
+        if (added.getAndSet(false)) {
+            checkpoint.save();
+        }
+    }
+
+    private void runPass(List<String> pending) {
+        Semaphore permits = new Semaphore(parallelism);
+        Set<String> resolved = ConcurrentHashMap.newKeySet(); // found since the last checkpoint
+        long lastCheckpoint = System.currentTimeMillis();
+
+        for (String ipAddress : pending) {
+            if (!acquire(permits)) {
+                break;
+            }
+            if (database.getUsersForIp(ipAddress).isEmpty()) {
+                resolved.add(ipAddress); // removed by an admin in the meantime, nothing to look up
+                permits.release();
+                continue;
+            }
+            IpLoggerCommands.geolocateAsync(ipAddress).whenComplete((location, error) -> {
+                try {
+                    if (error != null || location == null) {
+                        return; // no answer from the API, stays pending without counting as an attempt
+                    }
+                    if (location.isEmpty()) {
+                        attempts.merge(ipAddress, 1, Integer::sum);
+                        return;
+                    }
+                    database.updateLocation(ipAddress, location);
+                    found.incrementAndGet();
+                    resolved.add(ipAddress);
+                } finally {
+                    permits.release();
+                }
+            });
+            if (System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL_MILLIS) {
+                saveCheckpoint(resolved);
+                lastCheckpoint = System.currentTimeMillis();
+            }
+        }
+
+        // Let the running lookups finish, they are short because of the request timeouts
+        permits.acquireUninterruptibly(parallelism);
+        saveCheckpoint(resolved);
+    }
+
+    // Waits for a free lookup slot, false if the job was stopped meanwhile
+    private boolean acquire(Semaphore permits) {
+        try {
+            while (!stopped) {
+                if (permits.tryAcquire(1, TimeUnit.SECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    // Nothing to look up: wait until addPending or shutdown
+    private void waitForWork() {
+        synchronized (pause) {
+            idle = true;
+            try {
+                while (!stopped && !added.get()) {
+                    pause.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+            } finally {
+                idle = false;
+            }
+        }
+    }
+
+    // Not cut short by addPending, so joins while the API is down don't make the job ask it again and again
+    private void pauseBeforeNextPass() {
+        synchronized (pause) {
+            try {
+                if (!stopped) {
+                    pause.wait(PASS_PAUSE_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+            }
+        }
+    }
+
+    // The locations are on disk before the checkpoint forgets their IPs
+    private void saveCheckpoint(Set<String> resolved) {
+        List<String> done = new ArrayList<>(resolved);
+        if (done.isEmpty()) {
+            return;
+        }
+        if (!persist.getAsBoolean()) {
+            System.out.println("[IpLogger] Could not save the database, keeping " + done.size() + " found locations in the pending locations checkpoint.");
+            return;
+        }
+        resolved.removeAll(done);
+        checkpoint.markResolved(done);
+        checkpoint.save();
+    }
+}
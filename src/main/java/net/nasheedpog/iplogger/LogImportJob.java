@@ -0,0 +1,347 @@
+package net.nasheedpog.iplogger;
+
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.Text;
+import net.minecraft.text.Style;
+import net.minecraft.util.Formatting;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static net.nasheedpog.iplogger.IpLogger.debugMode;
+import static net.nasheedpog.iplogger.IpLoggerCommands.geolocateAsync;
+
+// buildFromPastLogs, run as a background job so the server keeps ticking while old logs are read.
+//  1. The .log.gz files that aren't in the import checkpoint yet, and latest.log, are scanned for logins
+//     (LoginLineScanner) in parallel on a fork-join pool. Each file gives its own map of
+//     username -> ip -> first seen (epoch seconds), and the maps are merged pairwise keeping the earliest time.
+//  2. Every IP that isn't in the database yet is geolocated once, however many users and logins it has, with up to
+//     geoMaxConcurrentRequests lookups at a time.
+//  3. The result is merged into the database in one go and saved once.
+//  4. The imported archives are added to the checkpoint, so the next run skips them. latest.log is never
+//     checkpointed since it keeps growing, reading it again is harmless because only earlier times are kept.
+// Progress is sent to the admin who started the job. Only one import runs at a time.
+public class LogImportJob {
+    static final String LATEST_LOG = "latest.log";
+    private static final long PROGRESS_INTERVAL_MILLIS = 5000;
+    private static final int NO_LINE_YET = -2;
+    private static final AtomicBoolean running = new AtomicBoolean();
+
+    private final PlayerDatabase database;
+    private final ServerCommandSource source;
+    private final Path logsPath;
+    private final int threads;
+    private final boolean full;
+    private final IpLoggerConfig config;
+    private final ImportCheckpoint checkpoint;
+    private final Set<Path> failedFiles = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicLong linesRead = new AtomicLong();
+    private final AtomicLong loginsFound = new AtomicLong();
+    private int fileCount;
+
+    private LogImportJob(PlayerDatabase database, ServerCommandSource source, Path logsPath, int threads, boolean full) {
+        this.database = database;
+        this.source = source;
+        this.logsPath = logsPath;
+        this.threads = threads;
+        this.full = full;
+        this.config = IpLogger.getConfig();
+        this.checkpoint = ImportCheckpoint.load();
+    }
+
+    public static boolean isRunning() {
+        return running.get();
+    }
+
+    // Returns false if an import is already running. With full, files in the checkpoint are imported again too.
+    public static boolean start(PlayerDatabase database, ServerCommandSource source, Path logsPath, int threads, boolean full) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        int parallelism = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        LogImportJob job = new LogImportJob(database, source, logsPath, parallelism, full);
+        Thread thread = new Thread(() -> {
+            try {
+                job.run();
+            } catch (RuntimeException e) {
+                System.out.println("[IpLogger] Log import failed.");
+                e.printStackTrace();
+                job.send("[IpLogger] Log import failed, see the server console.", Formatting.RED);
+            } finally {
+                running.set(false);
+            }
+        }, "IpLogger-LogImport");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+
+        List<Path> archives;
+        try (Stream<Path> paths = Files.walk(logsPath)) {
+            archives = paths.filter(path -> path.toString().endsWith(".log.gz"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error accessing logs directory.");
+            e.printStackTrace();
+            send("[IpLogger] Error accessing logs directory.", Formatting.RED);
+            return;
+        }
+        List<Path> newArchives = full ? archives : archives.stream().filter(path -> !checkpoint.isImported(path)).collect(Collectors.toList());
+        int skipped = archives.size() - newArchives.size();
+
+        List<Path> logFiles = new ArrayList<>(newArchives);
+        Path latestLog = logsPath.resolve(LATEST_LOG);
+        if (Files.isRegularFile(latestLog)) {
+            logFiles.add(latestLog);
+        }
+        fileCount = logFiles.size();
+        System.out.println("[IpLogger] Found " + fileCount + " log files to process (" + skipped + " already imported).");
+        send("[IpLogger] Importing " + fileCount + " log files in the background with " + threads + " threads"
+                + (skipped > 0 ? " (skipping " + skipped + " already imported, use \"buildFromPastLogs full\" to read them again)..." : "..."), Formatting.AQUA);
+
+        // 1. Parse all files in parallel
+        Map<String, Map<String, Long>> firstSeen = parseAll(logFiles);
+        if (firstSeen == null) {
+            return;
+        }
+        double parseSeconds = (System.nanoTime() - start) / 1_000_000_000.0;
+
+        // 2. Geolocate every IP that isn't in the database yet, once
+        Set<String> newIps = new LinkedHashSet<>();
+        firstSeen.values().forEach(ips -> ips.keySet().forEach(ipAddress -> {
+            if (database.getLocation(ipAddress) == null) {
+                newIps.add(ipAddress);
+            }
+        }));
+        if (!newIps.isEmpty()) {
+            send("[IpLogger] Parsed " + fileCount + " files in " + String.format("%.1f", parseSeconds) + " s. Looking up " + newIps.size() + " new IPs...", Formatting.AQUA);
+        }
+        // Up to geoMaxConcurrentRequests at once, like LocationBackfillJob. null where the web API gave no answer.
+        Map<String, String> locations = Collections.synchronizedMap(new HashMap<>());
+        int parallelism = config == null ? 1 : Math.max(1, config.geoMaxConcurrentRequests);
+        Semaphore permits = new Semaphore(parallelism);
+        long lastReport = System.currentTimeMillis();
+        for (String ipAddress : newIps) {
+            permits.acquireUninterruptibly();
+            geolocateAsync(ipAddress).whenComplete((location, error) -> {
+                locations.put(ipAddress, error == null ? location : null);
+                permits.release();
+            });
+            if (System.currentTimeMillis() - lastReport >= PROGRESS_INTERVAL_MILLIS) {
+                lastReport = System.currentTimeMillis();
+                send("[IpLogger] Looked up " + locations.size() + "/" + newIps.size() + " IPs...", Formatting.AQUA);
+            }
+        }
+        permits.acquireUninterruptibly(parallelism); // the last lookups, kept short by the request timeouts
+
+        // 3. One merge and one save
+        int changed = database.mergeFirstSeen(firstSeen, locations);
+        if (database.save()) {
+            // Only now are the archives safely in the database
+            newArchives.stream().filter(path -> !failedFiles.contains(path)).forEach(checkpoint::markImported);
+            checkpoint.save();
+        }
+
+        IpLoggerMetrics.IMPORT.recordSince(start);
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        int users = firstSeen.size();
+        System.out.println("[IpLogger] Log import done: " + fileCount + " files, " + linesRead.get() + " lines, " + loginsFound.get() + " logins, "
+                + changed + " entries added or updated in " + String.format("%.1f", seconds) + " s.");
+        send(String.format("[IpLogger] Completed building data from past logs: %d files, %d lines (%.0f lines/s), %d logins from %d users. %d entries added or updated in %.1f s.",
+                fileCount, linesRead.get(), linesRead.get() / Math.max(parseSeconds, 0.001), loginsFound.get(), users, changed, seconds), Formatting.AQUA);
+    }
+
+    private Map<String, Map<String, Long>> parseAll(List<Path> logFiles) {
+        if (logFiles.isEmpty()) {
+            return new HashMap<>();
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("IpLogger-LogImport-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+        try {
+            ForkJoinTask<Map<String, Map<String, Long>>> task = pool.submit(new ParseTask(logFiles, 0, logFiles.size()));
+            long startNanos = System.nanoTime();
+            while (true) {
+                try {
+                    return task.get(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+                    send(String.format("[IpLogger] Parsed %d/%d files, %d lines (%.0f lines/s), %d logins so far...",
+                            filesDone.get(), fileCount, linesRead.get(), linesRead.get() / seconds, loginsFound.get()), Formatting.AQUA);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send("[IpLogger] Log import was interrupted.", Formatting.RED);
+            return null;
+        } catch (ExecutionException e) {
+            System.out.println("[IpLogger] Error while parsing log files.");
+            e.getCause().printStackTrace();
+            send("[IpLogger] Error while parsing log files, see the server console.", Formatting.RED);
+            return null;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Splits the file list in halves until one file is left, then merges the results on the way back up
+    private class ParseTask extends RecursiveTask<Map<String, Map<String, Long>>> {
+        private final List<Path> files;
+        private final int from;
+        private final int to;
+
+        private ParseTask(List<Path> files, int from, int to) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<String, Map<String, Long>> compute() {
+            if (to - from == 1) {
+                Map<String, Map<String, Long>> result = parseFile(files.get(from));
+                filesDone.incrementAndGet();
+                return result;
+            }
+            int middle = (from + to) >>> 1;
+            ParseTask left = new ParseTask(files, from, middle);
+            left.fork();
+            Map<String, Map<String, Long>> right = new ParseTask(files, middle, to).compute();
+            return merge(left.join(), right);
+        }
+    }
+
+    // Merges the smaller map into the larger one, keeping the earliest time for every user and IP
+    private static Map<String, Map<String, Long>> merge(Map<String, Map<String, Long>> a, Map<String, Map<String, Long>> b) {
+        Map<String, Map<String, Long>> into = a.size() >= b.size() ? a : b;
+        Map<String, Map<String, Long>> from = into == a ? b : a;
+        from.forEach((username, ips) -> {
+            Map<String, Long> target = into.get(username);
+            if (target == null) {
+                into.put(username, ips);
+            } else {
+                ips.forEach((ipAddress, epochSeconds) -> target.merge(ipAddress, epochSeconds, Math::min));
+            }
+        });
+        return into;
+    }
+
+    private Map<String, Map<String, Long>> parseFile(Path logFile) {
+        Map<String, Map<String, Long>> firstSeen = new HashMap<>();
+
+        long dayStart = dayStartOf(logFile);
+        if (dayStart == PlayerDatabase.IpEntry.NO_EPOCH) {
+            System.out.println("[IpLogger] Skipping log file whose start date isn't known: " + logFile);
+            return firstSeen;
+        }
+        if (debugMode) {
+            System.out.println("[IpLogger_debug] Processing file: " + logFile);
+        }
+
+        long start = System.nanoTime();
+        LoginLineScanner scanner = new LoginLineScanner(dayStart, config, (username, ipAddress, epochSeconds) ->
+                firstSeen.computeIfAbsent(username, k -> new HashMap<>()).merge(ipAddress, epochSeconds, Math::min));
+        boolean compressed = logFile.toString().endsWith(".gz");
+        try (InputStream in = compressed ? new GZIPInputStream(new FileInputStream(logFile.toFile()), 64 * 1024) : new FileInputStream(logFile.toFile())) {
+            scanner.scan(in);
+        } catch (IOException e) {
+            failedFiles.add(logFile);
+            System.out.println("[IpLogger] Error reading log file: " + logFile);
+            e.printStackTrace();
+        }
+
+        linesRead.addAndGet(scanner.getLines());
+        loginsFound.addAndGet(scanner.getLogins());
+        IpLoggerMetrics.IMPORT_FILE.recordSince(start);
+        IpLoggerMetrics.IMPORT_LINES.add(scanner.getLines());
+        IpLoggerMetrics.IMPORT_LOGINS.add(scanner.getLogins());
+        return firstSeen;
+    }
+
+    // Epoch seconds of midnight on the day the log was started, or NO_EPOCH if it isn't known.
+    // Archives have it in the name, e.g., "2024-08-23" from "2024-08-23-1.log.gz". latest.log is started anew on every
+    // server start and every day, so it started at the time of its first line, on the last day up to its last write
+    // that has that time. Its creation time can't be used, on many Linux file systems that is the last write too.
+    static long dayStartOf(Path logFile) {
+        String fileName = logFile.getFileName().toString();
+        try {
+            if (fileName.equals(LATEST_LOG)) {
+                LocalDateTime modified = LocalDateTime.ofInstant(Files.getLastModifiedTime(logFile).toInstant(), ZoneId.systemDefault());
+                int firstSecond = firstLineSecondOfDay(logFile);
+                if (firstSecond == NO_LINE_YET) {
+                    return modified.toLocalDate().toEpochDay() * 86400; // just created
+                }
+                if (firstSecond < 0) {
+                    return PlayerDatabase.IpEntry.NO_EPOCH;
+                }
+                LocalDate day = modified.toLocalDate();
+                if (firstSecond > modified.toLocalTime().toSecondOfDay()) {
+                    day = day.minusDays(1); // started before midnight
+                }
+                return day.toEpochDay() * 86400;
+            }
+            return LocalDate.parse(fileName.substring(0, Math.min(10, fileName.length()))).toEpochDay() * 86400;
+        } catch (IOException | DateTimeParseException e) {
+            return PlayerDatabase.IpEntry.NO_EPOCH;
+        }
+    }
+
+    // Second of the day of the file's first line ("[HH:MM:SS] ..."), -1 if it has none, NO_LINE_YET if the file is empty
+    private static int firstLineSecondOfDay(Path logFile) throws IOException {
+        byte[] start = new byte[64];
+        int length;
+        try (InputStream in = Files.newInputStream(logFile)) {
+            length = in.readNBytes(start, 0, start.length);
+        }
+        if (length == 0) {
+            return NO_LINE_YET;
+        }
+        return LoginLineScanner.parseTime(start, 0, Math.min(length, 32), true);
+    }
+
+    private void send(String message, Formatting color) {
+        if (source == null) {
+            return;
+        }
+        // Feedback has to be sent from the server thread
+        source.getServer().execute(() -> source.sendFeedback(() -> Text.literal(message)
+                .setStyle(Style.EMPTY.withColor(color)), false));
+    }
+}
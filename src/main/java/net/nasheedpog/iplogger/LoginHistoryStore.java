@@ -0,0 +1,653 @@
+package net.nasheedpog.iplogger;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Every login and logout, next to the first-seen times in PlayerDatabase. Kept in LoginHistory.dat, which is only
+// ever appended to. Usernames and IPs are written once and then referred to by number, and each time is written as
+// the difference to the user's previous time, so a login takes about 8 bytes and a logout 5.
+//
+// In memory each user has login counts, last seen and play time per IP, play time and logins per day for the last
+// historyRollupDays days, and their last historySessionsPerUser sessions. When the file has grown past
+// historyCompactAfterBytes it is rewritten on startup with just that state, which folds old sessions into the totals.
+//
+// Record layout: a type byte, then unsigned varints (times as zigzag varint differences). A torn record at the end is
+// cut off on startup.
+public class LoginHistoryStore {
+    private static final String HISTORY_FILE = "LoginHistory.dat";
+    private static final byte[] MAGIC = {'I', 'P', 'L', 'H', 1};
+
+    private static final byte REC_USER = 1;     // name: defines the next user number
+    private static final byte REC_IP = 2;       // address: defines the next IP number
+    private static final byte REC_LOGIN = 3;    // user, ip, time
+    private static final byte REC_LOGOUT = 4;   // user, time
+    private static final byte REC_IP_TOTAL = 5; // user, ip, logins, seconds, last seen time (written by compaction)
+    private static final byte REC_DAY = 6;      // user, epoch day, logins, seconds (written by compaction)
+    private static final byte REC_SESSION = 7;  // user, ip, start time, seconds + 1 or 0 if unknown (written by compaction)
+
+    private static final int SECONDS_PER_DAY = 86400;
+
+    private final Path historyFile;
+    private final int sessionsPerUser;
+    private final int rollupDays;
+    private final long compactAfterBytes;
+
+    // All guarded by this
+    private final Map<String, UserHistory> users = new HashMap<>();
+    private final Map<String, Integer> fileIpIds = new HashMap<>(); // numbers of the IPs in the current file
+    private final List<UserHistory> fileUsers = new ArrayList<>(); // users by their number in the file being read
+    private final List<String> fileIps = new ArrayList<>();
+    private final ByteBuffer record = ByteBuffer.allocate(1024);
+    private int fileUserCount; // users numbered in the current file
+    private FileChannel channel;
+    private long fileBytes;
+    private long appendedRecords;
+
+    public LoginHistoryStore(Path dataDirectory, IpLoggerConfig config) {
+        this.historyFile = dataDirectory.resolve(HISTORY_FILE);
+        this.sessionsPerUser = Math.max(1, config.historySessionsPerUser);
+        this.rollupDays = Math.max(1, config.historyRollupDays);
+        this.compactAfterBytes = Math.max(64 * 1024, config.historyCompactAfterBytes);
+    }
+
+    // Read the history and open the file for appending. Compacts first if the file got big.
+    public synchronized void open() throws IOException {
+        Path file = historyFile;
+        if (Files.exists(file)) {
+            long start = System.nanoTime();
+            long records = load(file);
+            System.out.printf("[IpLogger] Loaded login history of %d players (%d records) in %.1f ms.%n",
+                    users.size(), records, (System.nanoTime() - start) / 1_000_000.0);
+            // Sessions still open in the file ended when the server stopped without a logout
+            users.values().forEach(user -> user.openSession = null);
+        }
+
+        if (Files.exists(file) && Files.size(file) > compactAfterBytes) {
+            compact(file);
+        } else {
+            openForAppend(file);
+        }
+    }
+
+    private void openForAppend(Path file) throws IOException {
+        boolean isNew = !Files.exists(file) || Files.size(file) == 0;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (isNew) {
+            // Nothing is numbered in a new file
+            fileIpIds.clear();
+            fileUserCount = 0;
+            users.values().forEach(user -> user.fileId = -1);
+            writeFully(channel, ByteBuffer.wrap(MAGIC));
+        }
+        fileBytes = channel.size();
+    }
+
+    public synchronized void login(String username, String ipAddress, long epochSeconds) {
+        UserHistory user = user(username);
+        applyLogin(user, ipAddress, epochSeconds);
+
+        if (channel == null) {
+            return;
+        }
+        try {
+            int userId = writeUserId(user);
+            int ipId = writeIpId(ipAddress);
+            record.clear();
+            record.put(REC_LOGIN);
+            putVarint(record, userId);
+            putVarint(record, ipId);
+            putTime(record, user, epochSeconds);
+            append();
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+
+    public synchronized void logout(String username, long epochSeconds) {
+        UserHistory user = users.get(username);
+        if (user == null || user.openSession == null) {
+            return; // joined before the history was enabled, or the login was dropped
+        }
+        applyLogout(user, epochSeconds);
+
+        if (channel == null) {
+            return;
+        }
+        try {
+            int userId = writeUserId(user);
+            record.clear();
+            record.put(REC_LOGOUT);
+            putVarint(record, userId);
+            putTime(record, user, epochSeconds);
+            append();
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+
+    // Log out everyone still online (the disconnects during a shutdown come too late) and close the file
+    public synchronized void shutdown(long epochSeconds) {
+        List<String> online = new ArrayList<>();
+        users.forEach((username, user) -> {
+            if (user.openSession != null) {
+                online.add(username);
+            }
+        });
+        online.forEach(username -> logout(username, epochSeconds));
+
+        if (channel != null) {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+        System.out.println("[IpLogger] Login history closed. " + appendedRecords + " records written this session.");
+    }
+
+    // The user's history, or null if no login was recorded for them
+    public synchronized History getHistory(String username) {
+        UserHistory user = users.get(username);
+        if (user == null) {
+            return null;
+        }
+
+        List<IpTotal> ips = new ArrayList<>();
+        long logins = 0;
+        long seconds = 0;
+        long lastSeen = 0;
+        for (Map.Entry<String, long[]> ip : user.ips.entrySet()) {
+            long[] totals = ip.getValue();
+            ips.add(new IpTotal(ip.getKey(), totals[0], totals[1], totals[2]));
+            logins += totals[0];
+            seconds += totals[1];
+            lastSeen = Math.max(lastSeen, totals[2]);
+        }
+        ips.sort((a, b) -> Long.compare(b.lastSeen, a.lastSeen));
+
+        List<Session> sessions = new ArrayList<>(user.sessions.size());
+        Iterator<Session> newestFirst = user.sessions.descendingIterator();
+        while (newestFirst.hasNext()) {
+            sessions.add(newestFirst.next().copy());
+        }
+
+        List<Day> days = new ArrayList<>(user.days.size());
+        user.days.descendingMap().forEach((epochDay, totals) -> days.add(new Day(epochDay, totals[0], totals[1])));
+
+        return new History(username, logins, seconds, lastSeen, user.openSession != null, ips, sessions, days);
+    }
+
+    // Last login per IP of the user (epoch seconds, wall clock like the timestamps), empty if none was recorded
+    public synchronized Map<String, Long> getLastSeenByIp(String username) {
+        UserHistory user = users.get(username);
+        if (user == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, Long> lastSeen = new HashMap<>();
+        user.ips.forEach((ipAddress, totals) -> lastSeen.put(ipAddress, totals[2]));
+        return lastSeen;
+    }
+
+    public synchronized long getFileBytes() { return fileBytes; }
+    public synchronized long getAppendedRecords() { return appendedRecords; }
+
+    // In memory changes
+
+    private UserHistory user(String username) {
+        return users.computeIfAbsent(username, UserHistory::new);
+    }
+
+    private void applyLogin(UserHistory user, String ipAddress, long epochSeconds) {
+        long[] totals = user.ips.computeIfAbsent(ipAddress, key -> new long[3]);
+        totals[0]++;
+        totals[2] = Math.max(totals[2], epochSeconds);
+        addToDay(user, epochSeconds, 1, 0);
+
+        // A session that never got a logout (e.g. the server crashed) keeps an unknown end
+        Session session = new Session(ipAddress, epochSeconds);
+        user.sessions.addLast(session);
+        while (user.sessions.size() > sessionsPerUser) {
+            user.sessions.removeFirst();
+        }
+        user.openSession = session;
+    }
+
+    private void applyLogout(UserHistory user, long epochSeconds) {
+        Session session = user.openSession;
+        user.openSession = null;
+        if (session == null || epochSeconds < session.start) {
+            return;
+        }
+        session.end = epochSeconds;
+        long[] totals = user.ips.get(session.ipAddress);
+        if (totals != null) {
+            totals[1] += epochSeconds - session.start;
+            totals[2] = Math.max(totals[2], epochSeconds);
+        }
+        // Play time is counted on the day it happened, so a session over midnight is split
+        for (long from = session.start; from < epochSeconds; ) {
+            long dayEnd = Math.floorDiv(from, SECONDS_PER_DAY) * SECONDS_PER_DAY + SECONDS_PER_DAY;
+            long to = Math.min(dayEnd, epochSeconds);
+            addToDay(user, from, 0, to - from);
+            from = to;
+        }
+    }
+
+    private void addToDay(UserHistory user, long epochSeconds, long logins, long seconds) {
+        long epochDay = Math.floorDiv(epochSeconds, SECONDS_PER_DAY);
+        long[] totals = user.days.computeIfAbsent(epochDay, key -> new long[2]);
+        totals[0] += logins;
+        totals[1] += seconds;
+        // Only the newest rollupDays days are kept
+        while (user.days.size() > 1 && user.days.firstKey() <= user.days.lastKey() - rollupDays) {
+            user.days.pollFirstEntry();
+        }
+    }
+
+    // Writing
+
+    private int writeUserId(UserHistory user) throws IOException {
+        if (user.fileId < 0) {
+            record.clear();
+            record.put(REC_USER);
+            putString(record, user.username);
+            append();
+            user.fileId = fileUserCount++;
+            user.fileTime = 0;
+        }
+        return user.fileId;
+    }
+
+    private int writeIpId(String ipAddress) throws IOException {
+        Integer id = fileIpIds.get(ipAddress);
+        if (id == null) {
+            record.clear();
+            record.put(REC_IP);
+            putString(record, ipAddress);
+            append();
+            id = fileIpIds.size();
+            fileIpIds.put(ipAddress, id);
+        }
+        return id;
+    }
+
+    private void append() throws IOException {
+        record.flip();
+        fileBytes += record.remaining();
+        writeFully(channel, record);
+        appendedRecords++;
+    }
+
+    private void writeFailed(IOException e) {
+        System.out.println("[IpLogger] Error writing login history, only keeping it in memory from now on.");
+        e.printStackTrace();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    // Reading
+
+    private long load(Path file) throws IOException {
+        long records = 0;
+        long validBytes;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.allocate((int) in.size());
+            while (data.hasRemaining() && in.read(data) >= 0) {
+                // read the whole file
+            }
+            data.flip();
+
+            for (byte expected : MAGIC) {
+                if (!data.hasRemaining() || data.get() != expected) {
+                    throw new IOException("Not a login history file: " + file);
+                }
+            }
+            validBytes = data.position();
+            while (data.hasRemaining()) {
+                try {
+                    if (!readRecord(data)) {
+                        System.out.println("[IpLogger] Unknown record in " + file.getFileName() + ", ignoring the rest of the file.");
+                        break;
+                    }
+                } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                    break;
+                }
+                records++;
+                validBytes = data.position();
+            }
+
+            if (validBytes < in.size()) {
+                System.out.println("[IpLogger] Login history ends with " + (in.size() - validBytes) + " unreadable bytes, cutting them off.");
+                in.truncate(validBytes);
+            }
+        }
+        // New records continue the numbering of this file
+        fileIpIds.clear();
+        for (int i = 0; i < fileIps.size(); i++) {
+            fileIpIds.put(fileIps.get(i), i);
+        }
+        fileUserCount = fileUsers.size();
+        fileUsers.clear();
+        fileIps.clear();
+        return records;
+    }
+
+    private boolean readRecord(ByteBuffer data) {
+        byte type = data.get();
+        switch (type) {
+            case REC_USER: {
+                UserHistory user = user(getString(data));
+                user.fileId = fileUsers.size();
+                user.fileTime = 0;
+                fileUsers.add(user);
+                return true;
+            }
+            case REC_IP:
+                fileIps.add(getString(data));
+                return true;
+            case REC_LOGIN: {
+                UserHistory user = fileUsers.get((int) getVarint(data));
+                String ipAddress = fileIps.get((int) getVarint(data));
+                applyLogin(user, ipAddress, getTime(data, user));
+                return true;
+            }
+            case REC_LOGOUT: {
+                UserHistory user = fileUsers.get((int) getVarint(data));
+                applyLogout(user, getTime(data, user));
+                return true;
+            }
+            case REC_IP_TOTAL: {
+                UserHistory user = fileUsers.get((int) getVarint(data));
+                String ipAddress = fileIps.get((int) getVarint(data));
+                long[] totals = user.ips.computeIfAbsent(ipAddress, key -> new long[3]);
+                totals[0] += getVarint(data);
+                totals[1] += getVarint(data);
+                totals[2] = Math.max(totals[2], getTime(data, user));
+                return true;
+            }
+            case REC_DAY: {
+                UserHistory user = fileUsers.get((int) getVarint(data));
+                long epochDay = getVarint(data);
+                long[] totals = user.days.computeIfAbsent(epochDay, key -> new long[2]);
+                totals[0] += getVarint(data);
+                totals[1] += getVarint(data);
+                return true;
+            }
+            case REC_SESSION: {
+                UserHistory user = fileUsers.get((int) getVarint(data));
+                Session session = new Session(fileIps.get((int) getVarint(data)), getTime(data, user));
+                long duration = getVarint(data);
+                session.end = duration == 0 ? Session.UNKNOWN : session.start + duration - 1;
+                user.sessions.addLast(session);
+                while (user.sessions.size() > sessionsPerUser) {
+                    user.sessions.removeFirst();
+                }
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    // Compaction: write the in-memory state to a new file and replace the old one with it
+
+    private void compact(Path file) throws IOException {
+        long start = System.nanoTime();
+        long oldBytes = Files.size(file);
+        Path temp = historyFile.resolveSibling(HISTORY_FILE + ".tmp");
+
+        fileIpIds.clear();
+        fileUserCount = 0;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            buffer.put(MAGIC);
+            for (UserHistory user : users.values()) {
+                user.fileId = fileUserCount++;
+                user.fileTime = 0;
+                ensureRoom(out, buffer);
+                buffer.put(REC_USER);
+                putString(buffer, user.username);
+
+                for (Map.Entry<String, long[]> ip : user.ips.entrySet()) {
+                    int ipId = compactIpId(out, buffer, ip.getKey());
+                    ensureRoom(out, buffer);
+                    buffer.put(REC_IP_TOTAL);
+                    putVarint(buffer, user.fileId);
+                    putVarint(buffer, ipId);
+                    putVarint(buffer, ip.getValue()[0]);
+                    putVarint(buffer, ip.getValue()[1]);
+                    putTime(buffer, user, ip.getValue()[2]);
+                }
+                for (Map.Entry<Long, long[]> day : user.days.entrySet()) {
+                    ensureRoom(out, buffer);
+                    buffer.put(REC_DAY);
+                    putVarint(buffer, user.fileId);
+                    putVarint(buffer, day.getKey());
+                    putVarint(buffer, day.getValue()[0]);
+                    putVarint(buffer, day.getValue()[1]);
+                }
+                for (Session session : user.sessions) {
+                    int ipId = compactIpId(out, buffer, session.ipAddress);
+                    ensureRoom(out, buffer);
+                    buffer.put(REC_SESSION);
+                    putVarint(buffer, user.fileId);
+                    putVarint(buffer, ipId);
+                    putTime(buffer, user, session.start);
+                    putVarint(buffer, session.end == Session.UNKNOWN ? 0 : session.end - session.start + 1);
+                }
+            }
+            buffer.flip();
+            writeFully(out, buffer);
+            out.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+        System.out.printf("[IpLogger] Compacted login history from %d to %d bytes in %.1f ms.%n",
+                oldBytes, fileBytes, (System.nanoTime() - start) / 1_000_000.0);
+    }
+
+    private int compactIpId(FileChannel out, ByteBuffer buffer, String ipAddress) throws IOException {
+        Integer id = fileIpIds.get(ipAddress);
+        if (id == null) {
+            ensureRoom(out, buffer);
+            buffer.put(REC_IP);
+            putString(buffer, ipAddress);
+            id = fileIpIds.size();
+            fileIpIds.put(ipAddress, id);
+        }
+        return id;
+    }
+
+    // Flush the buffer if the next record might not fit (records are at most a few hundred bytes)
+    private static void ensureRoom(FileChannel out, ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 1024) {
+            buffer.flip();
+            writeFully(out, buffer);
+            buffer.clear();
+        }
+    }
+
+    // Encoding
+
+    private static void putTime(ByteBuffer buffer, UserHistory user, long epochSeconds) {
+        long delta = epochSeconds - user.fileTime;
+        putVarint(buffer, (delta << 1) ^ (delta >> 63)); // zigzag, a time can be before the previous one
+        user.fileTime = epochSeconds;
+    }
+
+    private static long getTime(ByteBuffer buffer, UserHistory user) {
+        long zigzag = getVarint(buffer);
+        user.fileTime += (zigzag >>> 1) ^ -(zigzag & 1);
+        return user.fileTime;
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new BufferUnderflowException(); // too long, treat like a torn record
+    }
+
+    private static void putString(ByteBuffer buffer, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, 255);
+        putVarint(buffer, length);
+        buffer.put(bytes, 0, length);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = (int) getVarint(buffer);
+        if (length > 255) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class UserHistory {
+        private final String username;
+        private final Map<String, long[]> ips = new LinkedHashMap<>(); // ip -> {logins, seconds, last seen}
+        private final TreeMap<Long, long[]> days = new TreeMap<>(); // epoch day -> {logins, seconds}
+        private final ArrayDeque<Session> sessions = new ArrayDeque<>(); // oldest first
+        private Session openSession;
+        private int fileId = -1; // number of the user in the current file, -1 if not written yet
+        private long fileTime; // last time written to or read from the file for this user
+
+        private UserHistory(String username) {
+            this.username = username;
+        }
+    }
+
+    public static class Session {
+        public static final long UNKNOWN = -1;
+
+        private final String ipAddress;
+        private final long start;
+        private long end = UNKNOWN; // UNKNOWN while online or if the server stopped without a logout
+
+        private Session(String ipAddress, long start) {
+            this.ipAddress = ipAddress;
+            this.start = start;
+        }
+
+        private Session copy() {
+            Session copy = new Session(ipAddress, start);
+            copy.end = end;
+            return copy;
+        }
+
+        public String getIpAddress() { return ipAddress; }
+        public long getStart() { return start; }
+        public long getEnd() { return end; }
+    }
+
+    public static class IpTotal {
+        private final String ipAddress;
+        private final long logins;
+        private final long seconds;
+        private final long lastSeen;
+
+        private IpTotal(String ipAddress, long logins, long seconds, long lastSeen) {
+            this.ipAddress = ipAddress;
+            this.logins = logins;
+            this.seconds = seconds;
+            this.lastSeen = lastSeen;
+        }
+
+        public String getIpAddress() { return ipAddress; }
+        public long getLogins() { return logins; }
+        public long getSeconds() { return seconds; }
+        public long getLastSeen() { return lastSeen; }
+    }
+
+    public static class Day {
+        private final long epochDay;
+        private final long logins;
+        private final long seconds;
+
+        private Day(long epochDay, long logins, long seconds) {
+            this.epochDay = epochDay;
+            this.logins = logins;
+            this.seconds = seconds;
+        }
+
+        public long getEpochDay() { return epochDay; }
+        public long getLogins() { return logins; }
+        public long getSeconds() { return seconds; }
+    }
+
+    // Copy of one user's history for the history command
+    public static class History {
+        private final String username;
+        private final long logins;
+        private final long seconds;
+        private final long lastSeen;
+        private final boolean online;
+        private final List<IpTotal> ips;        // most recently used first
+        private final List<Session> sessions;   // newest first
+        private final List<Day> days;           // newest first
+
+        private History(String username, long logins, long seconds, long lastSeen, boolean online, List<IpTotal> ips, List<Session> sessions, List<Day> days) {
+            this.username = username;
+            this.logins = logins;
+            this.seconds = seconds;
+            this.lastSeen = lastSeen;
+            this.online = online;
+            this.ips = Collections.unmodifiableList(ips);
+            this.sessions = Collections.unmodifiableList(sessions);
+            this.days = Collections.unmodifiableList(days);
+        }
+
+        public String getUsername() { return username; }
+        public long getLogins() { return logins; }
+        public long getSeconds() { return seconds; }
+        public long getLastSeen() { return lastSeen; }
+        public boolean isOnline() { return online; }
+        public List<IpTotal> getIps() { return ips; }
+        public List<Session> getSessions() { return sessions; }
+        public List<Day> getDays() { return days; }
+    }
+}
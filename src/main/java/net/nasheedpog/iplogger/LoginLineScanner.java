@@ -0,0 +1,288 @@
+package net.nasheedpog.iplogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Finds player logins in server log files without a regex and without turning every line into a String.
+// Bytes are fed in as they are read, split into lines in place, and only lines containing the prefilter text
+// ("logged in with entity id") are looked at. From those the time, username and address are parsed by hand:
+//
+//   [12:34:56] [Server thread/INFO]: Steve[/203.0.113.7:51234] logged in with entity id 123 at (...)
+//   [12:34:56 INFO]: Steve[/[2001:db8::1]:51234] logged in with entity id 123 at (...)
+//
+// Any thread tag or log level is accepted, and IPv6 addresses with or without brackets. Only the username and the
+// address of a login become Strings. Lines that don't fit can be matched with customLoginPattern instead, a regex
+// with the named groups "username" and "ipAddress" and optionally "time" (HH:mm:ss).
+//
+// Log lines only have the time of day, so the date starts at dayStart and moves to the next day whenever the
+// time goes backwards (the server ran past midnight).
+public class LoginLineScanner {
+    public static final String DEFAULT_PREFILTER = "logged in with entity id";
+    private static final byte[] LOGIN_MARKER = DEFAULT_PREFILTER.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PREFIX_END = "]: ".getBytes(StandardCharsets.US_ASCII);
+
+    public interface LoginConsumer {
+        void login(String username, String ipAddress, long epochSeconds);
+    }
+
+    private final byte[] prefilter;
+    private final Pattern customPattern;
+    private final LoginConsumer consumer;
+    private final long[] ipv6Scratch = new long[2];
+    private Matcher customMatcher;
+
+    private byte[] carry = new byte[512]; // start of a line that continues in the next feed() call
+    private int carryLength;
+    private long dayStart;
+    private int lastSecondOfDay;
+    private long lines;
+    private long logins;
+
+    public LoginLineScanner(long dayStart, IpLoggerConfig config, LoginConsumer consumer) {
+        String prefilterText = config == null || config.loginLinePrefilter == null || config.loginLinePrefilter.isEmpty()
+                ? DEFAULT_PREFILTER : config.loginLinePrefilter;
+        this.prefilter = prefilterText.getBytes(StandardCharsets.UTF_8);
+        this.customPattern = compileCustomPattern(config);
+        this.consumer = consumer;
+        this.dayStart = dayStart;
+    }
+
+    private static Pattern compileCustomPattern(IpLoggerConfig config) {
+        if (config == null || config.customLoginPattern == null || config.customLoginPattern.isEmpty()) {
+            return null;
+        }
+        try {
+            return Pattern.compile(config.customLoginPattern);
+        } catch (IllegalArgumentException e) {
+            System.out.println("[IpLogger] Invalid customLoginPattern, only the built in login format is used.");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Read a whole stream
+    public void scan(InputStream in) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            feed(buffer, 0, read);
+        }
+        finish();
+    }
+
+    // Scan the complete lines in the bytes. An unfinished last line is kept until the next call.
+    public void feed(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            if (carryLength > 0) {
+                appendCarry(bytes, lineStart, i);
+                scanLine(carry, 0, carryLength);
+                carryLength = 0;
+            } else {
+                scanLine(bytes, lineStart, i);
+            }
+            lineStart = i + 1;
+        }
+        appendCarry(bytes, lineStart, end);
+    }
+
+    // Scan a last line that didn't end with a newline
+    public void finish() {
+        if (carryLength > 0) {
+            scanLine(carry, 0, carryLength);
+            carryLength = 0;
+        }
+    }
+
+    // Forget a partly read line and start over at a new date, e.g. when the file was replaced
+    public void reset(long newDayStart) {
+        carryLength = 0;
+        dayStart = newDayStart;
+        lastSecondOfDay = 0;
+    }
+
+    public long getLines() { return lines; }
+    public long getLogins() { return logins; }
+
+    private void appendCarry(byte[] bytes, int from, int to) {
+        int length = to - from;
+        if (length <= 0) {
+            return;
+        }
+        if (carryLength + length > carry.length) {
+            carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + length));
+        }
+        System.arraycopy(bytes, from, carry, carryLength, length);
+        carryLength += length;
+    }
+
+    // Returns true if the line was a login
+    boolean scanLine(byte[] line, int start, int end) {
+        lines++;
+        if (end > start && line[end - 1] == '\r') {
+            end--;
+        }
+        int found = indexOf(line, start, end, prefilter);
+        if (found < 0) {
+            return false;
+        }
+        int marker = prefilter.length == LOGIN_MARKER.length && Arrays.equals(prefilter, LOGIN_MARKER) ? found : indexOf(line, start, end, LOGIN_MARKER);
+        if ((marker >= 0 && scanBuiltIn(line, start, end, marker)) || scanCustom(line, start, end)) {
+            logins++;
+            return true;
+        }
+        return false;
+    }
+
+    // "[HH:MM:SS...] ...: username[/address:port] logged in with entity id"
+    private boolean scanBuiltIn(byte[] line, int start, int end, int marker) {
+        int secondOfDay = parseTime(line, start, Math.min(end, start + 32), true);
+        if (secondOfDay < 0 || marker - start < 5 || line[marker - 1] != ' ' || line[marker - 2] != ']') {
+            return false;
+        }
+        int addressEnd = marker - 2;
+
+        // Find the "[/" that starts the address. An IPv6 address may contain a '[' itself, but never "[/".
+        int open = addressEnd - 1;
+        while (open > start && !(line[open - 1] == '[' && line[open] == '/')) {
+            open--;
+        }
+        open--; // position of '['
+        if (open <= start) {
+            return false;
+        }
+        // The username has to come right after the log prefix ("...]: "), so a chat message can't fake a login
+        int usernameStart = indexOf(line, start, open, PREFIX_END);
+        if (usernameStart < 0) {
+            return false;
+        }
+        usernameStart += PREFIX_END.length;
+        if (usernameStart >= open) {
+            return false;
+        }
+        for (int i = usernameStart; i < open; i++) {
+            if (line[i] == ' ') {
+                return false;
+            }
+        }
+
+        int ipStart = open + 2;
+        int ipEnd;
+        if (ipStart < addressEnd && line[ipStart] == '[') {
+            // [/[2001:db8::1]:51234]
+            ipStart++;
+            ipEnd = ipStart;
+            while (ipEnd < addressEnd && line[ipEnd] != ']') {
+                ipEnd++;
+            }
+        } else {
+            // [/203.0.113.7:51234], or an unbracketed IPv6 address where the port follows the last ':'
+            ipEnd = addressEnd;
+            while (ipEnd > ipStart && line[ipEnd - 1] != ':') {
+                ipEnd--;
+            }
+            ipEnd = ipEnd > ipStart ? ipEnd - 1 : addressEnd;
+        }
+        if (ipEnd <= ipStart) {
+            return false;
+        }
+
+        String ipAddress = new String(line, ipStart, ipEnd - ipStart, StandardCharsets.ISO_8859_1);
+        if (IpAddresses.parseIpv4(ipAddress) < 0 && !IpAddresses.parseIpv6(ipAddress, ipv6Scratch)) {
+            return false;
+        }
+        String username = new String(line, usernameStart, open - usernameStart, StandardCharsets.UTF_8);
+        emit(username, ipAddress, secondOfDay);
+        return true;
+    }
+
+    private boolean scanCustom(byte[] line, int start, int end) {
+        if (customPattern == null) {
+            return false;
+        }
+        String text = new String(line, start, end - start, StandardCharsets.UTF_8);
+        if (customMatcher == null) {
+            customMatcher = customPattern.matcher(text);
+        } else {
+            customMatcher.reset(text);
+        }
+        if (!customMatcher.find()) {
+            return false;
+        }
+        try {
+            String username = customMatcher.group("username");
+            String ipAddress = customMatcher.group("ipAddress");
+            int secondOfDay = lastSecondOfDay; // without a time group, logins get the time of the previous one
+            if (customPattern.pattern().contains("(?<time>")) {
+                String time = customMatcher.group("time");
+                int parsed = time == null ? -1 : parseTime(time.getBytes(StandardCharsets.ISO_8859_1), 0, time.length(), false);
+                secondOfDay = parsed < 0 ? lastSecondOfDay : parsed;
+            }
+            if (username == null || ipAddress == null) {
+                return false;
+            }
+            emit(username, ipAddress, secondOfDay);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false; // the pattern doesn't have the named groups
+        }
+    }
+
+    private void emit(String username, String ipAddress, int secondOfDay) {
+        if (secondOfDay < lastSecondOfDay) {
+            dayStart += 86400;
+        }
+        lastSecondOfDay = secondOfDay;
+        consumer.login(username, ipAddress, dayStart + secondOfDay);
+    }
+
+    // Second of the day from the first "HH:MM:SS" in the range (with bracketed, the first "[HH:MM:SS"), or -1
+    static int parseTime(byte[] line, int start, int end, boolean bracketed) {
+        int skip = bracketed ? 1 : 0;
+        for (int i = start; i + skip + 8 <= end; i++) {
+            if (bracketed && line[i] != '[') {
+                continue;
+            }
+            int at = i + skip;
+            int hours = twoDigits(line, at);
+            int minutes = twoDigits(line, at + 3);
+            int seconds = twoDigits(line, at + 6);
+            if (hours >= 0 && hours < 24 && line[at + 2] == ':' && minutes >= 0 && minutes < 60 && line[at + 5] == ':' && seconds >= 0 && seconds < 60) {
+                return hours * 3600 + minutes * 60 + seconds;
+            }
+        }
+        return -1;
+    }
+
+    private static int twoDigits(byte[] line, int offset) {
+        int tens = line[offset] - '0';
+        int ones = line[offset + 1] - '0';
+        return tens < 0 || tens > 9 || ones < 0 || ones > 9 ? -1 : tens * 10 + ones;
+    }
+
+    private static int indexOf(byte[] line, int start, int end, byte[] text) {
+        byte first = text[0];
+        int last = end - text.length;
+        outer:
+        for (int i = start; i <= last; i++) {
+            if (line[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < text.length; j++) {
+                if (line[i + j] != text[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
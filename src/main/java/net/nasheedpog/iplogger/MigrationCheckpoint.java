@@ -0,0 +1,97 @@
+package net.nasheedpog.iplogger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// The IPs whose location is still to be looked up: left pending by a migration of the old data format, or stored
+// without a location because the web API gave no answer. Written by the migration before it saves the migrated data,
+// grown by LocationBackfillJob.addPending and shrunk by it as locations are found, so a restart continues with the
+// IPs that are left. The file is deleted once none are left.
+public class MigrationCheckpoint {
+    private static final String CHECKPOINT_FILE = "MigrationCheckpoint.json";
+
+    private final Path file;
+    private final Set<String> pending = new LinkedHashSet<>();
+
+    private MigrationCheckpoint(Path file) {
+        this.file = file;
+    }
+
+    public static MigrationCheckpoint load(Path dataDirectory) {
+        MigrationCheckpoint checkpoint = new MigrationCheckpoint(dataDirectory.resolve(CHECKPOINT_FILE));
+        if (!Files.exists(checkpoint.file)) {
+            return checkpoint;
+        }
+
+        try (FileReader reader = new FileReader(checkpoint.file.toFile())) {
+            Type type = new TypeToken<List<String>>() {}.getType();
+            List<String> loaded = new Gson().fromJson(reader, type);
+            if (loaded != null) {
+                checkpoint.pending.addAll(loaded);
+            }
+        } catch (IOException | JsonParseException e) {
+            System.out.println("[IpLogger] Error loading pending locations checkpoint, pending locations won't be looked up.");
+            e.printStackTrace();
+        }
+        return checkpoint;
+    }
+
+    public synchronized void addPending(Collection<String> ipAddresses) {
+        pending.addAll(ipAddresses);
+    }
+
+    public synchronized void markResolved(Collection<String> ipAddresses) {
+        pending.removeAll(ipAddresses);
+    }
+
+    public synchronized List<String> getPending() {
+        return new ArrayList<>(pending);
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    // Written to a temp file first, so a crash can't leave a half written checkpoint behind. Deleted when empty.
+    public synchronized void save() {
+        try {
+            if (pending.isEmpty()) {
+                Files.deleteIfExists(file);
+                return;
+            }
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error deleting pending locations checkpoint.");
+            e.printStackTrace();
+            return;
+        }
+
+        Path temp = file.resolveSibling(CHECKPOINT_FILE + ".tmp");
+        try (FileWriter writer = new FileWriter(temp.toFile())) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(pending, writer);
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error saving pending locations checkpoint.");
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error saving pending locations checkpoint.");
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package net.nasheedpog.iplogger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Resolves countries from a local IP range file instead of a web API.
+// Each line of the file is "start,end,country" or "start,end,countryCode,countryName" (quotes are optional),
+// where start and end are IP addresses or plain numbers, like the free IP-to-country CSV databases.
+// The ranges are kept in sorted primitive arrays and searched with binary search, so a lookup doesn't allocate anything.
+// A reload builds a new set of arrays on the side and swaps it in, so lookups keep working while a file is loading.
+public class OfflineGeolocationProvider implements GeolocationProvider {
+    private static final BigInteger IPV4_MAPPED_START = BigInteger.valueOf(0xFFFF00000000L);
+    private static final BigInteger IPV4_MAPPED_END = BigInteger.valueOf(0xFFFFFFFFFFFFL);
+    private static final BigInteger LONG_MASK = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+
+    private final Path file;
+    private final ThreadLocal<long[]> ipv6Scratch = ThreadLocal.withInitial(() -> new long[2]);
+    private volatile Ranges ranges;
+
+    public OfflineGeolocationProvider(Path file) {
+        this.file = file;
+    }
+
+    public boolean isLoaded() {
+        return ranges != null;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getRangeCount() {
+        Ranges current = ranges;
+        return current == null ? 0 : current.v4Start.length + current.v6StartHi.length;
+    }
+
+    @Override
+    public String locate(String ipAddress) {
+        Ranges current = ranges;
+        if (current == null) {
+            return "";
+        }
+
+        long ipv4 = IpAddresses.parseIpv4(ipAddress);
+        if (ipv4 >= 0) {
+            return current.locateIpv4((int) ipv4);
+        }
+
+        long[] ipv6 = ipv6Scratch.get();
+        if (!IpAddresses.parseIpv6(ipAddress, ipv6)) {
+            return "";
+        }
+        if (IpAddresses.isIpv4Mapped(ipv6[0], ipv6[1])) {
+            return current.locateIpv4((int) ipv6[1]);
+        }
+        return current.locateIpv6(ipv6[0], ipv6[1]);
+    }
+
+    // Load (or reload) the range file. The old ranges stay in use until the new ones are ready.
+    public synchronized void reload() throws IOException {
+        long start = System.currentTimeMillis();
+        Ranges loaded = parse(file);
+        ranges = loaded;
+        System.out.println("[IpLogger] Loaded " + loaded.v4Start.length + " IPv4 and " + loaded.v6StartHi.length + " IPv6 ranges ("
+                + loaded.countries.length + " countries) from " + file + " in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    // Reload on a background thread, so commands and server start don't wait for the file
+    public void reloadAsync(Runnable onDone) {
+        Thread thread = new Thread(() -> {
+            try {
+                reload();
+            } catch (IOException e) {
+                System.out.println("[IpLogger] Error loading offline geolocation database: " + file);
+                e.printStackTrace();
+            }
+            if (onDone != null) {
+                onDone.run();
+            }
+        }, "IpLogger-GeoDatabase-Loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static Ranges parse(Path file) throws IOException {
+        Map<String, Integer> countryIds = new HashMap<>();
+        List<String> countries = new ArrayList<>();
+        RangeBuilder v4 = new RangeBuilder();
+        RangeBuilder v6 = new RangeBuilder();
+        long[] scratch = new long[2];
+        int skipped = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] columns = splitCsv(line);
+                if (columns.length < 3) {
+                    skipped++;
+                    continue;
+                }
+
+                BigInteger rangeStart = parseBound(columns[0], scratch);
+                BigInteger rangeEnd = parseBound(columns[1], scratch);
+                if (rangeStart == null || rangeEnd == null || rangeStart.compareTo(rangeEnd) > 0) {
+                    skipped++; // header line or broken entry
+                    continue;
+                }
+
+                String country = columns.length >= 4 && !columns[3].isEmpty() ? columns[3] : columns[2];
+                if (country.isEmpty() || country.equals("-")) {
+                    continue; // unassigned range
+                }
+                int countryId = countryIds.computeIfAbsent(country, key -> {
+                    countries.add(key);
+                    return countries.size() - 1;
+                });
+
+                if (rangeEnd.bitLength() <= 32) {
+                    v4.add(0, rangeStart.longValue(), 0, rangeEnd.longValue(), countryId);
+                } else if (rangeStart.compareTo(IPV4_MAPPED_START) >= 0 && rangeEnd.compareTo(IPV4_MAPPED_END) <= 0) {
+                    v4.add(0, rangeStart.longValue() & 0xFFFFFFFFL, 0, rangeEnd.longValue() & 0xFFFFFFFFL, countryId);
+                } else {
+                    v6.add(rangeStart.shiftRight(64).longValue(), rangeStart.and(LONG_MASK).longValue(),
+                            rangeEnd.shiftRight(64).longValue(), rangeEnd.and(LONG_MASK).longValue(), countryId);
+                }
+            }
+        }
+
+        if (skipped > 0) {
+            System.out.println("[IpLogger] Skipped " + skipped + " unreadable lines in " + file);
+        }
+        return new Ranges(v4.sorted(), v6.sorted(), countries.toArray(new String[0]));
+    }
+
+    // A bound is either an IP address or a (possibly 128-bit) number
+    private static BigInteger parseBound(String text, long[] scratch) {
+        long ipv4 = IpAddresses.parseIpv4(text);
+        if (ipv4 >= 0) {
+            return BigInteger.valueOf(ipv4);
+        }
+        if (text.indexOf(':') >= 0) {
+            if (!IpAddresses.parseIpv6(text, scratch)) {
+                return null;
+            }
+            return new BigInteger(Long.toUnsignedString(scratch[0])).shiftLeft(64).or(new BigInteger(Long.toUnsignedString(scratch[1])));
+        }
+        try {
+            BigInteger value = new BigInteger(text);
+            return value.signum() < 0 || value.bitLength() > 128 ? null : value;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String[] splitCsv(String line) {
+        List<String> columns = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    current.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                columns.add(current.toString().trim());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        columns.add(current.toString().trim());
+        return columns.toArray(new String[0]);
+    }
+
+    // Growable primitive columns used while reading the file
+    private static class RangeBuilder {
+        private long[] startHi = new long[1024], startLo = new long[1024], endHi = new long[1024], endLo = new long[1024];
+        private int[] country = new int[1024];
+        private int size;
+
+        private void add(long sHi, long sLo, long eHi, long eLo, int countryId) {
+            if (size == country.length) {
+                int newLength = size * 2;
+                startHi = Arrays.copyOf(startHi, newLength);
+                startLo = Arrays.copyOf(startLo, newLength);
+                endHi = Arrays.copyOf(endHi, newLength);
+                endLo = Arrays.copyOf(endLo, newLength);
+                country = Arrays.copyOf(country, newLength);
+            }
+            startHi[size] = sHi;
+            startLo[size] = sLo;
+            endHi[size] = eHi;
+            endLo[size] = eLo;
+            country[size] = countryId;
+            size++;
+        }
+
+        // Returns the rows ordered by range start
+        private RangeBuilder sorted() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> {
+                int byHi = Long.compareUnsigned(startHi[a], startHi[b]);
+                return byHi != 0 ? byHi : Long.compareUnsigned(startLo[a], startLo[b]);
+            });
+
+            RangeBuilder result = new RangeBuilder();
+            for (int i : order) {
+                result.add(startHi[i], startLo[i], endHi[i], endLo[i], country[i]);
+            }
+            return result;
+        }
+    }
+
+    // One immutable, fully loaded version of the range file
+    private static class Ranges {
+        private final int[] v4Start;
+        private final int[] v4End;
+        private final int[] v4Country;
+        private final long[] v6StartHi;
+        private final long[] v6StartLo;
+        private final long[] v6EndHi;
+        private final long[] v6EndLo;
+        private final int[] v6Country;
+        private final String[] countries;
+
+        private Ranges(RangeBuilder v4, RangeBuilder v6, String[] countries) {
+            this.v4Start = new int[v4.size];
+            this.v4End = new int[v4.size];
+            for (int i = 0; i < v4.size; i++) {
+                v4Start[i] = (int) v4.startLo[i];
+                v4End[i] = (int) v4.endLo[i];
+            }
+            this.v4Country = Arrays.copyOf(v4.country, v4.size);
+            this.v6StartHi = Arrays.copyOf(v6.startHi, v6.size);
+            this.v6StartLo = Arrays.copyOf(v6.startLo, v6.size);
+            this.v6EndHi = Arrays.copyOf(v6.endHi, v6.size);
+            this.v6EndLo = Arrays.copyOf(v6.endLo, v6.size);
+            this.v6Country = Arrays.copyOf(v6.country, v6.size);
+            this.countries = countries;
+        }
+
+        private String locateIpv4(int ip) {
+            // Find the last range that starts at or before the ip (addresses are compared as unsigned ints)
+            int low = 0, high = v4Start.length - 1, found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (Integer.compareUnsigned(v4Start[mid], ip) <= 0) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (found >= 0 && Integer.compareUnsigned(ip, v4End[found]) <= 0) {
+                return countries[v4Country[found]];
+            }
+            return "";
+        }
+
+        private String locateIpv6(long hi, long lo) {
+            int low = 0, high = v6StartHi.length - 1, found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (compare(v6StartHi[mid], v6StartLo[mid], hi, lo) <= 0) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (found >= 0 && compare(hi, lo, v6EndHi[found], v6EndLo[found]) <= 0) {
+                return countries[v6Country[found]];
+            }
+            return "";
+        }
+
+        private static int compare(long aHi, long aLo, long bHi, long bLo) {
+            int byHi = Long.compareUnsigned(aHi, bHi);
+            return byHi != 0 ? byHi : Long.compareUnsigned(aLo, bLo);
+        }
+    }
+}
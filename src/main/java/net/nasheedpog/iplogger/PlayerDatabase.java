@@ -1,186 +1,666 @@
 package net.nasheedpog.iplogger;
 
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static net.nasheedpog.iplogger.IpLogger.debugMode;
+import static net.nasheedpog.iplogger.IpLoggerCommands.deferLocation;
 import static net.nasheedpog.iplogger.IpLoggerCommands.geolocate;
 
+// Concurrency: players maps each username to an immutable, chronologically sorted list, which is replaced as a whole
+// on every change. Readers (commands, tab completion, saving) never lock and never see a half updated list.
+// Changes to a user are serialized by one of STRIPES locks picked by username, so joins of different players
+// don't wait for each other. A change also holds the read side of snapshotLock; snapshotAndThen takes the write
+// side for the moment it copies the map, so nothing can change between that copy and its follow-up action.
+// In the SHARDED and SQLITE storage modes the entries live in a PlayerStore instead of players and ipIndex, which are
+// then left empty. Everything goes through entriesOf and putEntries, so the locking is the same in every mode.
 public class PlayerDatabase {
-    private static final String DATA_FILE = "config/iplogger/IpLoggerData.json";
-    private final HashMap<String, List<IpEntry>> players = new HashMap<>();
-    private final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String DATA_FILE = "IpLoggerData.json";
+    private static final String BINARY_DATA_FILE = "IpLoggerData.bin";
+    private static final int STRIPES = 64;
+    private final Path dataDirectory;
+    private final ConcurrentHashMap<String, List<IpEntry>> players = new ConcurrentHashMap<>();
+    // Reverse index: IP address -> (username -> that user's IpEntry for the IP). The inner maps are immutable and
+    // replaced on change. Updated right after players by every mutation.
+    private final ConcurrentHashMap<String, Map<String, IpEntry>> ipIndex = new ConcurrentHashMap<>();
+    private final Object[] userLocks = new Object[STRIPES];
+    private PlayerStore store; // set for the SHARDED and SQLITE storage modes
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final Gson gson = new Gson();
+    private final Object saveLock = new Object(); // Only one save writes the file at a time
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private IpLoggerConfig.DataFormat dataFormat = IpLoggerConfig.DataFormat.JSON;
+    private boolean useMmap = true;
 
     public PlayerDatabase() {
-        new File("config/iplogger").mkdirs(); // Ensure directory exists
+        this(Paths.get("config/iplogger"));
+    }
+
+    // Keep the data files in another directory (the benchmarks use a temp directory)
+    public PlayerDatabase(Path dataDirectory) {
+        this.dataDirectory = dataDirectory;
+        dataDirectory.toFile().mkdirs(); // Ensure directory exists
+        for (int i = 0; i < STRIPES; i++) {
+            userLocks[i] = new Object();
+        }
+    }
+
+    // Run a change to one user's entries. See the comment at the top of the class.
+    private <T> T changeUser(String username, Supplier<T> change) {
+        snapshotLock.readLock().lock();
+        try {
+            synchronized (userLocks[Math.floorMod(username.hashCode(), STRIPES)]) {
+                return change.get();
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    // The user's list, or null. Comes from the store if there is one (e.g. loads the user's shard).
+    private List<IpEntry> entriesOf(String username) {
+        return store != null ? store.get(username) : players.get(username);
+    }
+
+    // Replace the user's list (null or empty removes the user)
+    private void putEntries(String username, List<IpEntry> ipEntries) {
+        if (store != null) {
+            store.put(username, ipEntries); // the store keeps its own index
+        } else if (ipEntries == null || ipEntries.isEmpty()) {
+            players.remove(username);
+        } else {
+            players.put(username, ipEntries);
+        }
+    }
+
+    // Listeners are told about every change to the database, e.g. to save it in the background
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    private void notifyChanged(String username, IpEntry ipEntry) {
+        for (ChangeListener listener : listeners) {
+            listener.entryChanged(username, ipEntry);
+        }
+    }
+
+    private void notifyRemoved(String username, String ipAddress) {
+        for (ChangeListener listener : listeners) {
+            listener.entryRemoved(username, ipAddress);
+        }
     }
 
     // use the location getter from outside
     public String getLocation(String ipAddress) {
-        for (Map.Entry<String, List<IpEntry>> entry : players.entrySet()) {
-            for (IpEntry ipEntry : entry.getValue()) {
-                if (ipEntry.getIp().equals(ipAddress)) {
-                    return ipEntry.getLocation();
-                }
+        Map<String, IpEntry> usersForIp = getUserEntriesForIp(ipAddress);
+        if (usersForIp.isEmpty()) {
+            return null;
+        }
+
+        // Prefer an entry that actually has a location, in case an earlier lookup failed
+        String location = null;
+        for (IpEntry ipEntry : usersForIp.values()) {
+            location = ipEntry.getLocation();
+            if (location != null && !location.isEmpty()) {
+                break;
             }
         }
+        return location;
+    }
 
-        return null;
+    private void indexAdd(String username, IpEntry ipEntry) {
+        if (store != null) {
+            return;
+        }
+        ipIndex.compute(ipEntry.getIp(), (ipAddress, usersForIp) -> {
+            Map<String, IpEntry> updated = usersForIp == null ? new LinkedHashMap<>() : new LinkedHashMap<>(usersForIp);
+            updated.put(username, ipEntry);
+            return Collections.unmodifiableMap(updated);
+        });
     }
 
+    private void indexRemove(String username, String ipAddress) {
+        if (store != null) {
+            return;
+        }
+        ipIndex.computeIfPresent(ipAddress, (key, usersForIp) -> {
+            if (!usersForIp.containsKey(username)) {
+                return usersForIp;
+            }
+            Map<String, IpEntry> updated = new LinkedHashMap<>(usersForIp);
+            updated.remove(username);
+            return updated.isEmpty() ? null : Collections.unmodifiableMap(updated);
+        });
+    }
 
-    // Load data from JSON and check if migration to new format is needed
-    public void loadFromJson() {
+    // Called after loading, with the loaded mutable lists. Puts every list in chronological order, makes it immutable
+    // and builds the index.
+    private void installLoaded(Map<String, List<IpEntry>> loaded) {
+        loaded.forEach((username, ipEntries) -> {
+            if (!ipEntries.isEmpty()) {
+                ipEntries.sort(IpEntry::compareTimeTo);
+                players.put(username, Collections.unmodifiableList(ipEntries));
+            }
+        });
+        Map<String, Map<String, IpEntry>> index = new HashMap<>();
+        players.forEach((username, ipEntries) -> ipEntries.forEach(ipEntry ->
+                index.computeIfAbsent(ipEntry.getIp(), k -> new LinkedHashMap<>()).put(username, ipEntry)));
+        ipIndex.clear();
+        index.forEach((ipAddress, usersForIp) -> ipIndex.put(ipAddress, Collections.unmodifiableMap(usersForIp)));
+    }
+
+
+    // Load the database in the configured format. If only the other format's file exists (e.g. right after switching
+    // dataFormat in the config), that file is loaded and saved again in the configured format.
+    public void load() {
+        if (store != null) {
+            loadIntoStore();
+            return;
+        }
+        boolean binary = dataFormat == IpLoggerConfig.DataFormat.BINARY;
+        boolean hasBinary = Files.exists(dataDirectory.resolve(BINARY_DATA_FILE));
+        boolean hasJson = Files.exists(dataDirectory.resolve(DATA_FILE));
+
+        if (binary ? hasBinary : hasJson) {
+            if (binary) {
+                loadFromBinary();
+            } else {
+                loadFromJson();
+            }
+        } else if (binary ? hasJson : hasBinary) {
+            System.out.println("[IpLogger] Converting database to the " + dataFormat + " format.");
+            if (binary) {
+                loadFromJson();
+            } else {
+                loadFromBinary();
+            }
+            save();
+        } else {
+            System.out.println("[IpLogger] No existing data file found.");
+        }
+    }
+
+    // Opens the store, or creates it from IpLoggerData.json or .bin the first time (the one-shot import). That file is
+    // loaded the usual way (including a migration of the old format), imported into the store and left as it was.
+    private void loadIntoStore() {
+        PlayerStore opened = store;
         try {
-            if (Files.exists(Paths.get(DATA_FILE))) {
-                // Read JSON file
-                try (FileReader reader = new FileReader(DATA_FILE)) {
-                    Type type = new TypeToken<Map<String, Object>>() {}.getType();
-                    Map<String, Object> data = new Gson().fromJson(reader, type);
-
-                    // Check if the format is old and needs migration
-                    if (needsMigration(data)) {
-                        //JSON is in old format, update to the new version
-                        createBackup();
-                        migrateToNewFormat(data);
-                        System.out.println("[IpLogger] Old JSON format detected and updated to the new format.");
-                    } else {
-                        //Load using the new format
-                        Type newFormatType = new TypeToken<Map<String, List<IpEntry>>>() {}.getType();
-                        Map<String, List<IpEntry>> newData = new Gson().fromJson(new Gson().toJson(data), newFormatType);
-                        players.putAll(newData);
+            if (opened.open()) {
+                return;
+            }
+            store = null;
+            boolean hasData = Files.exists(dataDirectory.resolve(DATA_FILE)) || Files.exists(dataDirectory.resolve(BINARY_DATA_FILE));
+            if (hasData) {
+                System.out.println("[IpLogger] Importing the database into the new storage, " + (dataFormat == IpLoggerConfig.DataFormat.BINARY ? BINARY_DATA_FILE : DATA_FILE)
+                        + " is kept as it is but no longer used.");
+                load();
+            }
+            snapshotLock.writeLock().lock();
+            try {
+                opened.importAll(new HashMap<>(players));
+                players.clear();
+                ipIndex.clear();
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+            store = opened;
+        } catch (IOException | IllegalStateException e) {
+            // Not falling back to the data file, saving it over the store later would lose the players only in there
+            throw new IllegalStateException("Could not open the player storage", e);
+        }
+    }
+
+    // Keep the players in a store instead of in memory. Called before load().
+    public void setStore(PlayerStore store) {
+        this.store = store;
+    }
+
+    public PlayerStore getStore() {
+        return store;
+    }
+
+    // Close the store after the final save
+    public void close() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    public void setDataFormat(IpLoggerConfig.DataFormat format, boolean useMmap) {
+        this.dataFormat = format;
+        this.useMmap = useMmap;
+    }
+
+    public IpLoggerConfig.DataFormat getDataFormat() {
+        return dataFormat;
+    }
+
+    public void loadFromBinary() {
+        long start = System.nanoTime();
+        try {
+            Map<String, List<IpEntry>> loaded = BinaryDatabaseFormat.read(dataDirectory.resolve(BINARY_DATA_FILE), useMmap);
+            int entryCount = 0;
+            for (List<IpEntry> ipEntries : loaded.values()) {
+                entryCount += ipEntries.size();
+            }
+            snapshotLock.writeLock().lock();
+            try {
+                installLoaded(loaded);
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+            IpLoggerMetrics.LOAD.recordSince(start);
+            System.out.printf("[IpLogger] Loaded %d IP entries for %d players from the binary database in %.1f ms.%n",
+                    entryCount, players.size(), (System.nanoTime() - start) / 1_000_000.0);
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error loading binary database file.");
+            e.printStackTrace();
+        }
+    }
+
+    // Load data from JSON, migrating users that are still in the old format.
+    // The file is streamed in a single pass: new-format users go straight into players, and the format is
+    // detected per user on the fly, so there's no intermediate Map<String, Object> or second parse.
+    public void loadFromJson() {
+        Path dataFile = dataDirectory.resolve(DATA_FILE);
+        if (!Files.exists(dataFile)) {
+            System.out.println("[IpLogger] No existing data file found.");
+            return;
+        }
+
+        long start = System.nanoTime();
+        Map<String, Map<String, String>> legacyData = new LinkedHashMap<>(); // username -> (ip -> timestamp), old format
+        Map<String, List<IpEntry>> loaded = new HashMap<>();
+        int entryCount = 0;
+
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(dataFile, StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String username = reader.nextName();
+                JsonToken token = reader.peek();
+
+                if (token == JsonToken.BEGIN_ARRAY) {
+                    // New format: a list of IpEntry objects
+                    List<IpEntry> ipEntries = readIpEntries(reader);
+                    if (!ipEntries.isEmpty()) {
+                        loaded.put(username, ipEntries);
+                        entryCount += ipEntries.size();
                     }
+                } else if (token == JsonToken.BEGIN_OBJECT) {
+                    // Old format: {"ipTimestamps": {ip: timestamp}}
+                    legacyData.put(username, readLegacyUser(reader));
+                } else {
+                    reader.skipValue();
                 }
-            } else {
-                System.out.println("[IpLogger] No existing data file found.");
             }
-        } catch (IOException e) {
+            reader.endObject();
+        } catch (IOException | IllegalStateException | JsonParseException e) {
             System.out.println("[IpLogger] Error loading JSON file.");
             e.printStackTrace();
+            return;
+        }
+        snapshotLock.writeLock().lock();
+        try {
+            installLoaded(loaded);
+        } finally {
+            snapshotLock.writeLock().unlock();
         }
 
+        IpLoggerMetrics.LOAD.recordSince(start);
+        System.out.printf("[IpLogger] Loaded %d IP entries for %d players in %.1f ms.%n",
+                entryCount, players.size(), (System.nanoTime() - start) / 1_000_000.0);
+
+        if (!legacyData.isEmpty()) {
+            //JSON is in old format, update to the new version
+            try {
+                createBackup();
+            } catch (IOException e) {
+                System.out.println("[IpLogger] Error creating backup before migration.");
+                e.printStackTrace();
+            }
+            migrateToNewFormat(legacyData);
+            System.out.println("[IpLogger] Old JSON format detected and updated to the new format.");
+        }
     }
 
-    // Migrate old format to the new format and save
-    private void migrateToNewFormat(Map<String, Object> oldData) {
-        System.out.println("[IpLogger] Starting migration to new format...");
+    private static List<IpEntry> readIpEntries(JsonReader reader) throws IOException {
+        List<IpEntry> ipEntries = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            IpEntry ipEntry = readIpEntry(reader);
+            if (ipEntry.rawIp == null || !ipEntry.rawIp.isEmpty()) {
+                ipEntries.add(ipEntry); // entries without an ip are dropped
+            }
+        }
+        reader.endArray();
+        return ipEntries;
+    }
 
-        oldData.forEach((username, ipsObject) -> {
-            List<IpEntry> ipEntries = new ArrayList<>();
-            System.out.println("[IpLogger] Migrating data for user: " + username);
-
-            // Check for "ipTimestamps" field in ipsObject
-            if (ipsObject instanceof Map) {
-                Map<?, ?> outerMap = (Map<?, ?>) ipsObject;
-
-                if (outerMap.containsKey("ipTimestamps")) {
-                    Object timestampsObj = outerMap.get("ipTimestamps");
-
-                    // Ensure "ipTimestamps" is a map of IPs to timestamps
-                    if (timestampsObj instanceof Map) {
-                        Map<?, ?> ipMap = (Map<?, ?>) timestampsObj;
-
-                        ipMap.forEach((ip, timestamp) -> {
-                            //System.out.println("[IpLogger] Processing IP: " + ip + " with timestamp: " + timestamp);
-                            if (ip instanceof String && timestamp instanceof String) {
-                                String location = geolocate((String) ip); // Get the geolocation for this ip
-                                ipEntries.add(new IpEntry((String) ip, (String) timestamp, location )); // Store the ip+time+location as an IpEntry object in the ipEntries list
-                            }
-                        });
+    private static IpEntry readIpEntry(JsonReader reader) throws IOException {
+        String ip = null, timestamp = null, location = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (field) {
+                case "ip" -> ip = reader.nextString();
+                case "timestamp" -> timestamp = reader.nextString();
+                case "location" -> location = reader.nextString();
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new IpEntry(ip, timestamp, location);
+    }
+
+    private static Map<String, String> readLegacyUser(JsonReader reader) throws IOException {
+        Map<String, String> ipTimestamps = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("ipTimestamps") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String ip = reader.nextName();
+                    if (reader.peek() == JsonToken.STRING) {
+                        ipTimestamps.put(ip, reader.nextString());
+                    } else {
+                        reader.skipValue();
                     }
                 }
+                reader.endObject();
+            } else {
+                reader.skipValue();
             }
+        }
+        reader.endObject();
+        return ipTimestamps;
+    }
+
+    // Migrate old format to the new format and save.
+    // Looking up every IP would hold up the server start for minutes on a big file, so the entries are added right
+    // away with the locations already known for their IP (or none), and the IPs without one are written to the
+    // migration checkpoint. LocationBackfillJob looks those up in the background after startup.
+    private void migrateToNewFormat(Map<String, Map<String, String>> oldData) {
+        System.out.println("[IpLogger] Starting migration to new format...");
+        Set<String> pendingLocations = new LinkedHashSet<>();
+        int migratedUsers = 0;
+
+        for (Map.Entry<String, Map<String, String>> user : oldData.entrySet()) {
+            String username = user.getKey();
+            List<IpEntry> ipEntries = new ArrayList<>();
+            user.getValue().forEach((ip, timestamp) -> {
+                String location = getLocation(ip);
+                IpEntry ipEntry = new IpEntry(ip, timestamp, location == null || location.isEmpty() ? null : location);
+                if (ipEntry.getLocation() == null) {
+                    pendingLocations.add(ipEntry.getIp());
+                }
+                ipEntries.add(ipEntry); // Store the ip+time+location as an IpEntry object in the ipEntries list
+            });
 
             // Only migrate the player's data from the old JSON to the new if they had any IP-data. Don't need to keep empty entries.
             // Only reason a player would be empty is if they were manually deleted by an admin with RemoveIpFromUser command.
             if (!ipEntries.isEmpty()) {
-                ipEntries.sort(Comparator.comparing(IpEntry::getTimestamp)); // sort ipEntries to be in chronological order
-                players.put(username, ipEntries);
-                System.out.println("[IpLogger] Added " + ipEntries.size() + " IP entries for user " + username);
-            } else {
-                System.out.println("[IpLogger] No IP entries found for user " + username);
+                ipEntries.sort(IpEntry::compareTimeTo); // sort ipEntries to be in chronological order
+                List<IpEntry> sorted = Collections.unmodifiableList(ipEntries);
+                changeUser(username, () -> {
+                    putEntries(username, sorted);
+                    sorted.forEach(ipEntry -> indexAdd(username, ipEntry));
+                    return null;
+                });
+                migratedUsers++;
             }
-        });
+            if (debugMode) {
+                System.out.println("[IpLogger_debug] Migrated " + ipEntries.size() + " IP entries for user " + username);
+            }
+        }
+
+        // The checkpoint is written first, so the pending IPs aren't forgotten if the server stops right after the save
+        MigrationCheckpoint checkpoint = MigrationCheckpoint.load(dataDirectory);
+        checkpoint.addPending(pendingLocations);
+        checkpoint.save();
+        save();
+        System.out.println("[IpLogger] Migration complete for " + migratedUsers + " users. Data saved in the new format, "
+                + pendingLocations.size() + " IP locations will be looked up in the background.");
+    }
 
-        // Save to JSON and confirm
-        saveToJson();
-        System.out.println("[IpLogger] Migration complete. Data saved to new JSON format.");
+    // Set the location of every entry with this IP, e.g. once a location left pending by a migration is known.
+    // Returns the number of entries that changed.
+    public int updateLocation(String ipAddress, String location) {
+        int changed = 0;
+        for (String username : getUserEntriesForIp(ipAddress).keySet()) {
+            changed += changeUser(username, () -> {
+                List<IpEntry> ipEntries = entriesOf(username);
+                IpEntry existing = ipEntries == null ? null : findEntry(ipEntries, ipAddress);
+                if (existing == null || location.equals(existing.getLocation())) {
+                    return 0;
+                }
+                IpEntry changedEntry = new IpEntry(existing.getIp(), existing.getTimestamp(), location);
+                putEntries(username, withEntry(ipEntries, existing, changedEntry));
+                indexAdd(username, changedEntry);
+                notifyChanged(username, changedEntry);
+                return 1;
+            });
+        }
+        return changed;
+    }
+
+    public Path getDataDirectory() {
+        return dataDirectory;
     }
 
 
     // Create a backup of the current JSON file
     private void createBackup() throws IOException {
-        String backupFilename = String.format("config/iplogger/backup_%s_IpLoggerData.json",
+        String backupFilename = String.format("backup_%s_IpLoggerData.json",
                 LocalDateTime.now().format(DateTimeFormatter.ofPattern("dd.MM.yyyy HH.mm.ss")));
-        Files.copy(Paths.get(DATA_FILE), Paths.get(backupFilename));
+        Files.copy(dataDirectory.resolve(DATA_FILE), dataDirectory.resolve(backupFilename));
     }
 
-    // Check if data format is old
-    private boolean needsMigration(Map<String, Object> data) {
-        // Old format uses Map for IP entries, while the new format uses a list of objects (IpEntry)
-        return data.values().stream().anyMatch(value -> value instanceof Map);
+    // Save the database in the configured format (JSON or binary).
+    // The data is copied under the lock and written outside of it, so joins aren't held up by the disk.
+    // Returns false if the file couldn't be written.
+    public boolean save() {
+        if (store != null) {
+            return store.flush(); // only what changed
+        }
+        return writeSnapshot(snapshot());
     }
 
-    // Save data to JSON
-    public void saveToJson() {
-        try (FileWriter writer = new FileWriter(DATA_FILE)) {
-            new Gson().toJson(players, writer);
-        } catch (IOException e) {
-            System.out.println("[IpLogger] Error saving to JSON.");
-            e.printStackTrace();
+    // Save data to JSON, whatever the configured format is
+    public boolean saveToJson() {
+        return writeSnapshot(snapshot(), IpLoggerConfig.DataFormat.JSON);
+    }
+
+    public boolean writeSnapshot(Map<String, List<IpEntry>> snapshot) {
+        return writeSnapshot(snapshot, dataFormat);
+    }
+
+    // Write a snapshot to the data file. It is written to a temp file first and then renamed over the old file,
+    // so a crash in the middle of a save leaves the previous file intact.
+    public boolean writeSnapshot(Map<String, List<IpEntry>> snapshot, IpLoggerConfig.DataFormat format) {
+        Path dataFile = dataDirectory.resolve(format == IpLoggerConfig.DataFormat.BINARY ? BINARY_DATA_FILE : DATA_FILE);
+        Path tempFile = Paths.get(dataFile + ".tmp");
+        synchronized (saveLock) {
+            long start = System.nanoTime();
+            try {
+                if (format == IpLoggerConfig.DataFormat.BINARY) {
+                    BinaryDatabaseFormat.write(tempFile, snapshot);
+                } else {
+                    try (FileOutputStream out = new FileOutputStream(tempFile.toFile());
+                         Writer writer = new OutputStreamWriter(new BufferedOutputStream(out), StandardCharsets.UTF_8)) {
+                        gson.toJson(snapshot, writer);
+                        writer.flush();
+                        out.getFD().sync(); // make sure the data is on disk before the rename
+                    }
+                }
+                long bytes = Files.size(tempFile);
+                try {
+                    Files.move(tempFile, dataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, dataFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+                IpLoggerMetrics.SAVE.recordSince(start);
+                IpLoggerMetrics.SAVE_BYTES.add(bytes);
+                return true;
+            } catch (IOException e) {
+                IpLoggerMetrics.SAVE_FAILURES.increment();
+                System.out.println("[IpLogger] Error saving " + dataFile.getFileName() + ".");
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    // Copy of the players map. The lists are immutable, so only the map itself is copied and nothing is locked.
+    // Every list is complete; a change made while copying may or may not be in it, and is saved by the next save.
+    // With a store every player is read from it, which puts the whole database on the heap for a moment.
+    public Map<String, List<IpEntry>> snapshot() {
+        if (store != null) {
+            Map<String, List<IpEntry>> snapshot = new HashMap<>();
+            store.forEachBatch(snapshot::putAll);
+            return snapshot;
+        }
+        return new HashMap<>(players);
+    }
+
+    // Take a snapshot and run an action before any other change can happen (used to start a new journal at the snapshot point).
+    // Changes wait only while the map is copied and the action runs.
+    public Map<String, List<IpEntry>> snapshotAndThen(Runnable action) {
+        snapshotLock.writeLock().lock();
+        try {
+            Map<String, List<IpEntry>> snapshot = snapshot();
+            action.run();
+            return snapshot;
+        } finally {
+            snapshotLock.writeLock().unlock();
         }
     }
 
+    // Set the user's entry for an IP to exactly these values, without telling the listeners. Used when replaying a journal.
+    void restoreEntry(String username, String ipAddress, String timestamp, String location) {
+        changeUser(username, () -> {
+            List<IpEntry> ipEntries = entriesOf(username);
+            IpEntry existing = ipEntries == null ? null : findEntry(ipEntries, ipAddress);
+            IpEntry restored = new IpEntry(ipAddress, timestamp, location);
+            putEntries(username, withEntry(ipEntries, existing, restored));
+            indexAdd(username, restored);
+            return null;
+        });
+    }
+
+    // Remove the user's entry for an IP without telling the listeners. Used when replaying a journal.
+    void restoreRemoval(String username, String ipAddress) {
+        changeUser(username, () -> {
+            List<IpEntry> ipEntries = entriesOf(username);
+            IpEntry existing = ipEntries == null ? null : findEntry(ipEntries, ipAddress);
+            if (existing != null) {
+                putEntries(username, withEntry(ipEntries, existing, null));
+                indexRemove(username, ipAddress);
+            }
+            return null;
+        });
+    }
+
     // Track a player's IP address
-    public void trackPlayer(String username, String ipAddress, String location) {
-        //computeIfAbsent will first see if username exists in players. If it does, then do nothing (by default)
-        //If the username doesn't exist, then make a new ArrayList (which we will use to store that user's ip entries)
-        //If the username does exist, then just get me the arraylist (a list of IpEntry objects) for that person.
-        List<IpEntry> ipEntries = players.computeIfAbsent(username, k -> new ArrayList<>());
-
-        String timestamp = LocalDateTime.now().format(formatter);
-        IpEntry newEntry = new IpEntry(ipAddress, timestamp, location);
-
-        //If the IP doesn't exist in the user's arraylist already, then add the newEntry.
-        if (ipEntries.stream().noneMatch(entry -> entry.getIp().equals(ipAddress))) {
-            ipEntries.add(newEntry);
-            ipEntries.sort(Comparator.comparing(IpEntry::getTimestamp)); // Sort the list chronologically
-            players.put(username,ipEntries); // put the updated ipentries back into the players hashmap
-            saveToJson();
-            System.out.printf("[IpLogger] New IP logged for %s: %s (%s)%n", username, ipAddress, location);
+    public boolean trackPlayer(String username, String ipAddress, String location) {
+        return trackPlayer(username, ipAddress, location, LocalDateTime.now().format(formatter));
+    }
+
+    // Track a player's IP address, using the time the player actually joined (joins may be processed a bit later by the pipeline).
+    // Returns true if the IP was new for the player. location may be null if it isn't known yet.
+    public boolean trackPlayer(String username, String ipAddress, String location, String timestamp) {
+        boolean added = changeUser(username, () -> {
+            List<IpEntry> ipEntries = entriesOf(username);
+
+            //If the IP doesn't exist in the user's list already, then add the newEntry.
+            if (ipEntries != null && findEntry(ipEntries, ipAddress) != null) {
+                return false;
+            }
+            IpEntry newEntry = new IpEntry(ipAddress, timestamp, location);
+            putEntries(username, withEntry(ipEntries, null, newEntry)); // new sorted list with the entry in it
+            indexAdd(username, newEntry);
+            notifyChanged(username, newEntry);
+            return true;
+        });
+        if (added) {
+            System.out.printf("[IpLogger] New IP logged for %s: %s (%s)%n", username, ipAddress, location == null ? "location pending" : location);
         } else {
-            System.out.printf("[IpLogger] Existing IP detected for %s: %s (%s)%n", username, ipAddress, location);
+            System.out.printf("[IpLogger] Existing IP detected for %s: %s%n", username, ipAddress);
         }
+        return added;
     }
 
-    // Utility method to get all usernames
+    // Utility method to get all usernames. Returns a copy, since joins are tracked from worker threads.
     public Set<String> getUsernames() {
-        return players.keySet();
+        if (store != null) {
+            return store.getUsernames();
+        }
+        return new HashSet<>(players.keySet());
     }
 
     // Utility method to get all unique IP addresses across all users
     public Set<String> getAllIPs() {
-        Set<String> allIPs = new HashSet<>();
-        players.values().forEach(ipEntries ->
-                ipEntries.forEach(entry -> allIPs.add(entry.getIp()))
-        );
-        return allIPs;
+        if (store != null) {
+            return store.getAllIPs();
+        }
+        return new HashSet<>(ipIndex.keySet());
+    }
+
+    // Utility method to get the stored location of every IP that has one (used to seed the geolocation cache)
+    public Map<String, String> getKnownLocations() {
+        Map<String, String> locations = new HashMap<>();
+        if (store != null) {
+            // A batch at a time, without keeping them loaded
+            store.forEachBatch(batch -> batch.values().forEach(ipEntries -> ipEntries.forEach(ipEntry -> {
+                if (ipEntry.getLocation() != null && !ipEntry.getLocation().isEmpty()) {
+                    locations.putIfAbsent(ipEntry.getIp(), ipEntry.getLocation());
+                }
+            })));
+            return locations;
+        }
+        ipIndex.keySet().forEach(ipAddress -> {
+            String location = getLocation(ipAddress);
+            if (location != null && !location.isEmpty()) {
+                locations.put(ipAddress, location);
+            }
+        });
+        return locations;
     }
 
     // Utility method to get all IP addresses for a specific user
     public Set<String> getIpAddressesForUser(String username) {
-        List<IpEntry> ipEntries = players.get(username);
+        List<IpEntry> ipEntries = entriesOf(username);
         if (ipEntries == null) {
             return null;
         }
@@ -193,155 +673,437 @@ public class PlayerDatabase {
     // Utility method to find duplicate IPs across multiple users
     public Map<String, List<String>> getDuplicateIPs() {
         //Key = IP address, Value = list of usernames
-        Map<String, List<String>> ipToUsers = new HashMap<>();
-
-        players.forEach((username, ipEntries) -> {
-            for (IpEntry ipEntry : ipEntries) {
-                ipToUsers
-                        .computeIfAbsent(ipEntry.getIp(), k -> new ArrayList<>() )
-                        .add(username);
+        if (store != null) {
+            return store.getDuplicateIPs();
+        }
+        Map<String, List<String>> duplicates = new HashMap<>();
+        ipIndex.forEach((ipAddress, usersForIp) -> {
+            // Only IPs with more than one user are duplicates
+            if (usersForIp.size() > 1) {
+                duplicates.put(ipAddress, new ArrayList<>(usersForIp.keySet()));
             }
         });
+        return duplicates;
+    }
 
-        // Filter out IPs with only one user to find duplicates
-        return ipToUsers.entrySet().stream()
-                .filter(entry -> entry.getValue().size() > 1)
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    // Same as getDuplicateIPs, but with each user's IpEntry so callers get first-seen times and locations without more lookups
+    // With a store this reads every user with a shared IP from it, getDuplicateIPs doesn't.
+    public Map<String, Map<String, IpEntry>> getDuplicateIpEntries() {
+        Map<String, Map<String, IpEntry>> duplicates = new HashMap<>();
+        if (store != null) {
+            store.getDuplicateIPs().keySet().forEach(ipAddress -> duplicates.put(ipAddress, getUserEntriesForIp(ipAddress)));
+            return duplicates;
+        }
+        ipIndex.forEach((ipAddress, usersForIp) -> {
+            if (usersForIp.size() > 1) {
+                duplicates.put(ipAddress, usersForIp); // immutable, no need to copy
+            }
+        });
+        return duplicates;
     }
 
     // Utility method to get users for a specific IP address
     public List<String> getUsersForIp(String ipAddress) {
-        List<String> users = new ArrayList<>();
+        if (store != null) {
+            return store.getUsersForIp(ipAddress);
+        }
+        Map<String, IpEntry> usersForIp = ipIndex.get(ipAddress);
+        return usersForIp == null ? new ArrayList<>() : new ArrayList<>(usersForIp.keySet());
+    }
 
-        players.forEach((username,ipEntries) -> {
-            for(IpEntry ipEntry : ipEntries) {
-                if (ipEntry.getIp().equals(ipAddress)){
-                    users.add(username);
+    // Utility method to get every user of an IP address together with their IpEntry for it (immutable)
+    // With a store this reads the users from it, use getUsersForIp if only the names are needed.
+    public Map<String, IpEntry> getUserEntriesForIp(String ipAddress) {
+        if (store != null) {
+            Map<String, IpEntry> entries = new LinkedHashMap<>();
+            for (String username : store.getUsersForIp(ipAddress)) {
+                List<IpEntry> ipEntries = store.get(username);
+                IpEntry ipEntry = ipEntries == null ? null : findEntry(ipEntries, ipAddress);
+                if (ipEntry != null) {
+                    entries.put(username, ipEntry);
                 }
             }
-        });
-
-        return users;
+            return Collections.unmodifiableMap(entries);
+        }
+        Map<String, IpEntry> usersForIp = ipIndex.get(ipAddress);
+        return usersForIp == null ? Collections.emptyMap() : usersForIp;
     }
 
     // Utility method to remove an IP address from a user
     public boolean removeIpFromUser(String username, String ipAddress) {
-        List<IpEntry> ipEntries = players.get(username);
-
-        if (ipEntries == null) {
-            return false; // user not found
-        }
+        return changeUser(username, () -> {
+            List<IpEntry> ipEntries = entriesOf(username);
+            if (ipEntries == null) {
+                return false; // user not found
+            }
 
-        // Remove the entry if it exists. The removeIf also returns a boolean if successful automatically! :)
-        boolean removed = ipEntries.removeIf(entry -> entry.getIp().equals(ipAddress));
+            IpEntry existing = findEntry(ipEntries, ipAddress);
+            if (existing == null) {
+                return false;
+            }
+            // If the user's entries are now empty, then the entire user is removed (don't need to keep empty entries)
+            putEntries(username, withEntry(ipEntries, existing, null));
+            // The stored form of the address, which is what the index is keyed by
+            indexRemove(username, existing.getIp());
+            notifyRemoved(username, existing.getIp());
+            return true;
+        });
+    }
 
-        if (removed) {
-            players.put(username,ipEntries); // update the database with the new list where the ip is removed
-            // If the user's entries are now empty, then remove the entire user (don't need to keep empty entries)
-            if (ipEntries.isEmpty()){
-                players.remove(username);
+    // Remove the entries select picks from the user's current list, as one change (used by the retention pruner).
+    // Returns the removed entries, empty if the user isn't known or nothing was picked.
+    public List<IpEntry> removeEntries(String username, Function<List<IpEntry>, Collection<IpEntry>> select) {
+        return changeUser(username, () -> {
+            List<IpEntry> ipEntries = entriesOf(username);
+            if (ipEntries == null) {
+                return Collections.emptyList();
             }
-        }
-        saveToJson();
-        return removed;
+            List<IpEntry> removed = new ArrayList<>(select.apply(ipEntries));
+            if (removed.isEmpty()) {
+                return removed;
+            }
+            List<IpEntry> remaining = new ArrayList<>(ipEntries);
+            remaining.removeIf(ipEntry -> removed.contains(ipEntry)); // IpEntry has no equals, so these are the same objects
+            putEntries(username, Collections.unmodifiableList(remaining));
+            for (IpEntry ipEntry : removed) {
+                indexRemove(username, ipEntry.getIp());
+                notifyRemoved(username, ipEntry.getIp());
+            }
+            return removed;
+        });
     }
 
     // Retrieves the timestamp for a specific user-IP combination
     public String getTimestampForUserIp(String username, String ipAddress) {
-        List<IpEntry> ipEntries = players.get(username);
+        List<IpEntry> ipEntries = entriesOf(username);
 
         if (ipEntries == null) {
             return null; //user not found
         }
 
-        for (IpEntry ipEntry : ipEntries) {
-            if (ipEntry.getIp().equals(ipAddress)){
-                return ipEntry.getTimestamp();
-            }
-        }
-        return null; // user exists, but not the ip
+        IpEntry ipEntry = findEntry(ipEntries, ipAddress);
+        return ipEntry == null ? null : ipEntry.getTimestamp(); // null if the user exists, but not the ip
     }
 
     // Adds or updates an IP entry with a given timestamp if it's the first or earliest occurrence
     public void addOrUpdateIpEntry(String username, String ipAddress, String timestamp) {
-        List<IpEntry> ipEntries = players.get(username);
+        // The geolocation lookup can be slow, so it is done before taking the lock, and only for IPs the user doesn't have yet
+        List<IpEntry> current = entriesOf(username);
+        boolean lookedUp = current == null || findEntry(current, ipAddress) == null;
+        String location = lookedUp ? geolocate(ipAddress) : null;
+        long newEpoch = IpEntry.toEpochSeconds(timestamp);
 
-        if (ipEntries == null) {
-            // if ipEntries is null, then the player doesn't exist from before. Make a new entry in the database.
-            // calling the trackPlayer function will just make a new player&ipEntry, but the timestamp will be set to now().
-            // Continuing on afterwards, this timestamp will be caught as not the most recent, and be updated to "timestamp"
-            if (debugMode){
-                System.out.println("[IpLogger_debug]: Player "+username+" didn't exist from before -> Adding to database");
-            }
-            trackPlayer(username,ipAddress,geolocate(ipAddress)); // make new player in database (timestamp = now())
-            ipEntries = players.get(username); // refresh content of ipEntries, which now contains info that we made in the command directly above
-        }
-
-        String existingTimestamp = null;
-        for (IpEntry ipEntry : ipEntries) {
-            if (ipEntry.getIp().equals(ipAddress)) {
-                existingTimestamp = ipEntry.getTimestamp();
+        boolean added = changeUser(username, () -> {
+            List<IpEntry> ipEntries = entriesOf(username);
+            IpEntry existingEntry = ipEntries == null ? null : findEntry(ipEntries, ipAddress);
+            IpEntry changedEntry = null;
+            if (existingEntry != null) {
                 // update timestamp if new input time is earlier than previous time
                 if (debugMode) {
-                    System.out.println("[IpLogger_debug]: Updating entry for " + username + ". Old timestamp was " + existingTimestamp + ", new timestamp is " + timestamp + ".");
+                    System.out.println("[IpLogger_debug]: Updating entry for " + username + ". Old timestamp was " + existingEntry.getTimestamp() + ", new timestamp is " + timestamp + ".");
+                }
+                long existingEpoch = existingEntry.getEpochSeconds();
+                if (newEpoch != IpEntry.NO_EPOCH && (existingEpoch == IpEntry.NO_EPOCH || existingEpoch > newEpoch)) {
+                    changedEntry = existingEntry.withTimestamp(timestamp);
                 }
-                if (LocalDateTime.parse(existingTimestamp, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")).isAfter(LocalDateTime.parse(timestamp, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")))){
-                    ipEntry.setTimestamp(timestamp);
+            } else {
+                // the ip (or the whole player) didn't exist from before, so add a new one
+                if (debugMode){
+                    System.out.println("[IpLogger_debug]: The ip "+ipAddress+" didn't exist for "+username+", so adding it to the user.");
                 }
+                // Not looked up if the user had the IP at the check above, but it was removed since. The entry is then
+                // added without a location, which is looked up below, after the lock is released.
+                changedEntry = new IpEntry(ipAddress, timestamp, location);
             }
-        }
-
-        // If existingTimestamp is still null, then the ip didn't exist for that player, so add a new one
-        if (existingTimestamp == null ) {
-            if (debugMode){
-                System.out.println("[IpLogger_debug]: The ip "+ipAddress+" didn't exist for "+username+", so adding it to the user.");
+            if (changedEntry != null) {
+                putEntries(username, withEntry(ipEntries, existingEntry, changedEntry));
+                indexAdd(username, changedEntry);
+                notifyChanged(username, changedEntry);
+            }
+            return existingEntry == null;
+        });
+        if (added && location == null) {
+            String found = lookedUp ? null : geolocate(ipAddress);
+            if (found != null) {
+                updateLocation(ipAddress, found);
+            } else {
+                deferLocation(ipAddress); // no answer from the web API
             }
-            ipEntries.add(new IpEntry(ipAddress, timestamp, geolocate(ipAddress)));
         }
-        ipEntries.sort(Comparator.comparing(IpEntry::getTimestamp)); // sort ipEntries to be in chronological order
-        players.put(username, ipEntries);
-        saveToJson();
 
         // The database should now have been updated with new entry-info, or new info added. Adding a check (for debug purposes) to see if it was successfully added.
         if (debugMode){
-            ipEntries = players.get(username);
-            existingTimestamp = null;
-            for (IpEntry ipEntry : ipEntries) {
-                if (ipEntry.getIp().equals(ipAddress)) {
-                    existingTimestamp = ipEntry.getTimestamp();
-                    if (LocalDateTime.parse(existingTimestamp, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")).isEqual(LocalDateTime.parse(timestamp, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")))){
-                        System.out.println("[IpLogger_debug]: Update successful");
+            List<IpEntry> ipEntries = entriesOf(username);
+            IpEntry updatedEntry = ipEntries == null ? null : findEntry(ipEntries, ipAddress);
+            if (updatedEntry == null) {
+                System.out.println("[IpLogger_debug]: Update failed (timestamp is still null!)");
+            } else if (updatedEntry.getEpochSeconds() == newEpoch) {
+                System.out.println("[IpLogger_debug]: Update successful");
+            }
+        }
+    }
+
+    // Merge first-seen times found by the log import (username -> ip -> epoch seconds).
+    // locations has the location for IPs that aren't in the database yet, null where the web API gave no answer (those
+    // are added without one and handed to deferLocation). Like addOrUpdateIpEntry, an entry is only updated if the new
+    // time is earlier. Returns the number of entries that were added or updated.
+    public int mergeFirstSeen(Map<String, Map<String, Long>> firstSeen, Map<String, String> locations) {
+        int changed = 0;
+        Set<String> withoutLocation = new HashSet<>();
+        for (Map.Entry<String, Map<String, Long>> user : firstSeen.entrySet()) {
+            String username = user.getKey();
+            changed += changeUser(username, () -> {
+                List<IpEntry> ipEntries = entriesOf(username);
+                List<IpEntry> updated = ipEntries == null ? new ArrayList<>() : new ArrayList<>(ipEntries);
+                List<IpEntry> changedEntries = new ArrayList<>();
+                for (Map.Entry<String, Long> seen : user.getValue().entrySet()) {
+                    String ipAddress = seen.getKey();
+                    long epochSeconds = seen.getValue();
+                    IpEntry existingEntry = findEntry(updated, ipAddress);
+                    IpEntry changedEntry;
+                    if (existingEntry == null) {
+                        String location = locations.get(ipAddress);
+                        if (location == null) {
+                            location = getLocation(ipAddress); // another user already has this IP
+                        }
+                        if (location == null) {
+                            withoutLocation.add(ipAddress); // no answer from the web API
+                        }
+                        changedEntry = new IpEntry(ipAddress, IpEntry.formatEpochSeconds(epochSeconds), location);
+                    } else if (existingEntry.getEpochSeconds() == IpEntry.NO_EPOCH || existingEntry.getEpochSeconds() > epochSeconds) {
+                        changedEntry = existingEntry.withTimestamp(IpEntry.formatEpochSeconds(epochSeconds));
+                        updated.remove(existingEntry);
+                    } else {
+                        continue;
+                    }
+                    insertSorted(updated, changedEntry);
+                    changedEntries.add(changedEntry);
+                }
+                if (!changedEntries.isEmpty()) {
+                    // The listeners are told once the new list is visible, like for any other change
+                    putEntries(username, Collections.unmodifiableList(updated));
+                    for (IpEntry changedEntry : changedEntries) {
+                        indexAdd(username, changedEntry);
+                        notifyChanged(username, changedEntry);
                     }
                 }
+                return changedEntries.size();
+            });
+        }
+        withoutLocation.forEach(IpLoggerCommands::deferLocation);
+        return changed;
+    }
+
+    private static IpEntry findEntry(List<IpEntry> ipEntries, String ipAddress) {
+        for (IpEntry ipEntry : ipEntries) {
+            if (ipEntry.hasIp(ipAddress)) {
+                return ipEntry;
             }
-            if (existingTimestamp==null){
-                System.out.println("[IpLogger_debug]: Update failed (timestamp is still null!)");
+        }
+        return null;
+    }
+
+    // New immutable list: ipEntries without oldEntry, plus newEntry at its place in chronological order (either may be null)
+    private static List<IpEntry> withEntry(List<IpEntry> ipEntries, IpEntry oldEntry, IpEntry newEntry) {
+        List<IpEntry> updated = new ArrayList<>(ipEntries == null ? 1 : ipEntries.size() + 1);
+        if (ipEntries != null) {
+            for (IpEntry ipEntry : ipEntries) {
+                if (ipEntry != oldEntry) {
+                    updated.add(ipEntry);
+                }
             }
         }
+        if (newEntry != null) {
+            insertSorted(updated, newEntry);
+        }
+        return Collections.unmodifiableList(updated);
     }
 
+    // Insert into a list that is already in chronological order, keeping it sorted (binary search instead of a full sort)
+    private static void insertSorted(List<IpEntry> ipEntries, IpEntry ipEntry) {
+        int low = 0;
+        int high = ipEntries.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ipEntries.get(mid).compareTimeTo(ipEntry) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        ipEntries.add(low, ipEntry);
+    }
+
+    // The user's entries in chronological order, or null if the user isn't known. The list is immutable.
     public List<IpEntry> getEntries(String username) {
-        return players.get(username);
+        return entriesOf(username);
+    }
+
+    // Gets told about changes to the database. Called while the changed user's lock is held, after the change is visible
+    // to readers, so calls for one user come in the order of the changes. Implementations must be quick.
+    public interface ChangeListener {
+        // A new IpEntry was added for the user, or an existing one was updated
+        void entryChanged(String username, IpEntry ipEntry);
+
+        // The user's entry for the IP was removed
+        void entryRemoved(String username, String ipAddress);
     }
 
-    // Inner class to store IP data
+    // Inner class to store IP data. Immutable, so entries can be handed to other threads and serializers freely.
+    // The IP is kept as a 128-bit number (IPv4 as an IPv4-mapped address), the timestamp as epoch seconds and the
+    // location as an interned String, which takes a fraction of the heap of three Strings per entry.
+    // Values that wouldn't turn back into exactly the same String are kept as the String instead.
+    // The getters still return Strings, and the JSON form is unchanged ({"ip", "timestamp", "location"}).
+    @JsonAdapter(IpEntry.Adapter.class)
     public static class IpEntry {
-        private String ip;
-        private String timestamp;
-        private String location;
+        // STRICT, so dates like "2024-02-30" or "24:00:00" are kept as the raw String instead of being moved to another day
+        private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("uuuu-MM-dd HH:mm:ss").withResolverStyle(ResolverStyle.STRICT);
+        static final long NO_EPOCH = Long.MIN_VALUE;
+
+        private final long ipHigh;
+        private final long ipLow;
+        private final String rawIp; // only set if the IP isn't stored as a number
+        private final long epochSeconds; // "yyyy-MM-dd HH:mm:ss" wall clock time read as UTC, NO_EPOCH if rawTimestamp is used
+        private final String rawTimestamp;
+        private final String location;
 
         public IpEntry(String ip, String timestamp, String location) {
-            this.ip = ip;
-            this.timestamp = timestamp;
+            long high = 0, low = 0;
+            String raw = null;
+            long ipv4 = ip == null ? -1 : IpAddresses.parseIpv4(ip);
+            long[] ipv6 = new long[2];
+            if (ip == null) {
+                raw = "";
+            } else if (ipv4 >= 0) {
+                low = 0xFFFF00000000L | ipv4;
+            } else if (IpAddresses.parseIpv6(ip, ipv6) && !IpAddresses.isIpv4Mapped(ipv6[0], ipv6[1])) {
+                high = ipv6[0];
+                low = ipv6[1];
+            } else {
+                raw = ip;
+            }
+            if (raw == null && !formatIp(high, low).equals(ip)) {
+                raw = ip; // e.g. leading zeros or upper case hex, keep the original text
+            }
+            this.ipHigh = raw == null ? high : 0;
+            this.ipLow = raw == null ? low : 0;
+            this.rawIp = raw;
+            this.epochSeconds = toEpochSeconds(timestamp);
+            this.rawTimestamp = epochSeconds == NO_EPOCH ? timestamp : null;
+            this.location = location == null ? null : location.intern();
+        }
+
+        // Used by the binary format, which already has the numbers
+        IpEntry(long ipHigh, long ipLow, String rawIp, long epochSeconds, String rawTimestamp, String location) {
+            this.ipHigh = ipHigh;
+            this.ipLow = ipLow;
+            this.rawIp = rawIp;
+            this.epochSeconds = epochSeconds;
+            this.rawTimestamp = rawTimestamp;
             this.location = location;
         }
 
-        public String getIp() { return ip; }
-        public void setIp(String ip) { this.ip = ip; }
-        public String getTimestamp() { return timestamp; }
-        public void setTimestamp(String timestamp) { this.timestamp = timestamp; }
+        // Same entry with another first-seen time
+        public IpEntry withTimestamp(String timestamp) {
+            long newEpochSeconds = toEpochSeconds(timestamp);
+            return new IpEntry(ipHigh, ipLow, rawIp, newEpochSeconds, newEpochSeconds == NO_EPOCH ? timestamp : null, location);
+        }
+
+        public String getIp() {
+            return rawIp != null ? rawIp : formatIp(ipHigh, ipLow);
+        }
+
+        static String formatIp(long high, long low) {
+            return IpAddresses.isIpv4Mapped(high, low) ? IpAddresses.formatIpv4(low & 0xFFFFFFFFL) : IpAddresses.formatIpv6(high, low);
+        }
+
+        // Compares without building the IP String
+        public boolean hasIp(String ip) {
+            if (rawIp != null) {
+                return rawIp.equals(ip);
+            }
+            long ipv4 = IpAddresses.parseIpv4(ip);
+            if (ipv4 >= 0) {
+                return ipHigh == 0 && ipLow == (0xFFFF00000000L | ipv4) && !hasLeadingZero(ip);
+            }
+            return getIp().equals(ip); // IPv6 is rare, compare the canonical text
+        }
+
+        public String getTimestamp() {
+            if (epochSeconds == NO_EPOCH) {
+                return rawTimestamp;
+            }
+            return formatEpochSeconds(epochSeconds);
+        }
+
+        // First-seen time as epoch seconds (wall clock read as UTC), or NO_EPOCH if the timestamp isn't a valid date
+        public long getEpochSeconds() { return epochSeconds; }
+
         public String getLocation() { return location; }
-        public void setLocation(String location) { this.location = location; }
+
+        long getIpHigh() { return ipHigh; }
+        long getIpLow() { return ipLow; }
+        String getRawIp() { return rawIp; }
+        String getRawTimestamp() { return rawTimestamp; }
+
+        // Chronological order. Entries without a valid date sort first, by their raw text.
+        public int compareTimeTo(IpEntry other) {
+            int byEpoch = Long.compare(epochSeconds, other.epochSeconds);
+            if (byEpoch != 0 || epochSeconds != NO_EPOCH) {
+                return byEpoch;
+            }
+            return Comparator.nullsFirst(Comparator.<String>naturalOrder()).compare(rawTimestamp, other.rawTimestamp);
+        }
+
+        // Parses "yyyy-MM-dd HH:mm:ss". Returns NO_EPOCH if the text isn't exactly in that format.
+        public static long toEpochSeconds(String timestamp) {
+            if (timestamp == null || timestamp.length() != 19) {
+                return NO_EPOCH;
+            }
+            try {
+                return LocalDateTime.parse(timestamp, TIMESTAMP_FORMAT).toEpochSecond(ZoneOffset.UTC);
+            } catch (DateTimeParseException e) {
+                return NO_EPOCH;
+            }
+        }
+
+        public static String formatEpochSeconds(long epochSeconds) {
+            return LocalDateTime.ofEpochSecond(epochSeconds, 0, ZoneOffset.UTC).format(TIMESTAMP_FORMAT);
+        }
+
+        private static boolean hasLeadingZero(String ipv4) {
+            for (int i = 0; i < ipv4.length() - 1; i++) {
+                if (ipv4.charAt(i) == '0' && (i == 0 || ipv4.charAt(i - 1) == '.') && ipv4.charAt(i + 1) != '.') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Keeps the JSON form of an IpEntry the same as before: {"ip": ..., "timestamp": ..., "location": ...}
+        static class Adapter extends TypeAdapter<IpEntry> {
+            @Override
+            public void write(JsonWriter out, IpEntry ipEntry) throws IOException {
+                if (ipEntry == null) {
+                    out.nullValue();
+                    return;
+                }
+                out.beginObject();
+                out.name("ip").value(ipEntry.getIp());
+                out.name("timestamp").value(ipEntry.getTimestamp());
+                out.name("location").value(ipEntry.getLocation());
+                out.endObject();
+            }
+
+            @Override
+            public IpEntry read(JsonReader in) throws IOException {
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    return null;
+                }
+                return readIpEntry(in);
+            }
+        }
     }
 
 
@@ -0,0 +1,50 @@
+package net.nasheedpog.iplogger;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+// Storage for the players' entries outside of PlayerDatabase's own maps (storageMode SHARDED or SQLITE).
+// Only these off-heap stores implement it: with JSON and JOURNAL PlayerDatabase keeps every player in its own maps
+// and answers the queries itself. PlayerStoreContractTest runs the same checks against both implementations.
+// PlayerDatabase still does the tracking, updating and removing: it reads a user's list with get and writes the
+// changed list with put, under its per-user lock, so a store never sees two changes to one user at once.
+// A store has to answer the IP queries from its own index, without loading every player.
+public interface PlayerStore {
+    // Open existing data. Returns false if this store was never created, then PlayerDatabase imports the data file with importAll.
+    boolean open() throws IOException;
+
+    // One-shot import of a whole database, e.g. the loaded IpLoggerData.json
+    void importAll(Map<String, List<PlayerDatabase.IpEntry>> players) throws IOException;
+
+    // The user's entries (immutable, chronological), or null if the user isn't known
+    List<PlayerDatabase.IpEntry> get(String username);
+
+    // Replace the user's entries (null or empty removes the user). Must be visible to get and the queries right away,
+    // but may only be written to disk by the next flush.
+    void put(String username, List<PlayerDatabase.IpEntry> ipEntries);
+
+    Set<String> getUsernames();
+
+    Set<String> getAllIPs();
+
+    // Users of an IP in no particular order, empty if nobody has it
+    List<String> getUsersForIp(String ipAddress);
+
+    // IP -> users (in no particular order), for the IPs with more than one user
+    Map<String, List<String>> getDuplicateIPs();
+
+    // Write the changes since the last flush. Returns false if that failed, the changes are then kept for the next one.
+    boolean flush();
+
+    // Hand every player to action, a batch of players at a time, without keeping them all in memory
+    void forEachBatch(Consumer<Map<String, List<PlayerDatabase.IpEntry>>> action);
+
+    // One line for /iplogger saveStats
+    String getStatus();
+
+    default void close() {
+    }
+}
@@ -0,0 +1,288 @@
+package net.nasheedpog.iplogger;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nasheedpog.iplogger.IpLogger.debugMode;
+
+// Looks up locations with the api.iplocation.net web API (geoApiUrl), without blocking the caller.
+// - Every request has a connect and a total timeout, and at most geoMaxConcurrentRequests are sent at once.
+//   Further lookups wait in a queue of geoMaxQueuedRequests, beyond that they are answered without asking the API.
+// - Lookups of an IP that is already being looked up share that request instead of sending another one.
+// - Timeouts, connection errors and 5xx answers are retried geoRetries times with a short backoff.
+// - Only an answer of the API that it has no location for the IP is "". A lookup that got no such answer (failed,
+//   rate limited, or not sent) is null, so the entry is looked up again later instead of keeping "" for good.
+// - Circuit breaker: after geoCircuitFailureThreshold failed requests in a row the API isn't asked for
+//   geoCircuitOpenSeconds (or as long as a 429's Retry-After says). After that one request is let through, and
+//   the API is used again once it succeeds.
+public class RemoteGeolocationProvider implements GeolocationProvider {
+    private static final long RETRY_BACKOFF_MILLIS = 250;
+
+    private final String apiUrl;
+    private final Duration requestTimeout;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final int retries;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final HttpClient client;
+
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<>(); // guarded by itself
+    private int active; // guarded by waiting
+
+    // Circuit breaker
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong openUntil = new AtomicLong();
+    private final AtomicBoolean trialRunning = new AtomicBoolean();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public RemoteGeolocationProvider(IpLoggerConfig config) {
+        this.apiUrl = config.geoApiUrl;
+        this.requestTimeout = Duration.ofMillis(Math.max(1, config.geoRequestTimeoutMillis));
+        this.maxConcurrent = Math.max(1, config.geoMaxConcurrentRequests);
+        this.maxQueued = Math.max(0, config.geoMaxQueuedRequests);
+        this.retries = Math.max(0, config.geoRetries);
+        this.failureThreshold = Math.max(1, config.geoCircuitFailureThreshold);
+        this.openMillis = TimeUnit.SECONDS.toMillis(Math.max(1, config.geoCircuitOpenSeconds));
+        ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "IpLogger-Geolocation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(Math.max(1, config.geoConnectTimeoutMillis)))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build();
+    }
+
+    // Blocks until the lookup is done, which the timeouts keep short. Returns "" if the location couldn't be found,
+    // without telling apart "not found" and "no answer", callers that need the difference use locateAsync.
+    @Override
+    public String locate(String ipAddress) {
+        String location = locateAsync(ipAddress).join();
+        return location == null ? "" : location;
+    }
+
+    // Completes with the location, "" if the API answered that it has none, or null if there was no such answer: the
+    // API wasn't asked because the circuit is open or too many lookups are waiting, or the request failed, timed out or
+    // was rate limited. Never completes exceptionally.
+    public CompletableFuture<String> locateAsync(String ipAddress) {
+        CompletableFuture<String> existing = inFlight.get(ipAddress);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing;
+        }
+        if (!allowRequest()) {
+            rejected.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<String> result = new CompletableFuture<>();
+        existing = inFlight.putIfAbsent(ipAddress, result);
+        if (existing != null) {
+            releaseTrial();
+            coalesced.incrementAndGet();
+            return existing;
+        }
+        result.whenComplete((location, error) -> inFlight.remove(ipAddress, result));
+
+        Runnable start = () -> {
+            CompletableFuture<String> request;
+            try {
+                request = send(ipAddress, 0);
+            } catch (IllegalArgumentException e) {
+                System.out.println("[IpLogger] Invalid geoApiUrl in the config: " + apiUrl);
+                e.printStackTrace();
+                request = CompletableFuture.completedFuture(null);
+            }
+            request.whenComplete((location, error) -> {
+                result.complete(error == null ? location : null);
+                startNext();
+            });
+        };
+        boolean runNow;
+        synchronized (waiting) {
+            runNow = active < maxConcurrent;
+            if (runNow) {
+                active++;
+            } else if (waiting.size() < maxQueued) {
+                waiting.add(start);
+            } else {
+                rejected.incrementAndGet();
+                releaseTrial();
+                result.complete(null);
+                return result;
+            }
+        }
+        if (runNow) {
+            start.run();
+        }
+        return result;
+    }
+
+    // One request finished: start the next waiting lookup on its slot, or free the slot
+    private void startNext() {
+        Runnable next;
+        synchronized (waiting) {
+            next = waiting.poll();
+            if (next == null) {
+                active--;
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    private CompletableFuture<String> send(String ipAddress, int attempt) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(apiUrl + URLEncoder.encode(ipAddress, StandardCharsets.UTF_8)))
+                .timeout(requestTimeout)
+                .GET()
+                .build();
+        requests.incrementAndGet();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+                .handle((response, error) -> {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                        System.out.println("[IpLogger] Error occurred while fetching location: " + cause);
+                        return retryOrFail(ipAddress, attempt);
+                    }
+                    int status = response.statusCode();
+                    if (status == 429) {
+                        // Rate limited: wait as long as the API asks before sending anything again
+                        System.out.println("[IpLogger] Geolocation API rate limit reached.");
+                        recordFailure(retryAfterMillis(response));
+                        return CompletableFuture.<String>completedFuture(null);
+                    }
+                    if (status >= 500) {
+                        System.out.println("[IpLogger] Error occurred while fetching location: HTTP " + status);
+                        return retryOrFail(ipAddress, attempt);
+                    }
+                    recordSuccess();
+                    if (status != 200) {
+                        System.out.println("[IpLogger] Error occurred while fetching location: HTTP " + status);
+                        return CompletableFuture.<String>completedFuture(null);
+                    }
+                    return CompletableFuture.completedFuture(parseLocation(response.body()));
+                })
+                .thenCompose(future -> future);
+    }
+
+    private CompletableFuture<String> retryOrFail(String ipAddress, int attempt) {
+        if (attempt < retries) {
+            return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(RETRY_BACKOFF_MILLIS << attempt, TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> send(ipAddress, attempt + 1));
+        }
+        recordFailure(0);
+        return CompletableFuture.<String>completedFuture(null);
+    }
+
+    // Retry-After in seconds, 0 if it's missing or an HTTP date
+    private static long retryAfterMillis(HttpResponse<?> response) {
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(response.headers().firstValue("Retry-After").orElse("0").trim())));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // "" if the API says it has no location for the IP, null if the answer can't be read
+    private static String parseLocation(String body) {
+        try {
+            JsonObject json = JsonParser.parseString(body).getAsJsonObject();
+            // Check the response_code to ensure successful lookup
+            if (json.has("response_code") && json.get("response_code").getAsString().equals("200")) {
+                return json.has("country_name") ? json.get("country_name").getAsString() : "Unknown country";
+            }
+            // Handle failed lookups with response_message
+            if (json.has("response_code")) {
+                String message = json.has("response_message") ? json.get("response_message").getAsString() : "Unknown error";
+                System.out.println("[IpLogger] Error occurred while fetching location: " + message);
+                return "";
+            }
+            System.out.println("[IpLogger] Error occurred while fetching location, the API's answer has no response_code.");
+        } catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+            System.out.println("[IpLogger] Error occurred while fetching location, invalid answer from the API.");
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // Closed: always. Open: never, until the open time is over. Then only one trial request at a time.
+    private boolean allowRequest() {
+        if (consecutiveFailures.get() < failureThreshold && openUntil.get() == 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() < openUntil.get()) {
+            return false;
+        }
+        return trialRunning.compareAndSet(false, true);
+    }
+
+    private void releaseTrial() {
+        trialRunning.set(false);
+    }
+
+    private void recordSuccess() {
+        if (consecutiveFailures.getAndSet(0) >= failureThreshold || openUntil.get() != 0) {
+            System.out.println("[IpLogger] Geolocation API is answering again.");
+        }
+        openUntil.set(0);
+        releaseTrial();
+    }
+
+    private void recordFailure(long retryAfterMillis) {
+        failures.incrementAndGet();
+        int failuresInRow = consecutiveFailures.incrementAndGet();
+        if (failuresInRow >= failureThreshold || retryAfterMillis > 0) {
+            long until = System.currentTimeMillis() + Math.max(openMillis, retryAfterMillis);
+            if (openUntil.getAndSet(until) == 0) {
+                System.out.println("[IpLogger] Geolocation API is failing, not asking it for " + (Math.max(openMillis, retryAfterMillis) / 1000) + " s.");
+            } else if (debugMode) {
+                System.out.println("[IpLogger_debug] Geolocation API still failing, circuit stays open.");
+            }
+        }
+        releaseTrial();
+    }
+
+    public boolean isCircuitOpen() {
+        long until = openUntil.get();
+        return until != 0 && System.currentTimeMillis() < until;
+    }
+
+    public long getRequests() { return requests.get(); }
+    public long getFailures() { return failures.get(); }
+    public long getRejected() { return rejected.get(); }
+    public long getCoalesced() { return coalesced.get(); }
+
+    public int getActiveRequests() {
+        synchronized (waiting) {
+            return active;
+        }
+    }
+}
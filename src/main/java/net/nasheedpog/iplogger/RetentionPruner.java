@@ -0,0 +1,255 @@
+package net.nasheedpog.iplogger;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nasheedpog.iplogger.IpLogger.debugMode;
+
+// Removes the IP entries the retention rules in the config don't want kept any more:
+// - retentionMaxAgeDays: first seen longer ago than that
+// - retentionMaxIdleDays: last seen longer ago than that. Last seen is the last login with the IP in the login
+//   history, or the first-seen time if the history has none (e.g. it was enabled later).
+// - retentionMaxIpsPerUser: only that many of a player's most recently seen IPs are kept
+// Entries without a valid first-seen time are never removed by the time rules.
+// A run goes through the players on its own thread, in batches of retentionBatchSize with a pause in between, and
+// each player's entries are removed as one change, so joins and commands only ever wait for one player.
+// The removals reach the save, the journal and the indexes through the change listeners like any other removal.
+public class RetentionPruner {
+    private static final long DAY_SECONDS = 86_400;
+    private static final long INITIAL_DELAY_MINUTES = 5; // leave the server start alone
+    private static final int ENTRY_JSON_OVERHEAD = 44; // {"ip":"","timestamp":"","location":""}, around the values
+
+    private final PlayerDatabase database;
+    private final LoginHistoryStore loginHistory; // null if the login history is off
+    private final long maxAgeSeconds;
+    private final long maxIdleSeconds;
+    private final int maxIpsPerUser;
+    private final long intervalHours;
+    private final int batchSize;
+    private final long batchPauseMillis;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final Object pause = new Object();
+    private volatile boolean stopped;
+
+    // Totals since the server start, and the last run
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong removedEntries = new AtomicLong();
+    private final AtomicLong removedUsers = new AtomicLong();
+    private final AtomicLong removedBytes = new AtomicLong();
+    private volatile long lastRunEntries;
+    private volatile long lastRunUsers;
+    private volatile long lastRunBytes;
+    private volatile long lastRunChecked;
+    private volatile double lastRunSeconds;
+
+    public RetentionPruner(PlayerDatabase database, LoginHistoryStore loginHistory, IpLoggerConfig config) {
+        this.database = database;
+        this.loginHistory = loginHistory;
+        this.maxAgeSeconds = Math.max(0, config.retentionMaxAgeDays) * DAY_SECONDS;
+        this.maxIdleSeconds = Math.max(0, config.retentionMaxIdleDays) * DAY_SECONDS;
+        this.maxIpsPerUser = Math.max(0, config.retentionMaxIpsPerUser);
+        this.intervalHours = Math.max(1, config.retentionIntervalHours);
+        this.batchSize = Math.max(1, config.retentionBatchSize);
+        this.batchPauseMillis = Math.max(0, config.retentionBatchPauseMillis);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "IpLogger-Retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // True if any rule is set in the config
+    public static boolean isEnabled(IpLoggerConfig config) {
+        return config.retentionMaxAgeDays > 0 || config.retentionMaxIdleDays > 0 || config.retentionMaxIpsPerUser > 0;
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::run, INITIAL_DELAY_MINUTES, TimeUnit.HOURS.toMinutes(intervalHours), TimeUnit.MINUTES);
+    }
+
+    // Start a run now. False if one is already running.
+    public boolean runNow() {
+        if (running.get()) {
+            return false;
+        }
+        try {
+            executor.execute(this::run);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false; // shutting down
+        }
+    }
+
+    // Stop after the current player. Not interrupted, since an interrupt would close the files a removal may be saving.
+    public void shutdown() {
+        stopped = true;
+        synchronized (pause) {
+            pause.notifyAll();
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            prune();
+        } catch (RuntimeException e) {
+            System.out.println("[IpLogger] Error while removing old IP entries, trying again at the next run.");
+            e.printStackTrace();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void prune() {
+        long start = System.nanoTime();
+        long now = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC); // wall clock read as UTC, like the timestamps
+        List<String> usernames = new ArrayList<>(database.getUsernames());
+        long entries = 0, users = 0, bytes = 0;
+        int checked = 0;
+
+        for (String username : usernames) {
+            if (stopped) {
+                break;
+            }
+            Map<String, Long> lastSeen = loginHistory == null ? Collections.emptyMap() : loginHistory.getLastSeenByIp(username);
+            List<PlayerDatabase.IpEntry> removed = database.removeEntries(username, ipEntries -> select(ipEntries, lastSeen, now));
+            if (!removed.isEmpty()) {
+                entries += removed.size();
+                for (PlayerDatabase.IpEntry ipEntry : removed) {
+                    bytes += entryBytes(ipEntry);
+                }
+                if (database.getEntries(username) == null) {
+                    users++;
+                }
+                if (debugMode) {
+                    System.out.println("[IpLogger_debug] Retention removed " + removed.size() + " IP entries of " + username);
+                }
+            }
+            if (++checked % batchSize == 0 && !pauseBetweenBatches()) {
+                break;
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        runs.incrementAndGet();
+        removedEntries.addAndGet(entries);
+        removedUsers.addAndGet(users);
+        removedBytes.addAndGet(bytes);
+        lastRunEntries = entries;
+        lastRunUsers = users;
+        lastRunBytes = bytes;
+        lastRunChecked = checked;
+        lastRunSeconds = seconds;
+        IpLoggerMetrics.RETENTION.recordSince(start);
+        IpLoggerMetrics.RETENTION_REMOVED.add(entries);
+        IpLoggerMetrics.RETENTION_BYTES.add(bytes);
+        System.out.printf("[IpLogger] Retention: removed %d IP entries (%d players with none left, about %.1f KB of data) after checking %d of %d players in %.1f s.%n",
+                entries, users, bytes / 1024.0, checked, usernames.size(), seconds);
+    }
+
+    // The entries of one player that the rules remove
+    private List<PlayerDatabase.IpEntry> select(List<PlayerDatabase.IpEntry> ipEntries, Map<String, Long> lastSeenByIp, long now) {
+        List<PlayerDatabase.IpEntry> remove = new ArrayList<>();
+        List<PlayerDatabase.IpEntry> kept = new ArrayList<>();
+        for (PlayerDatabase.IpEntry ipEntry : ipEntries) {
+            long firstSeen = ipEntry.getEpochSeconds();
+            if (firstSeen == PlayerDatabase.IpEntry.NO_EPOCH) {
+                kept.add(ipEntry);
+                continue;
+            }
+            boolean tooOld = maxAgeSeconds > 0 && now - firstSeen > maxAgeSeconds;
+            boolean idle = maxIdleSeconds > 0 && now - lastSeen(ipEntry, lastSeenByIp) > maxIdleSeconds;
+            if (tooOld || idle) {
+                remove.add(ipEntry);
+            } else {
+                kept.add(ipEntry);
+            }
+        }
+
+        if (maxIpsPerUser > 0 && kept.size() > maxIpsPerUser) {
+            // Most recently seen first; entries without a time count as the oldest
+            kept.sort(Comparator.comparingLong((PlayerDatabase.IpEntry ipEntry) -> lastSeen(ipEntry, lastSeenByIp)).reversed());
+            remove.addAll(kept.subList(maxIpsPerUser, kept.size()));
+        }
+        return remove;
+    }
+
+    private static long lastSeen(PlayerDatabase.IpEntry ipEntry, Map<String, Long> lastSeenByIp) {
+        long firstSeen = ipEntry.getEpochSeconds();
+        if (firstSeen == PlayerDatabase.IpEntry.NO_EPOCH) {
+            return Long.MIN_VALUE;
+        }
+        Long lastLogin = lastSeenByIp.get(ipEntry.getIp());
+        return lastLogin == null ? firstSeen : Math.max(firstSeen, lastLogin);
+    }
+
+    // Size of the entry in IpLoggerData.json, as a measure of what was reclaimed
+    private static long entryBytes(PlayerDatabase.IpEntry ipEntry) {
+        String timestamp = ipEntry.getTimestamp();
+        String location = ipEntry.getLocation();
+        return ENTRY_JSON_OVERHEAD + ipEntry.getIp().length() + (timestamp == null ? 0 : timestamp.length()) + (location == null ? 0 : location.length());
+    }
+
+    // False if the pruner was stopped during the pause
+    private boolean pauseBetweenBatches() {
+        if (batchPauseMillis > 0) {
+            synchronized (pause) {
+                try {
+                    if (!stopped) {
+                        pause.wait(batchPauseMillis);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return !stopped;
+    }
+
+    public boolean isRunning() { return running.get(); }
+    public long getRuns() { return runs.get(); }
+    public long getRemovedEntries() { return removedEntries.get(); }
+    public long getRemovedUsers() { return removedUsers.get(); }
+    public long getRemovedBytes() { return removedBytes.get(); }
+    public long getLastRunEntries() { return lastRunEntries; }
+    public long getLastRunUsers() { return lastRunUsers; }
+    public long getLastRunBytes() { return lastRunBytes; }
+    public long getLastRunChecked() { return lastRunChecked; }
+    public double getLastRunSeconds() { return lastRunSeconds; }
+
+    // The rules, for the retention command
+    public String describeRules() {
+        List<String> rules = new ArrayList<>();
+        if (maxAgeSeconds > 0) {
+            rules.add("first seen within " + maxAgeSeconds / DAY_SECONDS + " days");
+        }
+        if (maxIdleSeconds > 0) {
+            rules.add("last seen within " + maxIdleSeconds / DAY_SECONDS + " days");
+        }
+        if (maxIpsPerUser > 0) {
+            rules.add("at most " + maxIpsPerUser + " IPs per player");
+        }
+        return String.join(", ", rules);
+    }
+}
@@ -0,0 +1,468 @@
+package net.nasheedpog.iplogger;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static net.nasheedpog.iplogger.IpLogger.debugMode;
+
+// Player storage for storageMode SHARDED. The players are spread over shardCount files in config/iplogger/shards by
+// username hash (in the binary format), and a shard is only read once one of its players is needed, e.g. on a join or
+// by a command. Loaded shards are kept in least recently used order; once their estimated heap use is over
+// shardCacheMegabytes the oldest ones are written (if they changed) and dropped.
+// Always in memory is only a compact index of IP -> users (AddressUserIndex), so getUsernames, duplicate IPs and the
+// suggestion, subnet and linked account indexes work without loading any shard. It is written to index.bin by close()
+// and read back by open(), which deletes the file until the next close, so after a crash the index is rebuilt by
+// reading the shards one at a time.
+// Locking: a shard's contents are guarded by the shard, the LRU order and the byte count by loaded, the index by
+// itself. A shard's lock may be held while taking loaded or index, never the other way around.
+public class ShardedPlayerStore implements PlayerStore {
+    private static final Pattern SHARD_FILE = Pattern.compile("shard-(\\d+)-of-(\\d+)\\.bin");
+    private static final String INDEX_FILE = "index.bin";
+    // Rough heap use, used for the budget: a user (map entry, username, list) and an entry (IpEntry and its list slot)
+    private static final long USER_BYTES = 120;
+    private static final long ENTRY_BYTES = 64;
+
+    private final Path directory;
+    private final int configuredShardCount;
+    private final long budgetBytes;
+    private Shard[] shards; // set by open or importAll
+
+    private final LinkedHashMap<Integer, Shard> loaded = new LinkedHashMap<>(16, 0.75f, true); // access order = LRU order
+    private long loadedBytes; // guarded by loaded
+
+    private AddressUserIndex index = new AddressUserIndex(); // replaced only by open
+
+    private final AtomicLong shardLoads = new AtomicLong();
+    private final AtomicLong shardEvictions = new AtomicLong();
+    private final AtomicLong shardWrites = new AtomicLong();
+
+    private static class Shard {
+        final int id;
+        Map<String, List<PlayerDatabase.IpEntry>> players; // null while not loaded
+        boolean dirty;
+        long users;
+        long entries;
+
+        Shard(int id) {
+            this.id = id;
+        }
+
+        long estimatedBytes() {
+            return users * USER_BYTES + entries * ENTRY_BYTES;
+        }
+    }
+
+    public ShardedPlayerStore(Path directory, IpLoggerConfig config) {
+        this.directory = directory;
+        this.configuredShardCount = Math.max(1, Math.min(4096, config.shardCount));
+        this.budgetBytes = Math.max(1, config.shardCacheMegabytes) * 1024 * 1024;
+    }
+
+    // Read the shards to build the index. Returns false if there is no shards directory yet (then importAll creates it).
+    // The shard count is taken from the existing files, so changing shardCount only applies to a new shards directory.
+    @Override
+    public boolean open() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return false;
+        }
+        int existingCount = configuredShardCount; // there are no files if every player was removed
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "shard-*.bin")) {
+            for (Path file : files) {
+                Matcher matcher = SHARD_FILE.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    existingCount = Integer.parseInt(matcher.group(2));
+                    break;
+                }
+            }
+        }
+        if (existingCount != configuredShardCount) {
+            System.out.println("[IpLogger] The shards directory has " + existingCount + " shards, shardCount " + configuredShardCount
+                    + " only applies to new data. Keeping " + existingCount + ".");
+        }
+
+        long start = System.nanoTime();
+        createShards(existingCount);
+        Path indexFile = directory.resolve(INDEX_FILE);
+        if (Files.exists(indexFile)) {
+            try {
+                AddressUserIndex saved = AddressUserIndex.read(indexFile, existingCount);
+                if (saved != null) {
+                    index = saved;
+                }
+            } catch (IOException e) {
+                System.out.println("[IpLogger] Error reading " + indexFile.getFileName() + ", reading the shards instead.");
+                e.printStackTrace();
+            }
+            // Only valid until the first change, close() writes it again
+            Files.delete(indexFile);
+            if (index.userCount() > 0) {
+                System.out.printf("[IpLogger] Read the index of %d IPs for %d players in %d shards in %.1f ms, shards are loaded when needed.%n",
+                        index.ipCount(), index.userCount(), shards.length, (System.nanoTime() - start) / 1_000_000.0);
+                return true;
+            }
+        }
+
+        long entryCount = 0;
+        for (Shard shard : shards) {
+            Path file = shardFile(shard.id);
+            if (!Files.exists(file)) {
+                continue;
+            }
+            Map<String, List<PlayerDatabase.IpEntry>> players = BinaryDatabaseFormat.read(file, false);
+            for (Map.Entry<String, List<PlayerDatabase.IpEntry>> user : players.entrySet()) {
+                indexUser(user.getKey(), null, user.getValue());
+                entryCount += user.getValue().size();
+            }
+        }
+        System.out.printf("[IpLogger] Indexed %d IP entries for %d players in %d shards in %.1f ms, shards are loaded when needed.%n",
+                entryCount, index.userCount(), shards.length, (System.nanoTime() - start) / 1_000_000.0);
+        return true;
+    }
+
+    // Split players (e.g. loaded from IpLoggerData.json) into new shard files and index them. Nothing is kept loaded.
+    @Override
+    public void importAll(Map<String, List<PlayerDatabase.IpEntry>> players) throws IOException {
+        Files.createDirectories(directory);
+        createShards(configuredShardCount);
+        List<Map<String, List<PlayerDatabase.IpEntry>>> split = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            split.add(new HashMap<>());
+        }
+        players.forEach((username, ipEntries) -> {
+            if (!ipEntries.isEmpty()) {
+                split.get(shardIndex(username)).put(username, ipEntries);
+                indexUser(username, null, ipEntries);
+            }
+        });
+        for (Shard shard : shards) {
+            Map<String, List<PlayerDatabase.IpEntry>> shardPlayers = split.get(shard.id);
+            if (!shardPlayers.isEmpty()) {
+                writeShard(shard.id, shardPlayers);
+            }
+        }
+        if (!players.isEmpty()) {
+            System.out.println("[IpLogger] Split " + getUserCount() + " players into " + shards.length + " shards in " + directory + ".");
+        }
+    }
+
+    private void createShards(int count) {
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    private int shardIndex(String username) {
+        return Math.floorMod(username.hashCode() * 0x9E3779B9, shards.length); // spread similar names over the shards
+    }
+
+    private Path shardFile(int id) {
+        return directory.resolve(String.format("shard-%03d-of-%03d.bin", id, shards.length));
+    }
+
+    // The user's entries (immutable, chronological), or null. Loads the user's shard if it isn't loaded.
+    @Override
+    public List<PlayerDatabase.IpEntry> get(String username) {
+        synchronized (index) {
+            if (!index.containsUser(username)) {
+                return null; // no need to load a shard for players that were never seen
+            }
+        }
+        Shard shard = shards[shardIndex(username)];
+        List<PlayerDatabase.IpEntry> ipEntries;
+        synchronized (shard) {
+            ensureLoaded(shard);
+            ipEntries = shard.players.get(username);
+        }
+        evictIfOverBudget();
+        return ipEntries;
+    }
+
+    // Replace the user's entries (null or empty removes the user). The caller holds the user's lock in PlayerDatabase.
+    @Override
+    public void put(String username, List<PlayerDatabase.IpEntry> ipEntries) {
+        Shard shard = shards[shardIndex(username)];
+        synchronized (shard) {
+            ensureLoaded(shard);
+            List<PlayerDatabase.IpEntry> previous = ipEntries == null || ipEntries.isEmpty()
+                    ? shard.players.remove(username)
+                    : shard.players.put(username, ipEntries);
+            if (previous == null && (ipEntries == null || ipEntries.isEmpty())) {
+                return;
+            }
+            indexUser(username, previous, ipEntries);
+            long before = shard.estimatedBytes();
+            shard.users = shard.players.size();
+            shard.entries += (ipEntries == null ? 0 : ipEntries.size()) - (previous == null ? 0 : previous.size());
+            shard.dirty = true;
+            synchronized (loaded) {
+                loadedBytes += shard.estimatedBytes() - before;
+            }
+        }
+        evictIfOverBudget();
+    }
+
+    // Called with the shard's lock held
+    private void ensureLoaded(Shard shard) {
+        if (shard.players == null) {
+            long start = System.nanoTime();
+            Map<String, List<PlayerDatabase.IpEntry>> players = new HashMap<>();
+            Path file = shardFile(shard.id);
+            if (Files.exists(file)) {
+                try {
+                    players = BinaryDatabaseFormat.read(file, false); // never mapped, the file is replaced on every write
+                } catch (IOException e) {
+                    // Better to fail the one query than to treat the shard as empty and overwrite it on the next save
+                    throw new IllegalStateException("Error loading " + file.getFileName(), e);
+                }
+            }
+            long entryCount = 0;
+            for (Map.Entry<String, List<PlayerDatabase.IpEntry>> user : players.entrySet()) {
+                List<PlayerDatabase.IpEntry> ipEntries = new ArrayList<>(user.getValue());
+                ipEntries.sort(PlayerDatabase.IpEntry::compareTimeTo);
+                user.setValue(Collections.unmodifiableList(ipEntries));
+                entryCount += ipEntries.size();
+            }
+            shard.players = players;
+            shard.users = players.size();
+            shard.entries = entryCount;
+            shard.dirty = false;
+            shardLoads.incrementAndGet();
+            if (debugMode) {
+                System.out.printf("[IpLogger_debug] Loaded shard %d (%d players) in %.1f ms%n", shard.id, shard.users, (System.nanoTime() - start) / 1_000_000.0);
+            }
+        }
+        synchronized (loaded) {
+            if (loaded.put(shard.id, shard) == null) {
+                loadedBytes += shard.estimatedBytes();
+            }
+        }
+    }
+
+    // Drop least recently used shards until the loaded ones fit the budget. The most recently used one always stays.
+    private void evictIfOverBudget() {
+        while (true) {
+            Shard victim;
+            synchronized (loaded) {
+                if (loadedBytes <= budgetBytes || loaded.size() <= 1) {
+                    return;
+                }
+                victim = loaded.values().iterator().next();
+            }
+            synchronized (victim) {
+                synchronized (loaded) {
+                    // Used again or already dropped by another thread in the meantime, pick again
+                    if (loaded.isEmpty() || loaded.keySet().iterator().next() != victim.id) {
+                        continue;
+                    }
+                }
+                if (victim.players != null) {
+                    if (victim.dirty && !writeLoaded(victim)) {
+                        return; // keep it in memory, the next save tries again
+                    }
+                    victim.players = null;
+                    shardEvictions.incrementAndGet();
+                }
+                synchronized (loaded) {
+                    if (loaded.remove(victim.id) != null) {
+                        loadedBytes -= victim.estimatedBytes();
+                    }
+                }
+                victim.users = 0;
+                victim.entries = 0;
+            }
+        }
+    }
+
+    // Write every changed shard that is loaded (the others are already on disk). Returns false if any write failed.
+    @Override
+    public boolean flush() {
+        boolean ok = true;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                if (shard.players != null && shard.dirty) {
+                    ok &= writeLoaded(shard);
+                }
+            }
+        }
+        return ok;
+    }
+
+    // Called with the shard's lock held
+    private boolean writeLoaded(Shard shard) {
+        try {
+            writeShard(shard.id, shard.players);
+            shard.dirty = false;
+            return true;
+        } catch (IOException e) {
+            IpLoggerMetrics.SAVE_FAILURES.increment();
+            System.out.println("[IpLogger] Error saving " + shardFile(shard.id).getFileName() + ".");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Written to a temp file and renamed, like the other data files. An empty shard has no file.
+    private void writeShard(int id, Map<String, List<PlayerDatabase.IpEntry>> players) throws IOException {
+        Path file = shardFile(id);
+        if (players.isEmpty()) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        long start = System.nanoTime();
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        long bytes = BinaryDatabaseFormat.write(tempFile, players);
+        try {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        shardWrites.incrementAndGet();
+        IpLoggerMetrics.SAVE.recordSince(start);
+        IpLoggerMetrics.SAVE_BYTES.add(bytes);
+    }
+
+    // One shard is one batch. Shards that aren't loaded are read without being kept, so this doesn't push the budget.
+    @Override
+    public void forEachBatch(Consumer<Map<String, List<PlayerDatabase.IpEntry>>> action) {
+        for (Shard shard : shards) {
+            Map<String, List<PlayerDatabase.IpEntry>> players;
+            synchronized (shard) {
+                if (shard.players != null) {
+                    players = new HashMap<>(shard.players);
+                } else if (Files.exists(shardFile(shard.id))) {
+                    try {
+                        players = BinaryDatabaseFormat.read(shardFile(shard.id), false);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Error loading " + shardFile(shard.id).getFileName(), e);
+                    }
+                } else {
+                    continue;
+                }
+            }
+            action.accept(players);
+        }
+    }
+
+    // Keep the index in step with a user's change from previous to ipEntries (either may be null)
+    private void indexUser(String username, List<PlayerDatabase.IpEntry> previous, List<PlayerDatabase.IpEntry> ipEntries) {
+        Map<String, PlayerDatabase.IpEntry> oldIps = ipsOf(previous);
+        Map<String, PlayerDatabase.IpEntry> newIps = ipsOf(ipEntries);
+        synchronized (index) {
+            newIps.forEach((ipAddress, ipEntry) -> {
+                if (!oldIps.containsKey(ipAddress)) {
+                    index.add(username, ipEntry);
+                }
+            });
+            oldIps.forEach((ipAddress, ipEntry) -> {
+                if (!newIps.containsKey(ipAddress)) {
+                    index.remove(username, ipEntry);
+                }
+            });
+            if (newIps.isEmpty()) {
+                index.removeUser(username);
+            }
+        }
+    }
+
+    private static Map<String, PlayerDatabase.IpEntry> ipsOf(List<PlayerDatabase.IpEntry> ipEntries) {
+        if (ipEntries == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, PlayerDatabase.IpEntry> ips = new HashMap<>();
+        ipEntries.forEach(ipEntry -> ips.put(ipEntry.getIp(), ipEntry));
+        return ips;
+    }
+
+    @Override
+    public Set<String> getUsernames() {
+        synchronized (index) {
+            return index.getUsernames();
+        }
+    }
+
+    @Override
+    public Set<String> getAllIPs() {
+        synchronized (index) {
+            return index.getAllIPs();
+        }
+    }
+
+    // Users of an IP from the index, in the order the index got them. Empty if nobody has it.
+    @Override
+    public List<String> getUsersForIp(String ipAddress) {
+        synchronized (index) {
+            return index.getUsers(ipAddress);
+        }
+    }
+
+    @Override
+    public Map<String, List<String>> getDuplicateIPs() {
+        synchronized (index) {
+            return index.getDuplicates();
+        }
+    }
+
+    // Write the changed shards and the index, so the next open doesn't have to read every shard
+    @Override
+    public void close() {
+        if (shards == null || !flush()) {
+            return; // without the index file the next open reads the shards
+        }
+        Path indexFile = directory.resolve(INDEX_FILE);
+        Path tempFile = indexFile.resolveSibling(INDEX_FILE + ".tmp");
+        try {
+            synchronized (index) {
+                index.write(tempFile, shards.length);
+            }
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.out.println("[IpLogger] Error saving " + indexFile.getFileName() + ", the next start reads the shards instead.");
+            e.printStackTrace();
+        }
+    }
+
+    private int getUserCount() {
+        synchronized (index) {
+            return index.userCount();
+        }
+    }
+
+    @Override
+    public String getStatus() {
+        int ipCount;
+        synchronized (index) {
+            ipCount = index.ipCount();
+        }
+        return String.format("Shards: %d of %d loaded, about %.1f of %.1f MB. %d loads, %d evictions, %d shard writes. Index: %d players, %d IPs",
+                getLoadedShards(), shards == null ? 0 : shards.length, getLoadedBytes() / 1048576.0, budgetBytes / 1048576.0,
+                shardLoads.get(), shardEvictions.get(), shardWrites.get(), getUserCount(), ipCount);
+    }
+
+    public int getLoadedShards() {
+        synchronized (loaded) {
+            return loaded.size();
+        }
+    }
+
+    public long getLoadedBytes() {
+        synchronized (loaded) {
+            return loadedBytes;
+        }
+    }
+}
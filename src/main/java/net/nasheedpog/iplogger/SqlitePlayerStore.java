@@ -0,0 +1,475 @@
+package net.nasheedpog.iplogger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static net.nasheedpog.iplogger.IpLogger.debugMode;
+
+// Player storage for storageMode SQLITE: one table in config/iplogger/IpLoggerData.db, with indexes on username
+// (the primary key), IP and first-seen time, so the IP queries are index lookups instead of scans.
+// Changes are collected in memory (pending) and written by flush in one transaction with prepared statements, so the
+// background save writes a batch of changes at once. get and the queries see pending changes right away: they read
+// the committed rows and apply pending on top, without writing it first. pendingUsersByIp is the IP -> users index of
+// the pending lists, so getUsersForIp doesn't have to look through every pending user.
+// Locking: the connection and its statements are guarded by this, pending and pendingUsersByIp by pending. flush
+// holds this while it writes, so a read holding this sees every change either in the database or in pending. this
+// may be held while taking pending, never the other way around.
+public class SqlitePlayerStore implements PlayerStore {
+    private static final String DATABASE_FILE = "IpLoggerData.db";
+    private static final int BATCH_SIZE = 1000;
+
+    private final Path file;
+    private Connection connection;
+    private PreparedStatement selectUser;
+    private PreparedStatement selectUsersForIp;
+    private PreparedStatement deleteUser;
+    private PreparedStatement insertEntry;
+
+    // username -> the user's new list, null = removed. Written and cleared by flush.
+    private final Map<String, List<PlayerDatabase.IpEntry>> pending = new HashMap<>();
+    // IP -> the users whose pending list has it
+    private final Map<String, Set<String>> pendingUsersByIp = new HashMap<>();
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedUsers = new AtomicLong();
+    private final AtomicLong lastFlushNanos = new AtomicLong();
+
+    public SqlitePlayerStore(Path dataDirectory) {
+        this.file = dataDirectory.resolve(DATABASE_FILE);
+    }
+
+    @Override
+    public synchronized boolean open() throws IOException {
+        try {
+            Class.forName("org.sqlite.JDBC"); // registers the driver, DriverManager doesn't find it through the mod class loader
+        } catch (ClassNotFoundException e) {
+            throw new IOException("The SQLite driver (sqlite-jdbc) is missing", e);
+        }
+        try {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + file.toAbsolutePath());
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=NORMAL");
+                statement.execute("CREATE TABLE IF NOT EXISTS ip_entries ("
+                        + "username TEXT NOT NULL, "
+                        + "ip TEXT NOT NULL, "
+                        + "timestamp TEXT, "
+                        + "first_seen INTEGER, " // epoch seconds of timestamp, NULL if it isn't a valid date
+                        + "location TEXT, "
+                        + "PRIMARY KEY (username, ip)) WITHOUT ROWID");
+                statement.execute("CREATE INDEX IF NOT EXISTS ip_entries_ip ON ip_entries (ip, username)");
+                statement.execute("CREATE INDEX IF NOT EXISTS ip_entries_first_seen ON ip_entries (first_seen)");
+                statement.execute("CREATE TABLE IF NOT EXISTS meta (key TEXT PRIMARY KEY, value TEXT)");
+            }
+            selectUser = connection.prepareStatement("SELECT ip, timestamp, location FROM ip_entries WHERE username = ?");
+            selectUsersForIp = connection.prepareStatement("SELECT username FROM ip_entries WHERE ip = ? ORDER BY first_seen, username");
+            deleteUser = connection.prepareStatement("DELETE FROM ip_entries WHERE username = ?");
+            insertEntry = connection.prepareStatement("INSERT OR REPLACE INTO ip_entries (username, ip, timestamp, first_seen, location) VALUES (?, ?, ?, ?, ?)");
+
+            // Set by importAll, so an emptied database isn't filled from the old data file again
+            try (Statement statement = connection.createStatement();
+                 ResultSet imported = statement.executeQuery("SELECT value FROM meta WHERE key = 'imported'")) {
+                if (!imported.next()) {
+                    return false;
+                }
+            }
+            try (Statement statement = connection.createStatement();
+                 ResultSet counts = statement.executeQuery("SELECT COUNT(DISTINCT username), COUNT(*) FROM ip_entries")) {
+                counts.next();
+                System.out.println("[IpLogger] Opened " + file.getFileName() + " with " + counts.getLong(2) + " IP entries for " + counts.getLong(1) + " players.");
+            }
+            return true;
+        } catch (SQLException e) {
+            throw new IOException("Error opening " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized void importAll(Map<String, List<PlayerDatabase.IpEntry>> players) throws IOException {
+        long start = System.nanoTime();
+        try {
+            connection.setAutoCommit(false);
+            try {
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("DELETE FROM ip_entries");
+                }
+                int rows = 0;
+                for (Map.Entry<String, List<PlayerDatabase.IpEntry>> user : players.entrySet()) {
+                    rows += addInserts(user.getKey(), user.getValue());
+                    if (rows >= BATCH_SIZE) {
+                        insertEntry.executeBatch();
+                        rows = 0;
+                    }
+                }
+                insertEntry.executeBatch();
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("INSERT OR REPLACE INTO meta (key, value) VALUES ('imported', '" + System.currentTimeMillis() + "')");
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Error importing into " + file, e);
+        }
+        if (!players.isEmpty()) {
+            System.out.printf("[IpLogger] Imported %d players into %s in %.1f ms.%n", players.size(), file.getFileName(), (System.nanoTime() - start) / 1_000_000.0);
+        }
+    }
+
+    // Adds the user's rows to the insert batch, returns how many
+    private int addInserts(String username, List<PlayerDatabase.IpEntry> ipEntries) throws SQLException {
+        for (PlayerDatabase.IpEntry ipEntry : ipEntries) {
+            insertEntry.setString(1, username);
+            insertEntry.setString(2, ipEntry.getIp());
+            insertEntry.setString(3, ipEntry.getTimestamp());
+            if (ipEntry.getEpochSeconds() == PlayerDatabase.IpEntry.NO_EPOCH) {
+                insertEntry.setNull(4, Types.INTEGER);
+            } else {
+                insertEntry.setLong(4, ipEntry.getEpochSeconds());
+            }
+            insertEntry.setString(5, ipEntry.getLocation());
+            insertEntry.addBatch();
+        }
+        return ipEntries.size();
+    }
+
+    @Override
+    public List<PlayerDatabase.IpEntry> get(String username) {
+        synchronized (pending) {
+            if (pending.containsKey(username)) {
+                return pending.get(username);
+            }
+        }
+        synchronized (this) {
+            try {
+                selectUser.setString(1, username);
+                List<PlayerDatabase.IpEntry> ipEntries = new ArrayList<>();
+                try (ResultSet rows = selectUser.executeQuery()) {
+                    while (rows.next()) {
+                        ipEntries.add(new PlayerDatabase.IpEntry(rows.getString(1), rows.getString(2), rows.getString(3)));
+                    }
+                }
+                if (ipEntries.isEmpty()) {
+                    return null;
+                }
+                ipEntries.sort(PlayerDatabase.IpEntry::compareTimeTo);
+                return Collections.unmodifiableList(ipEntries);
+            } catch (SQLException e) {
+                throw new IllegalStateException("Error reading " + username + " from " + file.getFileName(), e);
+            }
+        }
+    }
+
+    @Override
+    public void put(String username, List<PlayerDatabase.IpEntry> ipEntries) {
+        synchronized (pending) {
+            List<PlayerDatabase.IpEntry> previous = pending.put(username, ipEntries == null || ipEntries.isEmpty() ? null : ipEntries);
+            unindexPending(username, previous);
+            if (ipEntries != null) {
+                for (PlayerDatabase.IpEntry ipEntry : ipEntries) {
+                    pendingUsersByIp.computeIfAbsent(ipEntry.getIp(), k -> new HashSet<>(2)).add(username);
+                }
+            }
+        }
+    }
+
+    // Caller holds pending
+    private void unindexPending(String username, List<PlayerDatabase.IpEntry> ipEntries) {
+        if (ipEntries == null) {
+            return;
+        }
+        for (PlayerDatabase.IpEntry ipEntry : ipEntries) {
+            Set<String> users = pendingUsersByIp.get(ipEntry.getIp());
+            if (users != null && users.remove(username) && users.isEmpty()) {
+                pendingUsersByIp.remove(ipEntry.getIp());
+            }
+        }
+    }
+
+    // Writes the pending changes in one transaction: each changed user's rows are replaced
+    @Override
+    public synchronized boolean flush() {
+        Map<String, List<PlayerDatabase.IpEntry>> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return true;
+            }
+            batch = new HashMap<>(pending);
+        }
+
+        long start = System.nanoTime();
+        try {
+            connection.setAutoCommit(false);
+            try {
+                for (Map.Entry<String, List<PlayerDatabase.IpEntry>> user : batch.entrySet()) {
+                    deleteUser.setString(1, user.getKey());
+                    deleteUser.addBatch();
+                }
+                deleteUser.executeBatch();
+                int rows = 0;
+                for (Map.Entry<String, List<PlayerDatabase.IpEntry>> user : batch.entrySet()) {
+                    if (user.getValue() != null) {
+                        rows += addInserts(user.getKey(), user.getValue());
+                    }
+                    if (rows >= BATCH_SIZE) {
+                        insertEntry.executeBatch();
+                        rows = 0;
+                    }
+                }
+                insertEntry.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            IpLoggerMetrics.SAVE_FAILURES.increment();
+            System.out.println("[IpLogger] Error saving to " + file.getFileName() + ", the changes are kept for the next save.");
+            e.printStackTrace();
+            return false;
+        }
+
+        // Forget what was written, unless the user changed again meanwhile
+        synchronized (pending) {
+            batch.forEach((username, ipEntries) -> {
+                if (pending.containsKey(username) && pending.get(username) == ipEntries) {
+                    pending.remove(username);
+                    unindexPending(username, ipEntries);
+                }
+            });
+        }
+        flushes.incrementAndGet();
+        flushedUsers.addAndGet(batch.size());
+        lastFlushNanos.set(System.nanoTime() - start);
+        IpLoggerMetrics.SAVE.recordSince(start);
+        if (debugMode) {
+            System.out.printf("[IpLogger_debug] Wrote %d changed players to %s in %.1f ms%n", batch.size(), file.getFileName(), (System.nanoTime() - start) / 1_000_000.0);
+        }
+        return true;
+    }
+
+    // Users of the IP from the ip index, with the pending changes applied on top
+    @Override
+    public List<String> getUsersForIp(String ipAddress) {
+        synchronized (this) {
+            List<String> users = queryUsersForIp(ipAddress);
+            synchronized (pending) {
+                return withPending(ipAddress, users);
+            }
+        }
+    }
+
+    // Caller holds this
+    private List<String> queryUsersForIp(String ipAddress) {
+        List<String> users = new ArrayList<>();
+        try {
+            selectUsersForIp.setString(1, ipAddress);
+            try (ResultSet rows = selectUsersForIp.executeQuery()) {
+                while (rows.next()) {
+                    users.add(rows.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error reading " + ipAddress + " from " + file.getFileName(), e);
+        }
+        return users;
+    }
+
+    // The committed users of the IP with pending applied: users with a pending list keep the IP only if that list has
+    // it. Caller holds pending.
+    private List<String> withPending(String ipAddress, List<String> committedUsers) {
+        Set<String> pendingUsers = pendingUsersByIp.getOrDefault(ipAddress, Collections.emptySet());
+        committedUsers.removeIf(username -> pending.containsKey(username) && !pendingUsers.contains(username));
+        for (String username : pendingUsers) {
+            if (!committedUsers.contains(username)) {
+                committedUsers.add(username);
+            }
+        }
+        return committedUsers;
+    }
+
+    // The committed IPs of the users with pending changes, whose users may differ from the committed ones.
+    // Caller holds this and pending.
+    private Set<String> committedIpsOfPendingUsers() {
+        Set<String> ips = new HashSet<>();
+        try {
+            for (String username : pending.keySet()) {
+                selectUser.setString(1, username);
+                try (ResultSet rows = selectUser.executeQuery()) {
+                    while (rows.next()) {
+                        ips.add(rows.getString(1));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error reading " + file.getFileName(), e);
+        }
+        return ips;
+    }
+
+    // The scans below read the committed rows and apply pending on top, they are only used at startup and by commands
+
+    @Override
+    public Set<String> getUsernames() {
+        synchronized (this) {
+            Set<String> usernames = new HashSet<>(queryStrings("SELECT DISTINCT username FROM ip_entries"));
+            synchronized (pending) {
+                pending.forEach((username, ipEntries) -> {
+                    if (ipEntries == null) {
+                        usernames.remove(username);
+                    } else {
+                        usernames.add(username);
+                    }
+                });
+            }
+            return usernames;
+        }
+    }
+
+    @Override
+    public Set<String> getAllIPs() {
+        synchronized (this) {
+            Set<String> ips = new HashSet<>(queryStrings("SELECT DISTINCT ip FROM ip_entries"));
+            synchronized (pending) {
+                for (String ipAddress : committedIpsOfPendingUsers()) {
+                    if (withPending(ipAddress, queryUsersForIp(ipAddress)).isEmpty()) {
+                        ips.remove(ipAddress);
+                    }
+                }
+                ips.addAll(pendingUsersByIp.keySet());
+            }
+            return ips;
+        }
+    }
+
+    @Override
+    public Map<String, List<String>> getDuplicateIPs() {
+        Map<String, List<String>> duplicates = new HashMap<>();
+        synchronized (this) {
+            try (Statement statement = connection.createStatement();
+                 ResultSet rows = statement.executeQuery("SELECT ip, username FROM ip_entries "
+                         + "WHERE ip IN (SELECT ip FROM ip_entries GROUP BY ip HAVING COUNT(*) > 1) ORDER BY ip, first_seen")) {
+                while (rows.next()) {
+                    duplicates.computeIfAbsent(rows.getString(1), k -> new ArrayList<>()).add(rows.getString(2));
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("Error reading duplicate IPs from " + file.getFileName(), e);
+            }
+            // Only the IPs of users with pending changes can differ
+            synchronized (pending) {
+                Set<String> changedIps = committedIpsOfPendingUsers();
+                changedIps.addAll(pendingUsersByIp.keySet());
+                for (String ipAddress : changedIps) {
+                    List<String> users = withPending(ipAddress, queryUsersForIp(ipAddress));
+                    if (users.size() > 1) {
+                        duplicates.put(ipAddress, users);
+                    } else {
+                        duplicates.remove(ipAddress);
+                    }
+                }
+            }
+        }
+        return duplicates;
+    }
+
+    // Caller holds this
+    private List<String> queryStrings(String sql) {
+        List<String> values = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery(sql)) {
+            while (rows.next()) {
+                values.add(rows.getString(1));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error reading " + file.getFileName(), e);
+        }
+        return values;
+    }
+
+    // Reads the table in username order, BATCH_SIZE players at a time
+    @Override
+    public void forEachBatch(Consumer<Map<String, List<PlayerDatabase.IpEntry>>> action) {
+        flush();
+        synchronized (this) {
+            try (Statement statement = connection.createStatement();
+                 ResultSet rows = statement.executeQuery("SELECT username, ip, timestamp, location FROM ip_entries ORDER BY username")) {
+                Map<String, List<PlayerDatabase.IpEntry>> batch = new LinkedHashMap<>();
+                String current = null;
+                List<PlayerDatabase.IpEntry> ipEntries = null;
+                while (rows.next()) {
+                    String username = rows.getString(1);
+                    if (!username.equals(current)) {
+                        if (batch.size() >= BATCH_SIZE) {
+                            action.accept(sorted(batch));
+                            batch = new LinkedHashMap<>();
+                        }
+                        current = username;
+                        ipEntries = new ArrayList<>();
+                        batch.put(username, ipEntries);
+                    }
+                    ipEntries.add(new PlayerDatabase.IpEntry(rows.getString(2), rows.getString(3), rows.getString(4)));
+                }
+                if (!batch.isEmpty()) {
+                    action.accept(sorted(batch));
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("Error reading " + file.getFileName(), e);
+            }
+        }
+    }
+
+    private static Map<String, List<PlayerDatabase.IpEntry>> sorted(Map<String, List<PlayerDatabase.IpEntry>> batch) {
+        batch.replaceAll((username, ipEntries) -> {
+            ipEntries.sort(PlayerDatabase.IpEntry::compareTimeTo);
+            return Collections.unmodifiableList(ipEntries);
+        });
+        return batch;
+    }
+
+    @Override
+    public String getStatus() {
+        int waiting;
+        synchronized (pending) {
+            waiting = pending.size();
+        }
+        return String.format("SQLite: %d transactions with %d changed players, last took %.1f ms. %d players waiting for the next save",
+                flushes.get(), flushedUsers.get(), lastFlushNanos.get() / 1_000_000.0, waiting);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            System.out.println("[IpLogger] Error closing " + file.getFileName() + ".");
+            e.printStackTrace();
+        }
+        connection = null;
+    }
+}
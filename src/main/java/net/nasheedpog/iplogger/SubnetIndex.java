@@ -0,0 +1,136 @@
+package net.nasheedpog.iplogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// All logged IPs in an AddressTrie, kept up to date from the change notifications. Answers getUsers for a subnet
+// and the near-duplicates report: players on different IPs of the same /24 (IPv4) or /48 (IPv6), which is what
+// alt accounts on the same ISP connection usually look like.
+public class SubnetIndex implements PlayerDatabase.ChangeListener {
+    public static final int IPV4_GROUP_LENGTH = 96 + 24;
+    public static final int IPV6_GROUP_LENGTH = 48;
+
+    private final PlayerDatabase database;
+    private final AddressTrie trie = new AddressTrie(); // guarded by this
+    private final long[] address = new long[2]; // guarded by this
+    private long version; // guarded by this
+    private List<SubnetGroup> nearDuplicates; // guarded by this
+    private long nearDuplicatesVersion = -1; // guarded by this
+
+    public SubnetIndex(PlayerDatabase database) {
+        this.database = database;
+        synchronized (this) {
+            database.getAllIPs().forEach(this::add);
+        }
+    }
+
+    @Override
+    public synchronized void entryChanged(String username, PlayerDatabase.IpEntry ipEntry) {
+        add(ipEntry.getIp());
+        version++;
+    }
+
+    @Override
+    public synchronized void entryRemoved(String username, String ipAddress) {
+        // Checked under the lock, so an add of the same IP from another user can't be lost
+        if (database.getUsersForIp(ipAddress).isEmpty() && IpAddresses.parseAddress(ipAddress, address)) {
+            trie.remove(address[0], address[1], ipAddress);
+        }
+        version++;
+    }
+
+    private void add(String ipAddress) {
+        // Entries that aren't an IP address at all can't be in a subnet
+        if (IpAddresses.parseAddress(ipAddress, address)) {
+            trie.add(address[0], address[1], ipAddress);
+        }
+    }
+
+    // The logged IPs in the subnet, in address order. prefixLength is counted over all 128 bits (see IpAddresses.parseCidr).
+    public synchronized List<String> ipAddressesIn(long hi, long lo, int prefixLength) {
+        return trie.inSubnet(hi, lo, prefixLength);
+    }
+
+    // Subnets with more than one player on more than one IP, in address order. Cached until the next change.
+    public List<SubnetGroup> getNearDuplicates() {
+        List<String> subnets = new ArrayList<>();
+        List<List<String>> groupIps = new ArrayList<>();
+        long builtVersion;
+        synchronized (this) {
+            if (nearDuplicates != null && nearDuplicatesVersion == version) {
+                return nearDuplicates;
+            }
+            builtVersion = version;
+            // The trie is in address order, so the IPs of one subnet come one after another
+            long[] current = {0, 0, -1};
+            trie.forEach((hi, lo, ipAddresses) -> {
+                int length = IpAddresses.isIpv4Mapped(hi, lo) ? IPV4_GROUP_LENGTH : IPV6_GROUP_LENGTH;
+                if (groupIps.isEmpty() || current[2] != length || AddressTrie.commonPrefix(current[0], current[1], hi, lo, length) < length) {
+                    current[0] = hi;
+                    current[1] = lo;
+                    current[2] = length;
+                    subnets.add(null);
+                    groupIps.add(new ArrayList<>());
+                }
+                int last = groupIps.size() - 1;
+                groupIps.get(last).addAll(ipAddresses);
+                if (groupIps.get(last).size() > 1 && subnets.get(last) == null) {
+                    subnets.set(last, IpAddresses.formatCidr(hi, lo, length));
+                }
+            });
+        }
+
+        // The users are looked up outside the lock, so joins aren't held up by the report
+        List<SubnetGroup> groups = new ArrayList<>();
+        for (int i = 0; i < groupIps.size(); i++) {
+            if (subnets.get(i) == null) {
+                continue; // only one IP in the subnet, which getDuplicateIPs already covers
+            }
+            SubnetGroup group = new SubnetGroup(subnets.get(i), usersOf(groupIps.get(i)));
+            if (group.getUserCount() > 1) {
+                groups.add(group);
+            }
+        }
+        List<SubnetGroup> result = Collections.unmodifiableList(groups);
+        synchronized (this) {
+            if (nearDuplicatesVersion < builtVersion) {
+                nearDuplicates = result;
+                nearDuplicatesVersion = builtVersion;
+            }
+        }
+        return result;
+    }
+
+    // Every (user, entry) pair of the IPs, oldest first
+    public List<Map.Entry<String, PlayerDatabase.IpEntry>> usersOf(List<String> ipAddresses) {
+        List<Map.Entry<String, PlayerDatabase.IpEntry>> users = new ArrayList<>();
+        for (String ipAddress : ipAddresses) {
+            users.addAll(database.getUserEntriesForIp(ipAddress).entrySet());
+        }
+        users.sort((a, b) -> a.getValue().compareTimeTo(b.getValue()));
+        return users;
+    }
+
+    // A /24 or /48 with the users seen on its IPs
+    public static class SubnetGroup {
+        private final String subnet;
+        private final List<Map.Entry<String, PlayerDatabase.IpEntry>> users;
+        private final int userCount;
+
+        private SubnetGroup(String subnet, List<Map.Entry<String, PlayerDatabase.IpEntry>> users) {
+            Set<String> distinct = new HashSet<>();
+            users.forEach(user -> distinct.add(user.getKey()));
+            this.subnet = subnet;
+            this.users = Collections.unmodifiableList(users);
+            this.userCount = distinct.size();
+        }
+
+        public String getSubnet() { return subnet; }
+        public List<Map.Entry<String, PlayerDatabase.IpEntry>> getUsers() { return users; }
+        public int getUserCount() { return userCount; }
+    }
+}
@@ -0,0 +1,76 @@
+package net.nasheedpog.iplogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// Sorted usernames and IPs for tab completion, so a keystroke only looks at the names that start with what was
+// typed instead of copying and filtering every name in the database. Kept up to date from the change notifications.
+// Names are stored as "lowercase name \0 name", which keeps case-insensitive prefix matches next to each other
+// in the sorted set while still remembering the original spelling.
+public class SuggestionIndex implements PlayerDatabase.ChangeListener {
+    private static final char SEPARATOR = '\0';
+
+    private final PlayerDatabase database;
+    private final NavigableSet<String> usernames = new ConcurrentSkipListSet<>();
+    private final NavigableSet<String> ipAddresses = new ConcurrentSkipListSet<>();
+
+    public SuggestionIndex(PlayerDatabase database) {
+        this.database = database;
+        database.getUsernames().forEach(username -> usernames.add(key(username)));
+        database.getAllIPs().forEach(ipAddress -> ipAddresses.add(key(ipAddress)));
+    }
+
+    @Override
+    public void entryChanged(String username, PlayerDatabase.IpEntry ipEntry) {
+        usernames.add(key(username));
+        ipAddresses.add(key(ipEntry.getIp()));
+    }
+
+    @Override
+    public void entryRemoved(String username, String ipAddress) {
+        // Another thread may add the name back between the check and the removal, so check again afterwards
+        if (database.getEntries(username) == null) {
+            String key = key(username);
+            usernames.remove(key);
+            if (database.getEntries(username) != null) {
+                usernames.add(key);
+            }
+        }
+        if (database.getUsersForIp(ipAddress).isEmpty()) {
+            String key = key(ipAddress);
+            ipAddresses.remove(key);
+            if (!database.getUsersForIp(ipAddress).isEmpty()) {
+                ipAddresses.add(key);
+            }
+        }
+    }
+
+    // Up to limit usernames starting with prefix (ignoring case), in alphabetical order
+    public List<String> usernamesStartingWith(String prefix, int limit) {
+        return startingWith(usernames, prefix, limit);
+    }
+
+    // Up to limit IPs starting with prefix (ignoring case)
+    public List<String> ipAddressesStartingWith(String prefix, int limit) {
+        return startingWith(ipAddresses, prefix, limit);
+    }
+
+    private static List<String> startingWith(NavigableSet<String> names, String prefix, int limit) {
+        String lowerPrefix = prefix.toLowerCase(Locale.ROOT);
+        List<String> matches = new ArrayList<>(Math.min(limit, 16));
+        for (String key : names.tailSet(lowerPrefix, true)) {
+            if (matches.size() >= limit || !key.startsWith(lowerPrefix)) {
+                break;
+            }
+            matches.add(key.substring(key.indexOf(SEPARATOR) + 1));
+        }
+        return matches;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT) + SEPARATOR + name;
+    }
+}
@@ -0,0 +1,138 @@
+package net.nasheedpog.iplogger;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.nasheedpog.iplogger.IpLogger.debugMode;
+
+// Saves the database in the background instead of rewriting the whole file on every change.
+// Changes only mark the database dirty. A background thread saves once every saveIntervalSeconds,
+// or earlier once saveAfterChanges changes have piled up, so many changes are coalesced into one write.
+public class WriteBehindPersister implements PlayerDatabase.ChangeListener {
+    private final PlayerDatabase database;
+    private final long intervalSeconds;
+    private final long maxPendingChanges;
+    private final ScheduledExecutorService executor;
+
+    private final AtomicLong pendingChanges = new AtomicLong();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    // Flush statistics
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong coalescedChanges = new AtomicLong();
+    private final AtomicLong lastFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+
+    public WriteBehindPersister(PlayerDatabase database, IpLoggerConfig config) {
+        this.database = database;
+        this.intervalSeconds = Math.max(1, config.saveIntervalSeconds);
+        this.maxPendingChanges = Math.max(1, config.saveAfterChanges);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "IpLogger-Saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::flushIfDirty, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void entryChanged(String username, PlayerDatabase.IpEntry ipEntry) {
+        markDirty();
+    }
+
+    @Override
+    public void entryRemoved(String username, String ipAddress) {
+        markDirty();
+    }
+
+    public void markDirty() {
+        // Too many unsaved changes: ask for an early flush (only once until it has run)
+        if (pendingChanges.incrementAndGet() >= maxPendingChanges && flushRequested.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::flushIfDirty);
+            } catch (RejectedExecutionException e) {
+                flushRequested.set(false); // shutting down, the final flush will save it
+            }
+        }
+    }
+
+    // Stop the background thread and do a final save, whether or not anything is pending
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                System.out.println("[IpLogger] Background save did not finish in time, saving anyway.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(pendingChanges.getAndSet(0));
+        System.out.println("[IpLogger] Saved database. " + flushCount.get() + " saves this session, "
+                + String.format("%.1f", getAverageFlushMillis()) + " ms average, " + String.format("%.1f", getMaxFlushMillis()) + " ms max.");
+    }
+
+    // Save the pending changes now on the saver thread and wait for it. Returns false if the save failed.
+    public boolean flushNow() {
+        try {
+            return executor.submit(this::flushIfDirty).get();
+        } catch (RejectedExecutionException e) {
+            return false; // shutting down, the final flush saves it
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            System.out.println("[IpLogger] Error while saving database.");
+            e.getCause().printStackTrace();
+            return false;
+        }
+    }
+
+    // Returns false if there were changes and they couldn't be saved
+    private boolean flushIfDirty() {
+        flushRequested.set(false);
+        long pending = pendingChanges.getAndSet(0);
+        return pending == 0 || flush(pending);
+    }
+
+    private boolean flush(long pending) {
+        long start = System.nanoTime();
+        boolean saved = database.save();
+        long elapsed = System.nanoTime() - start;
+
+        if (!saved) {
+            // Keep the changes pending so the next run tries again
+            pendingChanges.addAndGet(pending);
+            return false;
+        }
+
+        flushCount.incrementAndGet();
+        coalescedChanges.addAndGet(pending);
+        lastFlushNanos.set(elapsed);
+        totalFlushNanos.addAndGet(elapsed);
+        maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+        if (debugMode) {
+            System.out.println("[IpLogger_debug] Saved " + pending + " changes in " + String.format("%.1f", elapsed / 1_000_000.0) + " ms.");
+        }
+        return true;
+    }
+
+    public long getPendingChanges() { return pendingChanges.get(); }
+    public long getFlushCount() { return flushCount.get(); }
+    public long getCoalescedChanges() { return coalescedChanges.get(); }
+    public double getLastFlushMillis() { return lastFlushNanos.get() / 1_000_000.0; }
+    public double getMaxFlushMillis() { return maxFlushNanos.get() / 1_000_000.0; }
+
+    public double getAverageFlushMillis() {
+        long count = flushCount.get();
+        return count == 0 ? 0 : totalFlushNanos.get() / 1_000_000.0 / count;
+    }
+}
@@ -0,0 +1,223 @@
+package net.nasheedpog.iplogger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// What PlayerDatabase relies on from a PlayerStore, run against every implementation (see the subclasses below).
+// Each test gets a new directory; reopen() closes the store and opens a new one on the same files, like a restart.
+public abstract class PlayerStoreContractTest {
+    @TempDir
+    Path directory;
+
+    private PlayerStore store;
+
+    protected abstract PlayerStore createStore(Path directory);
+
+    public static class ShardedPlayerStoreTest extends PlayerStoreContractTest {
+        @Override
+        protected PlayerStore createStore(Path directory) {
+            IpLoggerConfig config = new IpLoggerConfig();
+            config.shardCount = 4;
+            config.shardCacheMegabytes = 1;
+            return new ShardedPlayerStore(directory.resolve("shards"), config);
+        }
+    }
+
+    public static class SqlitePlayerStoreTest extends PlayerStoreContractTest {
+        @Override
+        protected PlayerStore createStore(Path directory) {
+            return new SqlitePlayerStore(directory);
+        }
+    }
+
+    @BeforeEach
+    void openEmpty() throws IOException {
+        store = createStore(directory);
+        assertFalse(store.open(), "a new store has nothing to open");
+    }
+
+    @AfterEach
+    void close() {
+        store.close();
+    }
+
+    private void reopen() throws IOException {
+        store.close();
+        store = createStore(directory);
+        assertTrue(store.open(), "the store was imported before");
+    }
+
+    private static PlayerDatabase.IpEntry entry(String ip, int day) {
+        return new PlayerDatabase.IpEntry(ip, String.format("2024-01-%02d 12:00:00", day), "Testland");
+    }
+
+    private static List<String> ipsOf(List<PlayerDatabase.IpEntry> ipEntries) {
+        List<String> ips = new ArrayList<>();
+        ipEntries.forEach(ipEntry -> ips.add(ipEntry.getIp()));
+        return ips;
+    }
+
+    // The users of an IP in name order, the stores don't promise any order
+    private List<String> usersForIp(String ipAddress) {
+        List<String> users = new ArrayList<>(store.getUsersForIp(ipAddress));
+        users.sort(null);
+        return users;
+    }
+
+    private Map<String, List<String>> duplicateIPs() {
+        Map<String, List<String>> duplicates = new TreeMap<>(store.getDuplicateIPs());
+        duplicates.replaceAll((ipAddress, users) -> users.stream().sorted().toList());
+        return duplicates;
+    }
+
+    // alice and bob share 10.0.0.1, only carol has the IPv6 address
+    private void importSample() throws IOException {
+        Map<String, List<PlayerDatabase.IpEntry>> players = new HashMap<>();
+        players.put("alice", List.of(entry("10.0.0.1", 1), entry("10.0.0.2", 2)));
+        players.put("bob", List.of(entry("10.0.0.1", 3)));
+        players.put("carol", List.of(entry("2001:db8::1", 4)));
+        store.importAll(players);
+    }
+
+    @Test
+    void getPutRemove() throws IOException {
+        importSample();
+        assertEquals(List.of("10.0.0.1", "10.0.0.2"), ipsOf(store.get("alice")));
+        assertEquals("Testland", store.get("alice").get(0).getLocation());
+        assertNull(store.get("dave"));
+
+        store.put("dave", List.of(entry("10.0.0.9", 5)));
+        assertEquals(List.of("10.0.0.9"), ipsOf(store.get("dave")));
+        store.put("alice", List.of(entry("10.0.0.2", 2)));
+        assertEquals(List.of("10.0.0.2"), ipsOf(store.get("alice")));
+
+        store.put("bob", null);
+        assertNull(store.get("bob"));
+        store.put("dave", List.of());
+        assertNull(store.get("dave"));
+        assertEquals(Set.of("alice", "carol"), store.getUsernames());
+        assertEquals(Set.of("10.0.0.2", "2001:db8::1"), store.getAllIPs());
+    }
+
+    @Test
+    void scansSeeChangesBeforeTheFlush() throws IOException {
+        importSample();
+        assertTrue(store.flush());
+        store.put("bob", null); // 10.0.0.1 is still alice's
+        store.put("carol", List.of(entry("10.0.0.3", 5)));
+        store.put("dave", List.of(entry("10.0.0.2", 6)));
+        assertEquals(Set.of("alice", "carol", "dave"), store.getUsernames());
+        assertEquals(Set.of("10.0.0.1", "10.0.0.2", "10.0.0.3"), store.getAllIPs());
+        assertEquals(Map.of("10.0.0.2", List.of("alice", "dave")), duplicateIPs());
+    }
+
+    @Test
+    void usersForIpSeeChangesBeforeTheFlush() throws IOException {
+        importSample();
+        assertTrue(store.flush());
+        assertEquals(List.of("alice", "bob"), usersForIp("10.0.0.1"));
+        assertEquals(List.of("carol"), usersForIp("2001:db8::1"));
+        assertEquals(List.of(), usersForIp("10.9.9.9"));
+
+        // Not flushed yet
+        store.put("dave", List.of(entry("10.0.0.1", 5)));
+        store.put("bob", null);
+        store.put("alice", List.of(entry("10.0.0.2", 2)));
+        assertEquals(List.of("dave"), usersForIp("10.0.0.1"));
+        assertEquals(List.of("alice"), usersForIp("10.0.0.2"));
+    }
+
+    @Test
+    void flushedChangesSurviveReopen() throws IOException {
+        importSample();
+        store.put("dave", List.of(entry("10.0.0.1", 5), entry("10.0.0.3", 6)));
+        store.put("bob", null);
+        assertTrue(store.flush());
+        reopen();
+
+        assertEquals(Set.of("alice", "carol", "dave"), store.getUsernames());
+        assertNull(store.get("bob"));
+        assertEquals(List.of("10.0.0.1", "10.0.0.3"), ipsOf(store.get("dave")));
+        assertEquals("2024-01-06 12:00:00", store.get("dave").get(1).getTimestamp());
+        assertEquals(List.of("alice", "dave"), usersForIp("10.0.0.1"));
+        assertEquals(List.of("carol"), usersForIp("2001:db8::1"));
+
+        // And once more, after changes made since the last open
+        store.put("carol", null);
+        assertTrue(store.flush());
+        reopen();
+        assertEquals(Set.of("alice", "dave"), store.getUsernames());
+        assertEquals(List.of(), usersForIp("2001:db8::1"));
+    }
+
+    @Test
+    void duplicateIPsFollowChanges() throws IOException {
+        importSample();
+        assertEquals(Map.of("10.0.0.1", List.of("alice", "bob")), duplicateIPs());
+
+        store.put("carol", List.of(entry("2001:db8::1", 4), entry("10.0.0.2", 7)));
+        store.put("bob", null);
+        assertEquals(Map.of("10.0.0.2", List.of("alice", "carol")), duplicateIPs());
+    }
+
+    @Test
+    void forEachBatchVisitsEveryPlayerOnce() throws IOException {
+        Map<String, List<PlayerDatabase.IpEntry>> players = new HashMap<>();
+        for (int i = 0; i < 2500; i++) {
+            players.put("user" + i, List.of(entry("10.1." + i / 256 + "." + i % 256, 1 + i % 28)));
+        }
+        store.importAll(players);
+        store.put("user0", List.of(entry("10.2.0.0", 1), entry("10.2.0.1", 2)));
+        store.put("user1", null);
+
+        Map<String, List<String>> visited = new HashMap<>();
+        Set<String> twice = new HashSet<>();
+        store.forEachBatch(batch -> batch.forEach((username, ipEntries) -> {
+            if (visited.put(username, ipsOf(ipEntries)) != null) {
+                twice.add(username);
+            }
+        }));
+        assertEquals(Set.of(), twice);
+        assertEquals(2499, visited.size());
+        assertFalse(visited.containsKey("user1"));
+        assertEquals(List.of("10.2.0.0", "10.2.0.1"), visited.get("user0"));
+        assertEquals(List.of("10.1.9.195"), visited.get("user2499"));
+    }
+
+    // Once imported, even an emptied store opens as existing, so the old data file isn't imported a second time
+    @Test
+    void importedStoreOpensEvenWhenEmpty() throws IOException {
+        importSample();
+        reopen();
+        assertEquals(Set.of("alice", "bob", "carol"), store.getUsernames());
+
+        store.put("alice", null);
+        store.put("bob", null);
+        store.put("carol", null);
+        assertTrue(store.flush());
+        reopen();
+        assertEquals(Set.of(), store.getUsernames());
+        assertEquals(Map.of(), duplicateIPs());
+
+        store.importAll(Map.of());
+        reopen();
+        assertEquals(Set.of(), store.getUsernames());
+    }
+}
@@ -0,0 +1,212 @@
+package net.nasheedpog.iplogger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// RemoteGeolocationProvider against a local stub of the API (geoApiUrl points at it). Each test sets how the stub answers.
+public class RemoteGeolocationProviderTest {
+    private static final String FOUND = "{\"response_code\":\"200\",\"country_name\":\"Testland\"}";
+
+    private interface Answer {
+        void handle(HttpExchange exchange) throws Exception;
+    }
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile Answer answer = exchange -> respond(exchange, 200, FOUND);
+    private IpLoggerConfig config;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            try {
+                answer.handle(exchange);
+            } catch (Exception e) {
+                exchange.close();
+            }
+        });
+        serverThreads = Executors.newCachedThreadPool(); // answers that wait must not hold up the others
+        server.setExecutor(serverThreads);
+        server.start();
+
+        config = new IpLoggerConfig();
+        config.geoApiUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/?ip=";
+        config.geoRequestTimeoutMillis = 2000;
+        config.geoRetries = 0;
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String await(CompletableFuture<String> lookup) throws Exception {
+        return lookup.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void findsTheLocation() throws Exception {
+        RemoteGeolocationProvider provider = new RemoteGeolocationProvider(config);
+        assertEquals("Testland", await(provider.locateAsync("10.0.0.1")));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    void slowAnswerTimesOut() throws Exception {
+        config.geoRequestTimeoutMillis = 200;
+        answer = exchange -> {
+            Thread.sleep(3000);
+            respond(exchange, 200, FOUND);
+        };
+        RemoteGeolocationProvider provider = new RemoteGeolocationProvider(config);
+
+        long start = System.nanoTime();
+        assertNull(await(provider.locateAsync("10.0.0.1")), "no answer, so it is looked up again later");
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(2000), "the timeout, not the answer, ended the lookup");
+        assertEquals(1, provider.getFailures());
+    }
+
+    @Test
+    void serverErrorIsNoAnswerButNotFoundIsEmpty() throws Exception {
+        config.geoRetries = 1;
+        answer = exchange -> respond(exchange, 500, "");
+        RemoteGeolocationProvider provider = new RemoteGeolocationProvider(config);
+        assertNull(await(provider.locateAsync("10.0.0.1")));
+        assertEquals(2, requests.get(), "retried once");
+
+        answer = exchange -> respond(exchange, 200, "{\"response_code\":\"400\",\"response_message\":\"Bad Request\"}");
+        assertEquals("", await(provider.locateAsync("10.0.0.2")), "the API answered that it has no location");
+    }
+
+    @Test
+    void concurrentLookupsOfOneIpShareOneRequest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        answer = exchange -> {
+            release.await();
+            respond(exchange, 200, FOUND);
+        };
+        RemoteGeolocationProvider provider = new RemoteGeolocationProvider(config);
+
+        List<CompletableFuture<String>> lookups = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            lookups.add(provider.locateAsync("10.0.0.1"));
+        }
+        release.countDown();
+        for (CompletableFuture<String> lookup : lookups) {
+            assertEquals("Testland", await(lookup));
+        }
+        assertEquals(1, requests.get());
+        assertEquals(9, provider.getCoalesced());
+    }
+
+    @Test
+    void rateLimitKeepsTheCircuitOpenForRetryAfter() throws Exception {
+        config.geoCircuitFailureThreshold = 100; // only the 429 opens it
+        config.geoCircuitOpenSeconds = 1;
+        answer = exchange -> {
+            exchange.getResponseHeaders().add("Retry-After", "2");
+            respond(exchange, 429, "");
+        };
+        RemoteGeolocationProvider provider = new RemoteGeolocationProvider(config);
+
+        assertNull(await(provider.locateAsync("10.0.0.1")), "rate limited is no answer");
+        assertTrue(provider.isCircuitOpen());
+        assertNull(await(provider.locateAsync("10.0.0.2")), "not asked while rate limited");
+
+        // Longer than geoCircuitOpenSeconds, shorter than Retry-After
+        Thread.sleep(1300);
+        assertTrue(provider.isCircuitOpen());
+        assertNull(await(provider.locateAsync("10.0.0.3")));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    void circuitOpensAfterTheThresholdAndClosesAfterATrial() throws Exception {
+        config.geoCircuitFailureThreshold = 2;
+        config.geoCircuitOpenSeconds = 1;
+        answer = exchange -> respond(exchange, 500, "");
+        RemoteGeolocationProvider provider = new RemoteGeolocationProvider(config);
+
+        assertNull(await(provider.locateAsync("10.0.0.1")));
+        assertFalse(provider.isCircuitOpen());
+        assertNull(await(provider.locateAsync("10.0.0.2")));
+        assertTrue(provider.isCircuitOpen());
+        assertNull(await(provider.locateAsync("10.0.0.3")), "not asked while the circuit is open");
+        assertEquals(2, requests.get());
+
+        // After the open time one trial request goes through, the lookups meanwhile are still not sent
+        Thread.sleep(1200);
+        CountDownLatch release = new CountDownLatch(1);
+        answer = exchange -> {
+            release.await();
+            respond(exchange, 200, FOUND);
+        };
+        CompletableFuture<String> trial = provider.locateAsync("10.0.0.4");
+        assertNull(await(provider.locateAsync("10.0.0.5")), "only one trial at a time");
+        release.countDown();
+        assertEquals("Testland", await(trial));
+        assertEquals(3, requests.get());
+
+        // The trial succeeded, so the circuit is closed again
+        assertFalse(provider.isCircuitOpen());
+        assertEquals("Testland", await(provider.locateAsync("10.0.0.6")));
+        assertEquals(4, requests.get());
+    }
+
+    @Test
+    void lookupsBeyondTheQueueAreNotSent() throws Exception {
+        config.geoMaxConcurrentRequests = 1;
+        config.geoMaxQueuedRequests = 1;
+        CountDownLatch release = new CountDownLatch(1);
+        answer = exchange -> {
+            release.await();
+            respond(exchange, 200, FOUND);
+        };
+        RemoteGeolocationProvider provider = new RemoteGeolocationProvider(config);
+
+        CompletableFuture<String> running = provider.locateAsync("10.0.0.1");
+        CompletableFuture<String> queued = provider.locateAsync("10.0.0.2");
+        assertNull(await(provider.locateAsync("10.0.0.3")), "the queue is full");
+        assertEquals(1, provider.getRejected());
+        assertEquals(1, provider.getActiveRequests());
+
+        release.countDown();
+        assertEquals("Testland", await(running));
+        assertEquals("Testland", await(queued));
+        assertEquals(2, requests.get());
+    }
+}